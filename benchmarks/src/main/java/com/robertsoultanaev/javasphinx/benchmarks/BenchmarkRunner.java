@@ -0,0 +1,34 @@
+package com.robertsoultanaev.javasphinx.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmark jar. Accepts the regular JMH command line options, runs the selected benchmarks
+ * once per requested thread count and always attaches the GC/allocation profiler.
+ *
+ * The thread counts are taken from the "threads" system property as a comma separated list, e.g. -Dthreads=1,4,16.
+ * When the property is not set, the benchmarks are run single threaded and with as many threads as available processors.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        String defaultThreads = processors > 1 ? "1," + processors : "1";
+        String[] threadCounts = System.getProperty("threads", defaultThreads).split(",");
+
+        for (String threadCount : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .threads(Integer.parseInt(threadCount.trim()))
+                    .addProfiler(GCProfiler.class)
+                    .build();
+
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.robertsoultanaev.javasphinx.benchmarks;
+
+import com.robertsoultanaev.javasphinx.DestinationAndMessage;
+import com.robertsoultanaev.javasphinx.HeaderAndDelta;
+import com.robertsoultanaev.javasphinx.HeaderAndSecrets;
+import com.robertsoultanaev.javasphinx.ParamLengths;
+import com.robertsoultanaev.javasphinx.RelayResult;
+import com.robertsoultanaev.javasphinx.SphinxClient;
+import com.robertsoultanaev.javasphinx.SphinxNodeKey;
+import com.robertsoultanaev.javasphinx.SphinxPacket;
+import com.robertsoultanaev.javasphinx.SphinxPacketCodec;
+import com.robertsoultanaev.javasphinx.SphinxRelay;
+import com.robertsoultanaev.javasphinx.Surb;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-thread benchmark state holding a route and pre-built packets for it, parameterised over hop count and body length
+ */
+@State(Scope.Thread)
+public class PacketState {
+    @Param({"1", "2", "3", "5", "8", "10"})
+    public int hops;
+
+    @Param({"1024", "4096", "16384", "65536"})
+    public int bodyLength;
+
+    @Param({"secp224r1", "curve25519"})
+    public String curve;
+
+    Route route;
+    SphinxNodeKey firstNodeKey;
+    byte[] surbDest;
+    DestinationAndMessage destinationAndMessage;
+    byte[] reply;
+
+    HeaderAndSecrets forwardHeader;
+    HeaderAndDelta forwardMessage;
+    SphinxPacket sphinxPacket;
+    byte[] packedMessage;
+    ByteBuffer codecBuffer;
+
+    SphinxRelay firstNodeRelay;
+    RelayResult relayResult;
+    byte[] relayBuffer;
+
+    Surb surb;
+    byte[] surbReplyDelta;
+
+    @Setup
+    public void setUp() {
+        route = Route.create(hops, bodyLength, curve);
+        firstNodeKey = new SphinxNodeKey(route.params.getGroup(), route.nodeSecrets[0]);
+
+        byte[] dest = "bob".getBytes();
+        byte[] message = new byte[SphinxClient.getMaxPayloadSize(route.params) - dest.length];
+        Arrays.fill(message, (byte) 0xaa);
+        destinationAndMessage = new DestinationAndMessage(dest, message);
+
+        forwardHeader = SphinxClient.createForwardHeader(route.params, route.nodesRouting, route.nodeKeys, null);
+        forwardMessage = SphinxClient.createForwardMessage(route.params, route.nodesRouting, route.nodeKeys, destinationAndMessage);
+        ParamLengths paramLengths = new ParamLengths(route.params.getHeaderLength(), route.params.getBodyLength());
+        sphinxPacket = new SphinxPacket(paramLengths, forwardMessage);
+        packedMessage = SphinxClient.packMessage(sphinxPacket);
+        codecBuffer = ByteBuffer.allocateDirect(SphinxPacketCodec.getEncodedLength(sphinxPacket));
+
+        firstNodeRelay = new SphinxRelay(route.params, firstNodeKey, null);
+        relayResult = new RelayResult(route.params);
+        relayBuffer = new byte[packedMessage.length];
+
+        surbDest = "myself".getBytes();
+        reply = new byte[bodyLength / 2];
+        Arrays.fill(reply, (byte) 0xbb);
+        surb = SphinxClient.createSurb(route.params, route.nodesRouting, route.nodeKeys, surbDest);
+        HeaderAndDelta surbMessage = SphinxClient.packageSurb(route.params, surb.nymTuple, reply);
+        surbReplyDelta = route.routeToLastHop(surbMessage).getDelta();
+    }
+}
@@ -0,0 +1,98 @@
+package com.robertsoultanaev.javasphinx.benchmarks;
+
+import com.robertsoultanaev.javasphinx.Curve25519Group;
+import com.robertsoultanaev.javasphinx.ECCGroup;
+import com.robertsoultanaev.javasphinx.EllipticCurveGroup;
+import com.robertsoultanaev.javasphinx.HeaderAndDelta;
+import com.robertsoultanaev.javasphinx.ProcessedPacket;
+import com.robertsoultanaev.javasphinx.SphinxClient;
+import com.robertsoultanaev.javasphinx.SphinxException;
+import com.robertsoultanaev.javasphinx.SphinxNode;
+import com.robertsoultanaev.javasphinx.SphinxParams;
+import org.bouncycastle.math.ec.ECPoint;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+/**
+ * Fixture holding a route of freshly generated mix nodes and Sphinx parameters large enough to carry it
+ */
+final class Route {
+    // Room left in beta for the final routing information, enough for a SURB with a short destination
+    private static final int FINAL_ROUTING_ALLOWANCE = 64;
+    private static final int MIN_HEADER_LENGTH = 192;
+
+    final SphinxParams params;
+    final byte[][] nodesRouting;
+    final ECPoint[] nodeKeys;
+    final BigInteger[] nodeSecrets;
+
+    private Route(SphinxParams params, byte[][] nodesRouting, ECPoint[] nodeKeys, BigInteger[] nodeSecrets) {
+        this.params = params;
+        this.nodesRouting = nodesRouting;
+        this.nodeKeys = nodeKeys;
+        this.nodeSecrets = nodeSecrets;
+    }
+
+    /**
+     * Create a route of the given number of hops, where node i has id i.
+     * @param hops Number of mix nodes on the route.
+     * @param bodyLength Length of the Sphinx payload.
+     * @param curve Name of the curve of the group, "secp224r1" or "curve25519".
+     * @return Route along with matching Sphinx parameters.
+     */
+    static Route create(int hops, int bodyLength, String curve) {
+        int keyLength = 16;
+        EllipticCurveGroup group = curve.equals(Curve25519Group.CURVE_NAME) ? new Curve25519Group() : new ECCGroup();
+
+        byte[][] nodesRouting = new byte[hops][];
+        ECPoint[] nodeKeys = new ECPoint[hops];
+        BigInteger[] nodeSecrets = new BigInteger[hops];
+
+        int headerLength = 32 + FINAL_ROUTING_ALLOWANCE;
+        for (int i = 0; i < hops; i++) {
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+            nodeSecrets[i] = group.genSecret();
+            nodeKeys[i] = group.expon(group.getGenerator(), nodeSecrets[i]);
+
+            if (i > 0) {
+                headerLength += 1 + nodesRouting[i].length + keyLength;
+            }
+        }
+
+        SphinxParams params = new SphinxParams(keyLength, bodyLength, Math.max(MIN_HEADER_LENGTH, headerLength), group);
+
+        return new Route(params, nodesRouting, nodeKeys, nodeSecrets);
+    }
+
+    /**
+     * Route a packet through the mix nodes until it reaches a node that does not relay it further.
+     * @param headerAndDelta Packet addressed to the first node of the route.
+     * @return The processed packet as seen by the last node of the route.
+     */
+    ProcessedPacket routeToLastHop(HeaderAndDelta headerAndDelta) {
+        BigInteger secret = nodeSecrets[0];
+
+        while (true) {
+            ProcessedPacket ret = SphinxNode.sphinxProcess(params, secret, headerAndDelta);
+            headerAndDelta = ret.getHeaderAndDelta();
+
+            MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(ret.routing);
+            try {
+                unpacker.unpackArrayHeader();
+                String flag = unpacker.unpackString();
+
+                if (!flag.equals(SphinxClient.RELAY_FLAG)) {
+                    return ret;
+                }
+
+                secret = nodeSecrets[unpacker.unpackInt()];
+                unpacker.close();
+            } catch (IOException ex) {
+                throw new SphinxException("Failed to unpack routing information");
+            }
+        }
+    }
+}
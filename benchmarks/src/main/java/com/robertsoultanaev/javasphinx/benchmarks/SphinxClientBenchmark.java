@@ -0,0 +1,153 @@
+package com.robertsoultanaev.javasphinx.benchmarks;
+
+import com.robertsoultanaev.javasphinx.DestinationAndMessage;
+import com.robertsoultanaev.javasphinx.HeaderAndDelta;
+import com.robertsoultanaev.javasphinx.HeaderAndSecrets;
+import com.robertsoultanaev.javasphinx.PacketView;
+import com.robertsoultanaev.javasphinx.RouteAndMessage;
+import com.robertsoultanaev.javasphinx.SphinxBatchClient;
+import com.robertsoultanaev.javasphinx.SphinxClient;
+import com.robertsoultanaev.javasphinx.SphinxPacket;
+import com.robertsoultanaev.javasphinx.SphinxPacketCodec;
+import com.robertsoultanaev.javasphinx.Surb;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the client side entry points in SphinxClient
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SphinxClientBenchmark {
+
+    @State(Scope.Thread)
+    public static class HeaderState {
+        @Param({"1", "2", "3", "5", "8", "10"})
+        public int hops;
+
+        @Param({"secp224r1", "curve25519"})
+        public String curve;
+
+        Route route;
+        byte[] dest;
+
+        @Setup
+        public void setUp() {
+            route = Route.create(hops, 1024, curve);
+            dest = "bob".getBytes();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class BatchState {
+        static final int BATCH_SIZE = 64;
+
+        @Param({"1", "2", "3", "5", "8", "10"})
+        public int hops;
+
+        @Param({"secp224r1", "curve25519"})
+        public String curve;
+
+        Route route;
+        SphinxBatchClient batchClient;
+        List<RouteAndMessage> batch;
+
+        @Setup
+        public void setUp() {
+            route = Route.create(hops, 1024, curve);
+            // A single worker, so that the result shows the savings per core rather than the parallel speedup
+            batchClient = new SphinxBatchClient(route.params, null, 1);
+
+            DestinationAndMessage destinationAndMessage = new DestinationAndMessage("bob".getBytes(), new byte[512]);
+            batch = new ArrayList<RouteAndMessage>();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.add(new RouteAndMessage(route.nodesRouting, route.nodeKeys, destinationAndMessage));
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            batchClient.shutdown();
+        }
+    }
+
+    @Benchmark
+    public HeaderAndSecrets createHeader(HeaderState state) {
+        return SphinxClient.createHeader(state.route.params, state.route.nodesRouting, state.route.nodeKeys, state.dest);
+    }
+
+    @Benchmark
+    public HeaderAndDelta createForwardMessage(PacketState state) {
+        return SphinxClient.createForwardMessage(state.route.params, state.route.nodesRouting, state.route.nodeKeys, state.destinationAndMessage);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BatchState.BATCH_SIZE)
+    public List<HeaderAndDelta> createForwardMessagesInBatch(BatchState state) {
+        return state.batchClient.createForwardMessages(state.batch);
+    }
+
+    @Benchmark
+    public HeaderAndDelta createForwardMessageFromHeader(PacketState state) {
+        // Only the payload encryption, as with a header taken from a HeaderPool
+        return SphinxClient.createForwardMessage(state.route.params, state.forwardHeader, state.destinationAndMessage);
+    }
+
+    @Benchmark
+    public Surb createSurb(PacketState state) {
+        return SphinxClient.createSurb(state.route.params, state.route.nodesRouting, state.route.nodeKeys, state.surbDest);
+    }
+
+    @Benchmark
+    public byte[] receiveSurb(PacketState state) {
+        return SphinxClient.receiveSurb(state.route.params, state.surb.keytuple, state.surbReplyDelta);
+    }
+
+    @Benchmark
+    public byte[] packMessage(PacketState state) {
+        return SphinxClient.packMessage(state.sphinxPacket);
+    }
+
+    @Benchmark
+    public SphinxPacket unpackMessage(PacketState state) {
+        return SphinxClient.unpackMessage(state.packedMessage);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeToBuffer(PacketState state) {
+        ByteBuffer buffer = state.codecBuffer;
+        buffer.clear();
+        SphinxPacketCodec.encode(state.sphinxPacket, buffer);
+
+        return buffer;
+    }
+
+    @Benchmark
+    public PacketView decodeFromBuffer(PacketState state) {
+        ByteBuffer buffer = state.codecBuffer;
+        buffer.clear();
+        buffer.put(state.packedMessage);
+        buffer.flip();
+
+        return SphinxPacketCodec.decode(buffer);
+    }
+}
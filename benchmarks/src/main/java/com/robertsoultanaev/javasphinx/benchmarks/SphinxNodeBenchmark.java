@@ -0,0 +1,45 @@
+package com.robertsoultanaev.javasphinx.benchmarks;
+
+import com.robertsoultanaev.javasphinx.HeaderAndDelta;
+import com.robertsoultanaev.javasphinx.RelayResult;
+import com.robertsoultanaev.javasphinx.SphinxNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the mix node processing in SphinxNode
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SphinxNodeBenchmark {
+
+    @Benchmark
+    public HeaderAndDelta sphinxProcess(PacketState state) {
+        // The next header and payload are computed on request, so they are requested to measure the whole hop
+        return SphinxNode.sphinxProcess(state.route.params, state.route.nodeSecrets[0], state.forwardMessage).getHeaderAndDelta();
+    }
+
+    @Benchmark
+    public HeaderAndDelta sphinxProcessWithNodeKey(PacketState state) {
+        return SphinxNode.sphinxProcess(state.route.params, state.firstNodeKey, state.forwardMessage, null).getHeaderAndDelta();
+    }
+
+    @Benchmark
+    public RelayResult relayInPlace(PacketState state) {
+        // The packet is rewritten by the relay, so every iteration starts from a fresh copy of the packed message
+        System.arraycopy(state.packedMessage, 0, state.relayBuffer, 0, state.packedMessage.length);
+        state.firstNodeRelay.process(state.relayBuffer, 0, state.relayBuffer.length, state.relayResult);
+
+        return state.relayResult;
+    }
+}
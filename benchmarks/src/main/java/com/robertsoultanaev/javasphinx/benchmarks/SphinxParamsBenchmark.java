@@ -0,0 +1,113 @@
+package com.robertsoultanaev.javasphinx.benchmarks;
+
+import com.robertsoultanaev.javasphinx.BouncyCastleCryptoBackend;
+import com.robertsoultanaev.javasphinx.CryptoBackend;
+import com.robertsoultanaev.javasphinx.ECCGroup;
+import com.robertsoultanaev.javasphinx.JcaCryptoBackend;
+import com.robertsoultanaev.javasphinx.SphinxParams;
+import org.bouncycastle.math.ec.ECPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the cryptographic primitives in SphinxParams
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SphinxParamsBenchmark {
+
+    @State(Scope.Thread)
+    public static class BodyState {
+        @Param({"1024", "4096", "16384", "65536"})
+        public int bodyLength;
+
+        @Param({"jca", "bouncycastle"})
+        public String backend;
+
+        SphinxParams params;
+        byte[] key;
+        byte[] iv;
+        byte[] body;
+        byte[] encryptedBody;
+
+        @Setup
+        public void setUp() {
+            SecureRandom secureRandom = new SecureRandom();
+            CryptoBackend cryptoBackend = backend.equals("jca") ? new JcaCryptoBackend() : new BouncyCastleCryptoBackend();
+            params = new SphinxParams(16, bodyLength, 192, new ECCGroup(), cryptoBackend);
+
+            key = new byte[params.getKeyLength()];
+            secureRandom.nextBytes(key);
+            iv = new byte[16];
+            secureRandom.nextBytes(iv);
+            body = new byte[bodyLength];
+            secureRandom.nextBytes(body);
+            encryptedBody = params.lionessEnc(key, body);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class KeyState {
+        SphinxParams params;
+        ECPoint sharedSecret;
+        ECPoint alpha;
+        byte[] aesKey;
+
+        @Setup
+        public void setUp() {
+            params = new SphinxParams();
+
+            BigInteger x = params.getGroup().genSecret();
+            BigInteger y = params.getGroup().genSecret();
+            alpha = params.getGroup().expon(params.getGroup().getGenerator(), x);
+            sharedSecret = params.getGroup().expon(alpha, y);
+            aesKey = params.getAesKey(sharedSecret);
+        }
+    }
+
+    @Benchmark
+    public byte[] aesCtr(BodyState state) {
+        return state.params.aesCtr(state.key, state.body, state.iv);
+    }
+
+    @Benchmark
+    public byte[] lionessEnc(BodyState state) {
+        return state.params.lionessEnc(state.key, state.body);
+    }
+
+    @Benchmark
+    public byte[] lionessDec(BodyState state) {
+        return state.params.lionessDec(state.key, state.encryptedBody);
+    }
+
+    @Benchmark
+    public byte[] mu(BodyState state) {
+        return state.params.mu(state.key, state.body);
+    }
+
+    @Benchmark
+    public byte[] getAesKey(KeyState state) {
+        return state.params.getAesKey(state.sharedSecret);
+    }
+
+    @Benchmark
+    public BigInteger hb(KeyState state) {
+        return state.params.hb(state.alpha, state.aesKey);
+    }
+}
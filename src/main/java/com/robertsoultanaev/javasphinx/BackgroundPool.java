@@ -0,0 +1,178 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of single-use items created ahead of time on an executor, shared by HeaderPool and SurbPool.
+ * Items are kept in a lock-free queue. Whenever fewer items than the low watermark are ready or being created, the pool
+ * is refilled up to its capacity, and if it runs dry the item is created on the calling thread. Items that fail to be
+ * created in the background are counted and the last failure is kept, so that a pool that cannot fill up is noticed.
+ */
+abstract class BackgroundPool<T> {
+    private final int lowWatermark;
+    private final int capacity;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    private final ConcurrentLinkedQueue<T> ready;
+    // Ready items plus the items being created in the background
+    private final AtomicInteger available;
+    private final AtomicLong misses;
+    private final AtomicLong failures;
+    private volatile RuntimeException lastFailure;
+    private final Runnable createTask;
+
+    BackgroundPool(int lowWatermark, int capacity, ExecutorService executor, boolean ownsExecutor) {
+        if (lowWatermark < 0 || capacity < 1 || lowWatermark > capacity) {
+            throw new SphinxException("Low watermark (" + lowWatermark + ") must be between 0 and the capacity (" + capacity + "), which must be positive");
+        }
+
+        this.lowWatermark = lowWatermark;
+        this.capacity = capacity;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.ready = new ConcurrentLinkedQueue<T>();
+        this.available = new AtomicInteger();
+        this.misses = new AtomicLong();
+        this.failures = new AtomicLong();
+        this.createTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ready.add(create());
+                } catch (RuntimeException ex) {
+                    lastFailure = ex;
+                    failures.incrementAndGet();
+                    available.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Create an item. Called on the threads of the executor, and on the calling thread of take if the pool is empty.
+     * @return New item.
+     */
+    abstract T create();
+
+    /**
+     * Check whether a ready item can still be handed out.
+     * @param item Ready item.
+     * @return True if the item is still valid.
+     */
+    boolean isValid(T item) {
+        return true;
+    }
+
+    /**
+     * Take an item out of the pool, dropping invalid items and creating the item on the calling thread if none is ready.
+     * If that fails too, the last failure of the background creation is attached to the exception as suppressed.
+     * @return Valid item, handed out only once.
+     */
+    T take() {
+        T item;
+        while ((item = ready.poll()) != null) {
+            available.decrementAndGet();
+            if (isValid(item)) {
+                break;
+            }
+        }
+
+        if (item == null) {
+            misses.incrementAndGet();
+            try {
+                item = create();
+            } catch (RuntimeException ex) {
+                RuntimeException backgroundFailure = lastFailure;
+                if (backgroundFailure != null && backgroundFailure != ex) {
+                    ex.addSuppressed(backgroundFailure);
+                }
+                throw ex;
+            }
+        }
+
+        if (available.get() < lowWatermark) {
+            refill();
+        }
+
+        return item;
+    }
+
+    /**
+     * Drop the ready items that are no longer valid and refill the pool.
+     */
+    void discardInvalid() {
+        for (T item : ready) {
+            if (!isValid(item) && ready.remove(item)) {
+                available.decrementAndGet();
+            }
+        }
+
+        refill();
+    }
+
+    int getReadyCount() {
+        return ready.size();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long getFailureCount() {
+        return failures.get();
+    }
+
+    RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    void shutdown() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Schedule the creation of enough items to fill the pool up to its capacity.
+     */
+    void refill() {
+        while (true) {
+            int current = available.get();
+            if (current >= capacity) {
+                return;
+            }
+
+            if (available.compareAndSet(current, current + 1)) {
+                try {
+                    executor.execute(createTask);
+                } catch (RejectedExecutionException ex) {
+                    available.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a single-threaded executor whose thread does not keep the JVM alive.
+     * @param name Name of the thread.
+     * @return New executor.
+     */
+    static ExecutorService newDaemonExecutor(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
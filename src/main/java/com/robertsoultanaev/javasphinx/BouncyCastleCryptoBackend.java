@@ -0,0 +1,96 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.modes.SICBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import java.util.Arrays;
+
+/**
+ * Class implementing the symmetric primitives with the BouncyCastle lightweight API.
+ * It does not depend on the JCA providers of the running JVM, but does not benefit from the AES and SHA intrinsics of HotSpot.
+ */
+public class BouncyCastleCryptoBackend implements CryptoBackend {
+    private final ThreadLocal<Context> context = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    @Override
+    public void aesCtr(byte[] key, byte[] iv, long position, byte[] data, int offset, int length) {
+        Context context = this.context.get();
+        SICBlockCipher cipher = context.cipher;
+        byte[] counter = context.counter;
+
+        // SICBlockCipher.seekTo does not carry between the two halves of the counter, so the counter block is computed here
+        Util.counterBlock(iv, position, counter);
+
+        if (Arrays.equals(key, context.expandedKey)) {
+            // Only the counter changes, the engine keeps the key schedule it was initialised with
+            cipher.init(true, new ParametersWithIV(null, counter));
+        } else {
+            cipher.init(true, new ParametersWithIV(new KeyParameter(key), counter));
+            context.expandedKey = key.clone();
+        }
+
+        int skip = (int) (position % counter.length);
+        if (skip != 0) {
+            cipher.processBytes(context.scratch, 0, skip, context.scratch, 0);
+        }
+
+        cipher.processBytes(data, offset, length, data, offset);
+    }
+
+    @Override
+    public void aesCtrKeystreams(byte[] key, byte[][] ivs, byte[][] outputs) {
+        Context context = this.context.get();
+        AESEngine engine = context.engine;
+        byte[] counter = context.counter;
+        byte[] block = context.block;
+
+        engine.init(true, new KeyParameter(key));
+
+        for (int i = 0; i < outputs.length; i++) {
+            byte[] output = outputs[i];
+            for (int j = 0; j < output.length; j += block.length) {
+                Util.counterBlock(ivs[i], j, counter);
+                engine.processBlock(counter, 0, block, 0);
+                System.arraycopy(block, 0, output, j, Math.min(block.length, output.length - j));
+            }
+        }
+    }
+
+    @Override
+    public void hmacSha256(byte[] key, byte[] data, int offset, int length, byte[] output) {
+        HMac mac = context.get().mac;
+
+        mac.init(new KeyParameter(key));
+        mac.update(data, offset, length);
+        mac.doFinal(output, 0);
+    }
+
+    @Override
+    public void sha256(byte[] data, int offset, int length, byte[] suffix, byte[] output) {
+        SHA256Digest digest = context.get().digest;
+
+        digest.update(data, offset, length);
+        digest.update(suffix, 0, suffix.length);
+        digest.doFinal(output, 0);
+    }
+
+    private static class Context {
+        final SICBlockCipher cipher = new SICBlockCipher(new AESEngine());
+        final AESEngine engine = new AESEngine();
+        final HMac mac = new HMac(new SHA256Digest());
+        final SHA256Digest digest = new SHA256Digest();
+        final byte[] counter = new byte[16];
+        final byte[] scratch = new byte[16];
+        final byte[] block = new byte[16];
+        byte[] expandedKey;
+    }
+}
@@ -0,0 +1,168 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact wire format for Sphinx packets built with a fixed set of parameters.
+ *
+ * Since the lengths of every field are fixed by the parameters, the packet is a profile id byte followed by the
+ * compressed alpha, beta, gamma and delta at fixed offsets, without any msgpack framing. The profile id stands for the
+ * parameters and has to be agreed upon by the nodes exchanging packets. Profile ids are in [1, MAX_PROFILE_ID], so the
+ * first byte of a compact packet never matches the first byte of a msgpack packet and both formats can be told apart.
+ */
+public final class CompactPacketFormat {
+    /**
+     * Largest profile id. The first byte of packets in the msgpack format has its top bit set.
+     */
+    public static final int MAX_PROFILE_ID = 0x7f;
+
+    // First byte of packets packed by SphinxClient.packMessage, an array of two elements
+    static final byte MSGPACK_FIRST_BYTE = (byte) 0x92;
+
+    private final int profileId;
+    private final SphinxParams params;
+    private final int alphaLength;
+    private final int packetLength;
+
+    /**
+     * Create the compact format of a parameter profile.
+     * @param profileId Identifier of the profile written at the start of every packet, in [1, MAX_PROFILE_ID].
+     * @param params Sphinx parameters of the profile.
+     */
+    public CompactPacketFormat(int profileId, SphinxParams params) {
+        if (profileId < 1 || profileId > MAX_PROFILE_ID) {
+            throw new SphinxException("Profile id " + profileId + " is outside of [1, " + MAX_PROFILE_ID + "]");
+        }
+
+        this.profileId = profileId;
+        this.params = params;
+        this.alphaLength = params.getGroup().getGenerator().getEncoded(true).length;
+        this.packetLength = 1 + alphaLength + params.getHeaderLength() - 32 + params.getKeyLength() + params.getBodyLength();
+    }
+
+    public int getProfileId() {
+        return profileId;
+    }
+
+    public SphinxParams getParams() {
+        return params;
+    }
+
+    /**
+     * Get the length of the compressed encoding of alpha.
+     * @return Length of alpha in bytes.
+     */
+    public int getAlphaLength() {
+        return alphaLength;
+    }
+
+    /**
+     * Get the length of every packet in this format.
+     * @return Length of a packet in bytes.
+     */
+    public int getPacketLength() {
+        return packetLength;
+    }
+
+    /**
+     * Check whether a packet starts with the profile id of this format.
+     * @param firstByte First byte of the packet.
+     * @return True if the packet is in this format.
+     */
+    public boolean matches(byte firstByte) {
+        return (firstByte & 0xff) == profileId;
+    }
+
+    /**
+     * Package a Sphinx message into the compact format.
+     * @param sphinxPacket Sphinx packet built with the parameters of this format.
+     * @return Sphinx message in the compact format.
+     */
+    public byte[] packMessage(SphinxPacket sphinxPacket) {
+        ByteBuffer buffer = ByteBuffer.allocate(packetLength);
+        encode(sphinxPacket, buffer);
+
+        return buffer.array();
+    }
+
+    /**
+     * Unpack a message in the compact format into a SphinxPacket type.
+     * @param m Message in the compact format.
+     * @return Message deserialised into SphinxPacket type.
+     */
+    public SphinxPacket unpackMessage(byte[] m) {
+        if (m.length != packetLength) {
+            throw new SphinxException("Length of the packet (" + m.length + ") did not match the length of the compact format (" + packetLength + ")");
+        }
+
+        return decode(ByteBuffer.wrap(m)).toSphinxPacket();
+    }
+
+    /**
+     * Write a packet in the compact format at the position of a buffer, advancing the position past it.
+     * @param sphinxPacket Sphinx packet built with the parameters of this format.
+     * @param buffer Buffer receiving the packet.
+     */
+    public void encode(SphinxPacket sphinxPacket, ByteBuffer buffer) {
+        ParamLengths paramLengths = sphinxPacket.paramLengths;
+        if (paramLengths.headerLength != params.getHeaderLength() || paramLengths.bodyLength != params.getBodyLength()) {
+            throw new SphinxException("Packet lengths (" + paramLengths.headerLength + ", " + paramLengths.bodyLength + ") did not match the parameters of profile " + profileId);
+        }
+
+        Header header = sphinxPacket.headerAndDelta.header;
+        byte[] delta = sphinxPacket.headerAndDelta.delta;
+        int curveNid = header.getCurveNid();
+        if (curveNid != params.getGroup().getCurveNid()) {
+            throw new SphinxException("Curve of alpha (" + curveNid + ") did not match the curve of profile " + profileId);
+        }
+
+        byte[] encodedAlpha = header.getEncodedAlpha();
+        if (encodedAlpha.length != alphaLength || header.beta.length != params.getHeaderLength() - 32
+                || header.gamma.length != params.getKeyLength() || delta.length != params.getBodyLength()) {
+            throw new SphinxException("Field lengths of the packet did not match the parameters of profile " + profileId);
+        }
+
+        if (buffer.remaining() < packetLength) {
+            throw new SphinxException("Packet of " + packetLength + " bytes does not fit in the " + buffer.remaining() + " remaining bytes of the buffer");
+        }
+
+        buffer.put((byte) profileId);
+        buffer.put(encodedAlpha);
+        buffer.put(header.beta);
+        buffer.put(header.gamma);
+        buffer.put(delta);
+    }
+
+    /**
+     * Decode the packet in the compact format at the position of a buffer, without copying its fields.
+     * The position of the buffer is advanced past the packet, and the buffer may hold other data after it.
+     * @param buffer Buffer holding the packet.
+     * @return Views of the fields of the packet.
+     */
+    public PacketView decode(ByteBuffer buffer) {
+        PacketLayout layout = new PacketLayout();
+        layout.parse(this, buffer);
+
+        return SphinxPacketCodec.view(buffer, layout);
+    }
+
+    /**
+     * Find the format of a packet among the msgpack format and the given compact formats.
+     * @param firstByte First byte of the packet.
+     * @param formats Compact formats accepted next to the msgpack format.
+     * @return Compact format of the packet, or null if the packet is in the msgpack format.
+     */
+    static CompactPacketFormat detect(byte firstByte, CompactPacketFormat[] formats) {
+        if (firstByte == MSGPACK_FIRST_BYTE) {
+            return null;
+        }
+
+        for (CompactPacketFormat format : formats) {
+            if (format.matches(firstByte)) {
+                return format;
+            }
+        }
+
+        throw new SphinxException("Unknown packet format " + (firstByte & 0xff));
+    }
+}
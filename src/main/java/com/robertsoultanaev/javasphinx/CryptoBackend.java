@@ -0,0 +1,46 @@
+package com.robertsoultanaev.javasphinx;
+
+/**
+ * Interface to the symmetric primitives used by the Sphinx cryptographic computations.
+ * Implementations must be safe for use by multiple threads, and all implementations produce identical outputs.
+ */
+public interface CryptoBackend {
+    /**
+     * XOR a region of data in place with the AES-CTR keystream, starting at an arbitrary position of the keystream.
+     * @param key AES key.
+     * @param iv Initial counter block, zero padded on the right if shorter than the AES block.
+     * @param position Offset into the keystream that lines up with data[offset].
+     * @param data Buffer to XOR with the keystream.
+     * @param offset Start of the region in data.
+     * @param length Length of the region.
+     */
+    void aesCtr(byte[] key, byte[] iv, long position, byte[] data, int offset, int length);
+
+    /**
+     * Compute the first bytes of the AES-CTR keystreams of several initial counter blocks, expanding the key only once.
+     * @param key AES key.
+     * @param ivs Initial counter blocks, zero padded on the right if shorter than the AES block.
+     * @param outputs Buffers receiving the keystreams, the i-th one filled with the start of the keystream of ivs[i].
+     */
+    void aesCtrKeystreams(byte[] key, byte[][] ivs, byte[][] outputs);
+
+    /**
+     * Compute HMAC-SHA256 of a region of data.
+     * @param key HMAC key.
+     * @param data Buffer holding the message.
+     * @param offset Start of the message in data.
+     * @param length Length of the message.
+     * @param output Buffer receiving the 32 byte MAC at offset 0.
+     */
+    void hmacSha256(byte[] key, byte[] data, int offset, int length, byte[] output);
+
+    /**
+     * Compute SHA-256 of a region of data followed by a suffix.
+     * @param data Buffer holding the first part of the message.
+     * @param offset Start of the first part in data.
+     * @param length Length of the first part.
+     * @param suffix Second part of the message.
+     * @param output Buffer receiving the 32 byte digest at offset 0.
+     */
+    void sha256(byte[] data, int offset, int length, byte[] suffix, byte[] output);
+}
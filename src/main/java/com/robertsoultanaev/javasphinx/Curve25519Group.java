@@ -0,0 +1,247 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECFieldElement;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.custom.djb.Curve25519Field;
+import org.bouncycastle.math.raw.Nat256;
+
+import java.math.BigInteger;
+
+/**
+ * Class to represent the prime order subgroup of Curve25519.
+ *
+ * Points are exchanged as BouncyCastle points of the short Weierstrass form of the curve, so packets of this group are
+ * not interoperable with X25519. Raising a point to a power runs the X25519 Montgomery ladder on the u-coordinate over
+ * the limbs of X25519Field, then recovers the v-coordinate (Okeya-Sakurai) with a single inversion, which is an
+ * exponentiation by p - 2 so that it takes the same time whatever the secret exponent.
+ */
+public class Curve25519Group extends ECCGroup {
+    public static final String CURVE_NAME = "curve25519";
+    // Identifier private to this library, above the range of OpenSSL NIDs. Alpha is a compressed Weierstrass point, so
+    // the NID of X25519 (1034) would make OpenSSL peers read it as an X25519 u-coordinate.
+    public static final int CURVE_NID = 0xF255;
+
+    private static final BigInteger COFACTOR = BigInteger.valueOf(8);
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+    private static final BigInteger MONTGOMERY_A = BigInteger.valueOf(486662);
+
+    // Weierstrass x = Montgomery u + A/3
+    private static final int[] U_TO_X = Curve25519Field.fromBigInteger(MONTGOMERY_A.multiply(BigInteger.valueOf(3).modInverse(P)).mod(P));
+
+    private static final int A24 = 121665;
+    private static final int[] TWO_A = Curve25519Field.fromBigInteger(MONTGOMERY_A.shiftLeft(1));
+
+    // Exponents are reduced modulo the order of the whole curve, so the ladder always runs over this many bits
+    private static final int LADDER_BITS = 256;
+
+    private final BigInteger curveOrder;
+
+    public Curve25519Group() {
+        super(CURVE_NID);
+        this.curveOrder = getOrder().multiply(COFACTOR);
+    }
+
+    /**
+     * Generate a random multiple of the cofactor below the group order to be used as a secret.
+     * Raising any point of the curve to such a secret removes its small order component, so the secret of a mix node
+     * cannot be probed with points outside the prime order subgroup.
+     * @param random Source of the randomness.
+     * @return Multiple of the cofactor below the group order.
+     */
+    @Override
+    public BigInteger genSecret(RandomSource random) {
+        BigInteger lowerBound = BigInteger.ONE;
+        BigInteger upperBound = getOrder().subtract(BigInteger.ONE).divide(COFACTOR);
+        return Util.randomInRange(random, lowerBound, upperBound).multiply(COFACTOR);
+    }
+
+    /**
+     * Raise base to the power exp. Multiples of the generator use its comb table, other bases use the Montgomery ladder.
+     * @param base Base elliptic curve point.
+     * @param exp Exponent to raise base to.
+     * @return base to the power exp.
+     */
+    @Override
+    public ECPoint expon(ECPoint base, BigInteger exp) {
+        if (base == getGenerator()) {
+            return exponGenerator(exp);
+        }
+
+        if (exp.signum() < 0 || exp.bitLength() > LADDER_BITS) {
+            exp = exp.mod(curveOrder);
+        }
+
+        return ladderExpon(base, exp, Nat256.fromBigInteger(exp));
+    }
+
+    /**
+     * Convert an exponent to the words scanned by the Montgomery ladder.
+     * @param exp Exponent to convert.
+     * @return Converted exponent, to be passed to expon.
+     */
+    @Override
+    public PrecomputedExponent precomputeExponent(BigInteger exp) {
+        return new LadderExponent(exp.mod(curveOrder));
+    }
+
+    /**
+     * Raise base to the power of a converted exponent.
+     * @param base Base elliptic curve point.
+     * @param exp Exponent converted by precomputeExponent.
+     * @return base to the power exp.
+     */
+    @Override
+    public ECPoint expon(ECPoint base, PrecomputedExponent exp) {
+        if (base == getGenerator() || !(exp instanceof LadderExponent)) {
+            return expon(base, exp.getValue());
+        }
+
+        LadderExponent ladderExp = (LadderExponent) exp;
+
+        return ladderExpon(base, ladderExp.value, ladderExp.words);
+    }
+
+    private static ECPoint ladderExpon(ECPoint base, BigInteger exp, int[] words) {
+        ECPoint affine = base.normalize();
+        if (affine.isInfinity()) {
+            return affine;
+        }
+
+        int[] u = Nat256.create();
+        Curve25519Field.subtract(getWords(affine.getAffineXCoord()), U_TO_X, u);
+        int[] v = getWords(affine.getAffineYCoord());
+
+        int[] x2 = Nat256.create(), z2 = Nat256.create(), x3 = Nat256.create(), z3 = Nat256.create();
+        ladder(words, u, x2, z2, x3, z3);
+
+        int[] resultU = Nat256.create(), resultV = Nat256.create();
+        if (!recoverPoint(u, v, x2, z2, x3, z3, resultU, resultV)) {
+            // The multiple or the point after it is the point at infinity, or base has order two
+            return affine.multiply(exp);
+        }
+
+        int[] x = Nat256.create();
+        Curve25519Field.add(resultU, U_TO_X, x);
+
+        return affine.getCurve().createPoint(Nat256.toBigInteger(x), Nat256.toBigInteger(resultV));
+    }
+
+    private static int[] getWords(ECFieldElement element) {
+        return Nat256.fromBigInteger(element.toBigInteger());
+    }
+
+    // X25519 ladder of RFC 7748: (x2:z2) = k * (u, .) and (x3:z3) = (k + 1) * (u, .), in constant time
+    private static void ladder(int[] k, int[] u, int[] x2, int[] z2, int[] x3, int[] z3) {
+        int[] x1 = X25519Field.create();
+        X25519Field.decode(u, x1);
+
+        int[] fx2 = X25519Field.create(), fz2 = X25519Field.create(), fx3 = X25519Field.create(), fz3 = X25519Field.create();
+        int[] a = X25519Field.create(), aa = X25519Field.create(), b = X25519Field.create(), bb = X25519Field.create();
+        int[] c = X25519Field.create(), d = X25519Field.create(), e = X25519Field.create(), t = X25519Field.create();
+
+        X25519Field.one(fx2);
+        X25519Field.copy(x1, fx3);
+        X25519Field.one(fz3);
+
+        int swap = 0;
+        for (int i = LADDER_BITS - 1; i >= 0; i--) {
+            int bit = Nat256.getBit(k, i);
+            swap ^= bit;
+            X25519Field.conditionalSwap(swap, fx2, fx3);
+            X25519Field.conditionalSwap(swap, fz2, fz3);
+            swap = bit;
+
+            X25519Field.add(fx2, fz2, a);
+            X25519Field.square(a, aa);
+            X25519Field.subtract(fx2, fz2, b);
+            X25519Field.square(b, bb);
+            X25519Field.subtract(aa, bb, e);
+            X25519Field.add(fx3, fz3, c);
+            X25519Field.subtract(fx3, fz3, d);
+
+            // d = DA, c = CB
+            X25519Field.multiply(d, a, d);
+            X25519Field.multiply(c, b, c);
+
+            X25519Field.add(d, c, t);
+            X25519Field.square(t, fx3);
+            X25519Field.subtract(d, c, t);
+            X25519Field.square(t, t);
+            X25519Field.multiply(x1, t, fz3);
+
+            X25519Field.multiply(aa, bb, fx2);
+            X25519Field.multiply(e, A24, t);
+            X25519Field.add(aa, t, t);
+            X25519Field.multiply(e, t, fz2);
+        }
+
+        X25519Field.conditionalSwap(swap, fx2, fx3);
+        X25519Field.conditionalSwap(swap, fz2, fz3);
+
+        X25519Field.encode(fx2, x2);
+        X25519Field.encode(fz2, z2);
+        X25519Field.encode(fx3, x3);
+        X25519Field.encode(fz3, z3);
+    }
+
+    // Affine (u, v) of Q = (xq:zq) given P = (u, v) and Q + P = (xr:zr), or false if the result is undefined
+    private static boolean recoverPoint(int[] u, int[] v, int[] xq, int[] zq, int[] xr, int[] zr, int[] resultU, int[] resultV) {
+        int[] v1 = Nat256.create(), v2 = Nat256.create(), v3 = Nat256.create(), v4 = Nat256.create();
+
+        Curve25519Field.multiply(u, zq, v1);
+        Curve25519Field.add(xq, v1, v2);
+        Curve25519Field.subtract(xq, v1, v3);
+        Curve25519Field.square(v3, v3);
+        Curve25519Field.multiply(v3, xr, v3);
+        Curve25519Field.multiply(TWO_A, zq, v1);
+        Curve25519Field.add(v2, v1, v2);
+        Curve25519Field.multiply(u, xq, v4);
+        Curve25519Field.add(v4, zq, v4);
+        Curve25519Field.multiply(v2, v4, v2);
+        Curve25519Field.multiply(v1, zq, v1);
+        Curve25519Field.subtract(v2, v1, v2);
+        Curve25519Field.multiply(v2, zr, v2);
+
+        int[] y = Nat256.create();
+        Curve25519Field.subtract(v2, v3, y);
+
+        Curve25519Field.twice(v, v1);
+        Curve25519Field.multiply(v1, zq, v1);
+        Curve25519Field.multiply(v1, zr, v1);
+
+        int[] x = Nat256.create(), z = Nat256.create();
+        Curve25519Field.multiply(v1, xq, x);
+        Curve25519Field.multiply(v1, zq, z);
+
+        if (Nat256.isZero(z)) {
+            return false;
+        }
+
+        // z depends on the secret exponent, so it is inverted in constant time
+        int[] fz = X25519Field.create();
+        X25519Field.decode(z, fz);
+        X25519Field.invert(fz, fz);
+
+        int[] zInverse = Nat256.create();
+        X25519Field.encode(fz, zInverse);
+        Curve25519Field.multiply(x, zInverse, resultU);
+        Curve25519Field.multiply(y, zInverse, resultV);
+
+        return true;
+    }
+
+    private static class LadderExponent implements PrecomputedExponent {
+        final BigInteger value;
+        final int[] words;
+
+        LadderExponent(BigInteger value) {
+            this.value = value;
+            this.words = Nat256.fromBigInteger(value);
+        }
+
+        @Override
+        public BigInteger getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.SICBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+/**
+ * Class implementing a source of randomness that replays the AES-256-CTR keystream of a seed, for reproducible benchmarks
+ * and test vectors. Packets created with the same seed, in the same order and from a single thread, are byte for byte
+ * identical.
+ *
+ * This source must never be used to create packets sent over a real network: anyone knowing the seed can unlink them.
+ */
+public class DeterministicRandomSource implements RandomSource {
+    private final SICBlockCipher keystream;
+    private final byte[] zeroes = new byte[256];
+
+    /**
+     * Create a source of randomness replaying the keystream of a seed.
+     * @param seed Seed of any length, hashed into the AES key.
+     */
+    public DeterministicRandomSource(byte[] seed) {
+        SHA256Digest digest = new SHA256Digest();
+        byte[] key = new byte[digest.getDigestSize()];
+        digest.update(seed, 0, seed.length);
+        digest.doFinal(key, 0);
+
+        this.keystream = new SICBlockCipher(new AESEngine());
+        this.keystream.init(true, new ParametersWithIV(new KeyParameter(key), new byte[16]));
+    }
+
+    @Override
+    public synchronized void nextBytes(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            int chunk = Math.min(length, zeroes.length);
+            keystream.processBytes(zeroes, 0, chunk, bytes, offset);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+}
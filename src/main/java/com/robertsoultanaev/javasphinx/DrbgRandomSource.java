@@ -0,0 +1,126 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.prng.SP800SecureRandom;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class implementing the source of randomness with one NIST SP 800-90A CTR_DRBG (AES-256) per thread.
+ *
+ * Random bytes are handed out from a per-thread buffer that is refilled with a single request to the generator, so the
+ * threads never contend for a lock. The generators are seeded from a shared SecureRandom, and reseeded from it once they
+ * produced a given number of bytes or a given time has passed, whichever comes first.
+ */
+public class DrbgRandomSource implements RandomSource {
+    private static final int DEFAULT_BUFFER_LENGTH = 4096;
+    private static final long DEFAULT_RESEED_BYTES = 1L << 20;
+    private static final long DEFAULT_RESEED_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int SECURITY_STRENGTH = 256;
+
+    private static final DrbgRandomSource INSTANCE = new DrbgRandomSource();
+
+    // Only read when a generator is created or reseeded, so it is not contended
+    private final SecureRandom entropy;
+    private final int bufferLength;
+    private final long reseedBytes;
+    private final long reseedNanos;
+
+    private final ThreadLocal<Generator> generator = new ThreadLocal<Generator>() {
+        @Override
+        protected Generator initialValue() {
+            return new Generator();
+        }
+    };
+
+    /**
+     * Create a source of randomness with the default buffer size and reseeding interval.
+     */
+    public DrbgRandomSource() {
+        this(DEFAULT_BUFFER_LENGTH, DEFAULT_RESEED_BYTES, DEFAULT_RESEED_NANOS);
+    }
+
+    /**
+     * Create a source of randomness.
+     * @param bufferLength Number of bytes each thread takes from its generator at once.
+     * @param reseedBytes Number of bytes after which a generator is reseeded.
+     * @param reseedNanos Time in nanoseconds after which a generator is reseeded.
+     */
+    public DrbgRandomSource(int bufferLength, long reseedBytes, long reseedNanos) {
+        if (bufferLength < 1 || reseedBytes < 1 || reseedNanos < 1) {
+            throw new SphinxException("Buffer length (" + bufferLength + "), reseed bytes (" + reseedBytes + ") and reseed time (" + reseedNanos + ") must be positive");
+        }
+
+        this.entropy = new SecureRandom();
+        this.bufferLength = bufferLength;
+        this.reseedBytes = reseedBytes;
+        this.reseedNanos = reseedNanos;
+    }
+
+    /**
+     * Get the source of randomness shared by default by all Sphinx parameters and groups.
+     * @return Shared source of randomness.
+     */
+    public static DrbgRandomSource getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes, int offset, int length) {
+        Generator generator = this.generator.get();
+
+        while (length > 0) {
+            if (generator.position == generator.buffer.length) {
+                generator.refill();
+            }
+
+            int chunk = Math.min(length, generator.buffer.length - generator.position);
+            System.arraycopy(generator.buffer, generator.position, bytes, offset, chunk);
+            // Bytes that were handed out do not stay behind in the buffer
+            Arrays.fill(generator.buffer, generator.position, generator.position + chunk, (byte) 0);
+
+            generator.position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private class Generator {
+        final byte[] buffer;
+        int position;
+        SP800SecureRandom drbg;
+        long generated;
+        long seededAt;
+
+        Generator() {
+            this.buffer = new byte[bufferLength];
+            this.position = buffer.length;
+            seed();
+        }
+
+        void refill() {
+            if (generated >= reseedBytes || System.nanoTime() - seededAt >= reseedNanos) {
+                seed();
+            }
+
+            drbg.nextBytes(buffer);
+            generated += buffer.length;
+            position = 0;
+        }
+
+        private void seed() {
+            byte[] nonce = new byte[SECURITY_STRENGTH / 16];
+            entropy.nextBytes(nonce);
+
+            drbg = new SP800SecureRandomBuilder(entropy, false)
+                    .setSecurityStrength(SECURITY_STRENGTH)
+                    .setEntropyBitsRequired(SECURITY_STRENGTH)
+                    .buildCTR(new AESEngine(), SECURITY_STRENGTH, nonce, false);
+            generated = 0;
+            seededAt = System.nanoTime();
+        }
+    }
+}
@@ -1,28 +1,54 @@
 package com.robertsoultanaev.javasphinx;
 
-import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.math.ec.ECMultiplier;
 import org.bouncycastle.math.ec.ECPoint;
-import org.bouncycastle.jce.spec.ECParameterSpec;
-import org.bouncycastle.util.BigIntegers;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+import org.bouncycastle.math.ec.FixedPointUtil;
+import org.bouncycastle.math.ec.WNafPreCompInfo;
+import org.bouncycastle.math.ec.WNafUtil;
 
 import java.math.BigInteger;
-import java.security.SecureRandom;
 import java.util.List;
 
 /**
  * Class to represent an elliptic curve group and providing methods for cryptographic computations.
+ * The default group is secp224r1, computed with the BouncyCastle fixed-size field arithmetic for that curve.
  */
-public class ECCGroup {
+public class ECCGroup implements EllipticCurveGroup {
     public static String DEFAULT_CURVE_NAME = "secp224r1";
     public static int DEFAULT_CURVE_NID = 713;
 
+    // Width of the comb used for multiples of the generator: 2^8 precomputed points, 28 doublings per multiplication
+    private static final int GENERATOR_COMB_WIDTH = 8;
+
+    private final int curveNid;
     private final ECPoint generator;
     private final BigInteger order;
+    private final ECMultiplier fixedPointMultiplier;
 
     public ECCGroup() {
-        ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec(DEFAULT_CURVE_NAME);
-        generator = ecSpec.getG();
-        order = ecSpec.getN();
+        this(DEFAULT_CURVE_NID);
+    }
+
+    /**
+     * Create the group of one of the curves supported by Util.getCurveParameters.
+     * @param curveNid OpenSSL NID of the curve.
+     */
+    protected ECCGroup(int curveNid) {
+        X9ECParameters ecParameters = Util.getCurveParameters(curveNid);
+        this.curveNid = curveNid;
+        generator = ecParameters.getG();
+        order = ecParameters.getN();
+
+        // The comb table is attached to the generator point, so it is built once here and shared by all users of the group
+        FixedPointUtil.precompute(generator, GENERATOR_COMB_WIDTH);
+        fixedPointMultiplier = new FixedPointCombMultiplier();
+    }
+
+    @Override
+    public int getCurveNid() {
+        return curveNid;
     }
 
     /**
@@ -30,10 +56,18 @@ public class ECCGroup {
      * @return Number modulo the group order.
      */
     public BigInteger genSecret() {
-        SecureRandom secureRandom = new SecureRandom();
+        return genSecret(DrbgRandomSource.getInstance());
+    }
+
+    /**
+     * Generate a random number modulo the group order to be used as a secret.
+     * @param random Source of the randomness.
+     * @return Number modulo the group order.
+     */
+    public BigInteger genSecret(RandomSource random) {
         BigInteger lowerBound = BigInteger.ZERO;
         BigInteger upperBound = order.subtract(BigInteger.ONE);
-        return BigIntegers.createRandomInRange(lowerBound, upperBound, secureRandom);
+        return Util.randomInRange(random, lowerBound, upperBound);
     }
 
     /**
@@ -59,9 +93,72 @@ public class ECCGroup {
      * @return base to the power exp.
      */
     public ECPoint expon(ECPoint base, BigInteger exp) {
+        if (base == generator) {
+            return exponGenerator(exp);
+        }
+
         return base.multiply(exp);
     }
 
+    /**
+     * Recode an exponent into its width-w NAF, so that raising points to its power only costs the table of odd multiples
+     * of the base and the additions and doublings of the multiplication.
+     * @param exp Exponent to recode.
+     * @return Recoded exponent, to be passed to expon.
+     */
+    public PrecomputedExponent precomputeExponent(BigInteger exp) {
+        return new WNafExponent(exp.mod(order));
+    }
+
+    /**
+     * Raise base to the power of a recoded exponent.
+     * @param base Base elliptic curve point.
+     * @param exp Exponent recoded by precomputeExponent.
+     * @return base to the power exp.
+     */
+    public ECPoint expon(ECPoint base, PrecomputedExponent exp) {
+        if (base == generator || !(exp instanceof WNafExponent)) {
+            return expon(base, exp.getValue());
+        }
+
+        WNafExponent wnafExp = (WNafExponent) exp;
+        int[] wnaf = wnafExp.wnaf;
+        if (wnaf.length == 0 || base.isInfinity()) {
+            return base.getCurve().getInfinity();
+        }
+
+        WNafPreCompInfo preCompInfo = WNafUtil.precompute(base, wnafExp.width, true);
+        ECPoint[] preComp = preCompInfo.getPreComp();
+        ECPoint[] preCompNeg = preCompInfo.getPreCompNeg();
+
+        // Left to right over the compact NAF: each entry holds a digit in its high half and the number of zeroes after it in its low half
+        ECPoint result = null;
+        for (int i = wnaf.length - 1; i >= 0; i--) {
+            int digit = wnaf[i] >> 16;
+            int zeroes = wnaf[i] & 0xFFFF;
+            ECPoint addend = (digit < 0 ? preCompNeg : preComp)[Math.abs(digit) >>> 1];
+
+            result = result == null ? addend : result.twicePlus(addend);
+            result = result.timesPow2(zeroes);
+        }
+
+        return result;
+    }
+
+    /**
+     * Raise the generator of the group to the power exp, using the precomputed comb table of the generator.
+     * @param exp Exponent to raise the generator to.
+     * @return Generator to the power exp.
+     */
+    public ECPoint exponGenerator(BigInteger exp) {
+        // The comb only covers exponents up to the bit length of the group order
+        if (exp.signum() < 0 || exp.compareTo(order) >= 0) {
+            exp = exp.mod(order);
+        }
+
+        return fixedPointMultiplier.multiply(generator, exp);
+    }
+
     /**
      * Raise base to the power of each of the values in the exponents list.
      * @param base Base elliptic curve point.
@@ -74,7 +171,7 @@ public class ECCGroup {
             finalExponent = finalExponent.multiply(exponent).mod(order);
         }
 
-        return base.multiply(finalExponent);
+        return expon(base, finalExponent);
     }
 
     /**
@@ -98,4 +195,21 @@ public class ECCGroup {
         return alpha.getEncoded(false);
     }
 
+    private static class WNafExponent implements PrecomputedExponent {
+        final BigInteger value;
+        final int width;
+        final int[] wnaf;
+
+        WNafExponent(BigInteger value) {
+            this.value = value;
+            this.width = Math.max(2, Math.min(16, WNafUtil.getWindowSize(value.bitLength())));
+            this.wnaf = WNafUtil.generateCompactWindowNaf(width, value);
+        }
+
+        @Override
+        public BigInteger getValue() {
+            return value;
+        }
+    }
+
 }
@@ -0,0 +1,94 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * Interface to the prime order group used for the Diffie-Hellman key exchanges of Sphinx.
+ */
+public interface EllipticCurveGroup {
+    /**
+     * Get the identifier of the curve recorded in packed Sphinx packets.
+     * @return OpenSSL NID of the curve.
+     */
+    int getCurveNid();
+
+    /**
+     * Generate a random number modulo the group order to be used as a secret.
+     * @return Number modulo the group order.
+     */
+    BigInteger genSecret();
+
+    /**
+     * Generate a random number modulo the group order to be used as a secret.
+     * @param random Source of the randomness.
+     * @return Number modulo the group order.
+     */
+    BigInteger genSecret(RandomSource random);
+
+    /**
+     * Get the generator element of the group.
+     * @return Generator element of the group.
+     */
+    ECPoint getGenerator();
+
+    /**
+     * Get the order of the group.
+     * @return Order of the group.
+     */
+    BigInteger getOrder();
+
+    /**
+     * Raise base to the power exp.
+     * @param base Base elliptic curve point.
+     * @param exp Exponent to raise base to.
+     * @return base to the power exp.
+     */
+    ECPoint expon(ECPoint base, BigInteger exp);
+
+    /**
+     * Recode an exponent that is going to be used for many exponentiations.
+     * @param exp Exponent to recode.
+     * @return Recoded exponent, to be passed to expon.
+     */
+    PrecomputedExponent precomputeExponent(BigInteger exp);
+
+    /**
+     * Raise base to the power of a recoded exponent.
+     * @param base Base elliptic curve point.
+     * @param exp Exponent recoded by precomputeExponent.
+     * @return base to the power exp.
+     */
+    ECPoint expon(ECPoint base, PrecomputedExponent exp);
+
+    /**
+     * Raise the generator of the group to the power exp.
+     * @param exp Exponent to raise the generator to.
+     * @return Generator to the power exp.
+     */
+    ECPoint exponGenerator(BigInteger exp);
+
+    /**
+     * Raise base to the power of each of the values in the exponents list.
+     * @param base Base elliptic curve point.
+     * @param exponents List of exponents to raise base to.
+     * @return base raised to the power of each of the values in the exponents list.
+     */
+    ECPoint multiexpon(ECPoint base, List<BigInteger> exponents);
+
+    /**
+     * Convert the binary representation (unsigned) of a number into a BigInteger and take that number modulo the order of the group.
+     * @param data Binary representation (unsigned) of a number.
+     * @return Number modulo the group size.
+     */
+    BigInteger makeexp(byte[] data);
+
+    /**
+     * Encode given ECPoint to a binary representation.
+     * @param alpha Elliptic curve point.
+     * @return Binary representation of alpha.
+     */
+    byte[] printable(ECPoint alpha);
+}
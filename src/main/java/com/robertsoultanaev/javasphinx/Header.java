@@ -3,16 +3,80 @@ package com.robertsoultanaev.javasphinx;
 import org.bouncycastle.math.ec.ECPoint;
 
 /**
- * Class to represent the header of a Sphinx packet
+ * Class to represent the header of a Sphinx packet.
+ * Headers of unpacked packets hold the compressed encoding of alpha and only decompress it when the point is needed,
+ * so that packets can be checked and rejected without paying for the decompression.
  */
 public class Header {
-    public final ECPoint alpha;
     public final byte[] beta;
     public final byte[] gamma;
 
+    private final int curveNid;
+    private volatile ECPoint alpha;
+    private volatile byte[] encodedAlpha;
+
     public Header(ECPoint alpha, byte[] beta, byte[] gamma) {
+        this.curveNid = Util.getCurveNid(alpha.getCurve());
         this.alpha = alpha;
         this.beta = beta;
         this.gamma = gamma;
     }
+
+    /**
+     * Create a header from the compressed encoding of alpha, which is decoded on first use.
+     * @param curveNid OpenSSL NID of the curve of alpha.
+     * @param encodedAlpha Compressed encoding of alpha.
+     * @param beta Encrypted routing information.
+     * @param gamma MAC of beta.
+     */
+    public Header(int curveNid, byte[] encodedAlpha, byte[] beta, byte[] gamma) {
+        // Rejects unsupported curves up front
+        Util.getCurveParameters(curveNid);
+
+        this.curveNid = curveNid;
+        this.encodedAlpha = encodedAlpha;
+        this.beta = beta;
+        this.gamma = gamma;
+    }
+
+    /**
+     * Get the curve of alpha, without decoding it.
+     * @return OpenSSL NID of the curve of alpha.
+     */
+    public int getCurveNid() {
+        return curveNid;
+    }
+
+    /**
+     * Get alpha, decoding it on the first call if the header was created from its encoding.
+     * @return Group element of the header.
+     */
+    public ECPoint getAlpha() {
+        ECPoint alpha = this.alpha;
+        if (alpha == null) {
+            try {
+                alpha = Util.decodeECPoint(curveNid, encodedAlpha);
+            } catch (IllegalArgumentException ex) {
+                throw new SphinxException("Invalid encoding of alpha: " + ex.getMessage());
+            }
+
+            this.alpha = alpha;
+        }
+
+        return alpha;
+    }
+
+    /**
+     * Get the compressed encoding of alpha, encoding it on the first call if the header was created from the point.
+     * @return Compressed encoding of alpha.
+     */
+    public byte[] getEncodedAlpha() {
+        byte[] encodedAlpha = this.encodedAlpha;
+        if (encodedAlpha == null) {
+            encodedAlpha = alpha.getEncoded(true);
+            this.encodedAlpha = encodedAlpha;
+        }
+
+        return encodedAlpha;
+    }
 }
@@ -6,9 +6,33 @@ package com.robertsoultanaev.javasphinx;
 public class HeaderAndSecrets {
     public final Header header;
     public final byte[][] secrets;
+    public final HopKeys[] hopKeys;
 
     public HeaderAndSecrets(Header header, byte[][] secrets) {
+        this(header, secrets, null);
+    }
+
+    public HeaderAndSecrets(Header header, byte[][] secrets, HopKeys[] hopKeys) {
         this.header = header;
         this.secrets = secrets;
+        this.hopKeys = hopKeys;
+    }
+
+    /**
+     * Get the keys derived from each of the secrets, deriving them if they were not provided.
+     * @param params Sphinx parameters.
+     * @return Keys derived from each of the secrets.
+     */
+    public HopKeys[] getHopKeys(SphinxParams params) {
+        if (hopKeys != null) {
+            return hopKeys;
+        }
+
+        HopKeys[] derived = new HopKeys[secrets.length];
+        for (int i = 0; i < secrets.length; i++) {
+            derived[i] = params.deriveHopKeys(secrets[i]);
+        }
+
+        return derived;
     }
 }
@@ -0,0 +1,123 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Class to keep headers of forward messages for a route ready ahead of time, so that sending a message only costs the
+ * encryption of its payload.
+ *
+ * The public key operations of a header only depend on the route, so headers are created on background threads and
+ * handed out once each. Whenever the number of ready headers drops below the low watermark, the pool is refilled up to
+ * its capacity. If the pool runs dry, the header is created on the calling thread.
+ */
+public class HeaderPool {
+    private final SphinxParams params;
+    private final byte[][] nodelist;
+    private final ECPoint[] keys;
+    private final NodeKeyCache nodeKeyCache;
+    private final BackgroundPool<HeaderAndSecrets> pool;
+
+    /**
+     * Create a pool for a route, with its own background thread.
+     * @param params Sphinx parameters.
+     * @param nodelist List of encoded mix node identifiers of the route.
+     * @param keys List of the corresponding public keys of the mix nodes in nodelist.
+     * @param lowWatermark Number of ready headers below which the pool is refilled.
+     * @param capacity Number of headers the pool is filled up to.
+     */
+    public HeaderPool(SphinxParams params, byte[][] nodelist, ECPoint[] keys, int lowWatermark, int capacity) {
+        this(params, nodelist, keys, null, lowWatermark, capacity, BackgroundPool.newDaemonExecutor("sphinx-header-pool"), true);
+    }
+
+    /**
+     * Create a pool for a route, creating headers on the given executor, which can be shared between the pools of several routes.
+     * @param params Sphinx parameters.
+     * @param nodelist List of encoded mix node identifiers of the route.
+     * @param keys List of the corresponding public keys of the mix nodes in nodelist.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @param lowWatermark Number of ready headers below which the pool is refilled.
+     * @param capacity Number of headers the pool is filled up to.
+     * @param executor Executor creating the headers in the background.
+     */
+    public HeaderPool(SphinxParams params, byte[][] nodelist, ECPoint[] keys, NodeKeyCache nodeKeyCache, int lowWatermark, int capacity, ExecutorService executor) {
+        this(params, nodelist, keys, nodeKeyCache, lowWatermark, capacity, executor, false);
+    }
+
+    private HeaderPool(SphinxParams params, byte[][] nodelist, ECPoint[] keys, NodeKeyCache nodeKeyCache, int lowWatermark, int capacity, ExecutorService executor, boolean ownsExecutor) {
+        if (nodelist.length != keys.length || nodelist.length == 0) {
+            throw new SphinxException("Route needs as many node keys (" + keys.length + ") as nodes (" + nodelist.length + "), and at least one node");
+        }
+
+        this.params = params;
+        this.nodelist = nodelist.clone();
+        this.keys = keys.clone();
+        this.nodeKeyCache = nodeKeyCache;
+        this.pool = new BackgroundPool<HeaderAndSecrets>(lowWatermark, capacity, executor, ownsExecutor) {
+            @Override
+            HeaderAndSecrets create() {
+                return SphinxClient.createForwardHeader(HeaderPool.this.params, HeaderPool.this.nodelist, HeaderPool.this.keys, HeaderPool.this.nodeKeyCache);
+            }
+        };
+
+        pool.refill();
+    }
+
+    /**
+     * Take a header out of the pool, creating it on the calling thread if none is ready.
+     * Each header is handed out only once.
+     * @return Header of a forward message for the route and the secrets shared with its mix nodes.
+     */
+    public HeaderAndSecrets take() {
+        return pool.take();
+    }
+
+    /**
+     * Create a forward message for the route with a header from the pool, which only encrypts the payload.
+     * @param destinationAndMessage Final destination and the data payload of the Sphinx packet.
+     * @return Header and payload of a Sphinx packet encrypted in a nested manner.
+     */
+    public HeaderAndDelta createForwardMessage(DestinationAndMessage destinationAndMessage) {
+        return SphinxClient.createForwardMessage(params, take(), destinationAndMessage);
+    }
+
+    /**
+     * Get the number of headers ready to be taken.
+     * @return Number of ready headers.
+     */
+    public int getReadyCount() {
+        return pool.getReadyCount();
+    }
+
+    /**
+     * Get the number of headers that had to be created on the calling thread because the pool was empty.
+     * @return Number of headers not served from the pool.
+     */
+    public long getMissCount() {
+        return pool.getMissCount();
+    }
+
+    /**
+     * Get the number of headers that failed to be created in the background, for instance because the route is invalid.
+     * @return Number of failed background creations.
+     */
+    public long getFailureCount() {
+        return pool.getFailureCount();
+    }
+
+    /**
+     * Get the reason the last background creation failed.
+     * @return Last failure of the background creation, or null if none failed.
+     */
+    public RuntimeException getLastFailure() {
+        return pool.getLastFailure();
+    }
+
+    /**
+     * Stop the background thread of the pool, if the pool created its own. Headers still in the pool can be taken.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,22 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.math.BigInteger;
+
+/**
+ * Type to combine the keys derived from the shared secret of a single hop
+ */
+public class HopKeys {
+    public final byte[] rho;
+    public final byte[] mu;
+    public final byte[] pi;
+    public final byte[] tau;
+    public final BigInteger b;
+
+    public HopKeys(byte[] rho, byte[] mu, byte[] pi, byte[] tau, BigInteger b) {
+        this.rho = rho;
+        this.mu = mu;
+        this.pi = pi;
+        this.tau = tau;
+        this.b = b;
+    }
+}
@@ -0,0 +1,162 @@
+package com.robertsoultanaev.javasphinx;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Class implementing the symmetric primitives with the standard JCA algorithms "AES/CTR/NoPadding", "HmacSHA256" and "SHA-256".
+ * On HotSpot these are backed by the AES-NI, CTR and SHA intrinsics where the processor supports them.
+ * Each thread keeps the last key of every algorithm, so that a key used several times in a row is only set up once.
+ */
+public class JcaCryptoBackend implements CryptoBackend {
+    private static final int BLOCK_SIZE = 16;
+
+    private final ThreadLocal<Context> context = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            try {
+                return new Context();
+            } catch (GeneralSecurityException e) {
+                throw new SphinxException("Failed to instantiate the JCA algorithms: " + e.getMessage());
+            }
+        }
+    };
+
+    @Override
+    public void aesCtr(byte[] key, byte[] iv, long position, byte[] data, int offset, int length) {
+        Context context = this.context.get();
+        byte[] counter = context.counter;
+
+        Util.counterBlock(iv, position, counter);
+
+        try {
+            // The counter needs a new init, but the provider keeps the key schedule of an unchanged key
+            context.cipher.init(Cipher.ENCRYPT_MODE, context.aesKey(key), new IvParameterSpec(counter));
+
+            int skip = (int) (position % BLOCK_SIZE);
+            if (skip != 0) {
+                context.cipher.update(context.scratch, 0, skip, context.scratch, 0);
+            }
+
+            context.cipher.update(data, offset, length, data, offset);
+        } catch (GeneralSecurityException e) {
+            throw new SphinxException("AES-CTR failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void aesCtrKeystreams(byte[] key, byte[][] ivs, byte[][] outputs) {
+        Context context = this.context.get();
+
+        int blockCount = 0;
+        for (byte[] output : outputs) {
+            blockCount += (output.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+
+        if (context.counterBlocks.length < blockCount * BLOCK_SIZE) {
+            context.counterBlocks = new byte[blockCount * BLOCK_SIZE];
+        }
+        byte[] blocks = context.counterBlocks;
+
+        // The counter blocks of all the keystreams are encrypted in one ECB call under a single key setup
+        int position = 0;
+        for (int i = 0; i < outputs.length; i++) {
+            for (int j = 0; j < outputs[i].length; j += BLOCK_SIZE) {
+                Util.counterBlock(ivs[i], j, context.counter);
+                System.arraycopy(context.counter, 0, blocks, position, BLOCK_SIZE);
+                position += BLOCK_SIZE;
+            }
+        }
+
+        try {
+            // doFinal leaves the cipher initialised with its key, so it is only initialised again for another key. The key
+            // is forgotten while the cipher runs, so that a failure half way forces a new init.
+            byte[] ecbKey = Arrays.equals(key, context.ecbKey) ? context.ecbKey : null;
+            context.ecbKey = null;
+            if (ecbKey == null) {
+                context.ecbCipher.init(Cipher.ENCRYPT_MODE, context.aesKey(key));
+                ecbKey = key.clone();
+            }
+
+            context.ecbCipher.doFinal(blocks, 0, position, blocks, 0);
+            context.ecbKey = ecbKey;
+        } catch (GeneralSecurityException e) {
+            throw new SphinxException("AES-CTR failed: " + e.getMessage());
+        }
+
+        position = 0;
+        for (byte[] output : outputs) {
+            System.arraycopy(blocks, position, output, 0, output.length);
+            position += (output.length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        }
+    }
+
+    @Override
+    public void hmacSha256(byte[] key, byte[] data, int offset, int length, byte[] output) {
+        Context context = this.context.get();
+        Mac mac = context.mac;
+
+        try {
+            // doFinal resets the MAC to its key, so it is only initialised again for another key. As for the cipher, the
+            // key is forgotten while the MAC runs.
+            byte[] macKey = Arrays.equals(key, context.macKey) ? context.macKey : null;
+            context.macKey = null;
+            if (macKey == null) {
+                mac.init(new SecretKeySpec(key, "HmacSHA256"));
+                macKey = key.clone();
+            }
+
+            mac.update(data, offset, length);
+            mac.doFinal(output, 0);
+            context.macKey = macKey;
+        } catch (GeneralSecurityException e) {
+            throw new SphinxException("HMAC-SHA256 failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void sha256(byte[] data, int offset, int length, byte[] suffix, byte[] output) {
+        MessageDigest digest = context.get().digest;
+
+        try {
+            digest.update(data, offset, length);
+            digest.update(suffix);
+            digest.digest(output, 0, output.length);
+        } catch (GeneralSecurityException e) {
+            throw new SphinxException("SHA-256 failed: " + e.getMessage());
+        }
+    }
+
+    private static class Context {
+        final Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        final Cipher ecbCipher = Cipher.getInstance("AES/ECB/NoPadding");
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final byte[] counter = new byte[BLOCK_SIZE];
+        final byte[] scratch = new byte[BLOCK_SIZE];
+        byte[] counterBlocks = new byte[8 * BLOCK_SIZE];
+
+        // Last keys, or null if the algorithm has to be initialised
+        byte[] aesKeyBytes;
+        SecretKeySpec aesKey;
+        byte[] ecbKey;
+        byte[] macKey;
+
+        Context() throws GeneralSecurityException {
+        }
+
+        SecretKeySpec aesKey(byte[] key) {
+            if (!Arrays.equals(key, aesKeyBytes)) {
+                aesKey = new SecretKeySpec(key, "AES");
+                aesKeyBytes = key.clone();
+            }
+
+            return aesKey;
+        }
+    }
+}
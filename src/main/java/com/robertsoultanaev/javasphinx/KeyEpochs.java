@@ -0,0 +1,142 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class to hold the key epochs of a mix node that are valid at the same time, so that keys can be rotated without
+ * restarting the node. Each epoch has its own replay filter, and expiring an epoch drops its filter as a whole, so the
+ * replay state stays bounded by the epochs that are still valid. The filters of the epochs must not rotate: a packet is
+ * accepted for as long as its epoch is valid, so its tag must be remembered for that long too. A full filter rejects
+ * the packets of its epoch until the epoch is expired.
+ *
+ * Packets are tried against the current epoch first and then against the older ones, newest first.
+ * Lookups do not lock, and epochs can be added and expired while packets are processed.
+ */
+public class KeyEpochs {
+    private static final Epoch[] NO_EPOCHS = new Epoch[0];
+
+    // Newest epoch first, replaced as a whole on every change
+    private volatile Epoch[] epochs;
+
+    /**
+     * Create a set of key epochs without any epochs.
+     */
+    public KeyEpochs() {
+        this.epochs = NO_EPOCHS;
+    }
+
+    /**
+     * Create a set of key epochs holding a single epoch, for mix nodes that do not rotate their key.
+     * @param key Mix node's private key.
+     * @param replayFilter Filter recording the tags of processed packets, or null to skip the replay check.
+     * @return Key epochs holding the key as epoch 0.
+     */
+    static KeyEpochs single(SphinxNodeKey key, ReplayFilter replayFilter) {
+        KeyEpochs epochs = new KeyEpochs();
+        epochs.addEpoch(0, key, replayFilter);
+
+        return epochs;
+    }
+
+    /**
+     * Add an epoch, which becomes the current epoch.
+     * @param id Identifier of the epoch.
+     * @param key Mix node's private key of the epoch.
+     * @param replayFilter Filter recording the tags of the packets processed in the epoch, which must not rotate, or null
+     *                     to skip the replay check.
+     */
+    public void add(long id, SphinxNodeKey key, ReplayFilter replayFilter) {
+        if (replayFilter != null && replayFilter.isRotating()) {
+            throw new SphinxException("Replay filter of epoch " + id + " must not rotate, or it would forget tags of valid packets");
+        }
+
+        addEpoch(id, key, replayFilter);
+    }
+
+    // Single key nodes have no epoch to expire, so their filter may rotate
+    private synchronized void addEpoch(long id, SphinxNodeKey key, ReplayFilter replayFilter) {
+        Epoch[] current = epochs;
+        if (indexOf(current, id) >= 0) {
+            throw new SphinxException("Epoch " + id + " already exists");
+        }
+
+        Epoch[] updated = new Epoch[current.length + 1];
+        updated[0] = new Epoch(id, key, replayFilter);
+        System.arraycopy(current, 0, updated, 1, current.length);
+
+        epochs = updated;
+    }
+
+    /**
+     * Expire an epoch: its key is no longer used and its replay filter is dropped.
+     * @param id Identifier of the epoch.
+     * @return True if the epoch existed, false otherwise.
+     */
+    public synchronized boolean expire(long id) {
+        Epoch[] current = epochs;
+        int index = indexOf(current, id);
+        if (index < 0) {
+            return false;
+        }
+
+        Epoch[] updated = new Epoch[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+
+        epochs = updated;
+
+        return true;
+    }
+
+    /**
+     * Get the current epoch.
+     * @return The most recently added epoch that has not expired, or null if there is none.
+     */
+    public Epoch getCurrent() {
+        Epoch[] current = epochs;
+        return current.length == 0 ? null : current[0];
+    }
+
+    /**
+     * Get the valid epochs.
+     * @return The epochs that have not expired, newest first.
+     */
+    public List<Epoch> getEpochs() {
+        return Collections.unmodifiableList(Arrays.asList(epochs));
+    }
+
+    /**
+     * Get the valid epochs, newest first, without copying them. The array must not be modified.
+     * @return The epochs that have not expired, newest first.
+     */
+    Epoch[] snapshot() {
+        return epochs;
+    }
+
+    private static int indexOf(Epoch[] epochs, long id) {
+        for (int i = 0; i < epochs.length; i++) {
+            if (epochs[i].id == id) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Key and replay filter of a single epoch.
+     */
+    public static final class Epoch {
+        public final long id;
+        public final SphinxNodeKey key;
+        public final ReplayFilter replayFilter;
+
+        Epoch(long id, SphinxNodeKey key, ReplayFilter replayFilter) {
+            this.id = id;
+            this.key = key;
+            this.replayFilter = replayFilter;
+        }
+    }
+}
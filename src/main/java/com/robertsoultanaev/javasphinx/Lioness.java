@@ -0,0 +1,108 @@
+package com.robertsoultanaev.javasphinx;
+
+/**
+ * Class implementing the Lioness wide-block cipher in place on a region of a caller-supplied buffer.
+ * The hash input is streamed from the buffer and the round buffers are kept per thread,
+ * so encrypting or decrypting does not copy the message.
+ */
+final class Lioness {
+    private static final byte ROUND_ONE_FLAVOR = '1';
+    private static final byte ROUND_THREE_FLAVOR = '3';
+
+    private static final ThreadLocal<Context> CONTEXT = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    private Lioness() {
+    }
+
+    /**
+     * Encrypt the region [offset, offset + length) of data in place.
+     * @param backend Symmetric primitives to use.
+     * @param key Lioness key, its length is the length of the short half of the message.
+     * @param data Buffer holding the message.
+     * @param offset Start of the message in data.
+     * @param length Length of the message, at least twice the key length.
+     */
+    static void encrypt(CryptoBackend backend, byte[] key, byte[] data, int offset, int length) {
+        Context context = CONTEXT.get();
+        context.init(key);
+
+        // Round 1
+        context.hashRound(backend, data, offset, length, ROUND_ONE_FLAVOR);
+
+        // Round 2
+        context.keystreamRound(backend, data, offset, length);
+
+        // Round 3
+        context.hashRound(backend, data, offset, length, ROUND_THREE_FLAVOR);
+
+        // Round 4
+        context.keystreamRound(backend, data, offset, length);
+    }
+
+    /**
+     * Decrypt the region [offset, offset + length) of data in place.
+     * @param backend Symmetric primitives to use.
+     * @param key Lioness key, its length is the length of the short half of the message.
+     * @param data Buffer holding the message.
+     * @param offset Start of the message in data.
+     * @param length Length of the message, at least twice the key length.
+     */
+    static void decrypt(CryptoBackend backend, byte[] key, byte[] data, int offset, int length) {
+        Context context = CONTEXT.get();
+        context.init(key);
+
+        // Round 4
+        context.keystreamRound(backend, data, offset, length);
+
+        // Round 3
+        context.hashRound(backend, data, offset, length, ROUND_THREE_FLAVOR);
+
+        // Round 2
+        context.keystreamRound(backend, data, offset, length);
+
+        // Round 1
+        context.hashRound(backend, data, offset, length, ROUND_ONE_FLAVOR);
+    }
+
+    private static class Context {
+        final byte[] hashOutput = new byte[32];
+        byte[] key;
+        byte[] keyAndFlavor;
+        byte[] iv;
+
+        void init(byte[] key) {
+            int k = key.length;
+
+            if (iv == null || iv.length != k) {
+                keyAndFlavor = new byte[k + 1];
+                iv = new byte[k];
+            }
+
+            System.arraycopy(key, 0, keyAndFlavor, 0, k);
+            this.key = key;
+        }
+
+        // Short half ^= AES-CTR(key, iv = SHA-256(long half || key || flavor))
+        void hashRound(CryptoBackend backend, byte[] data, int offset, int length, byte flavor) {
+            int k = key.length;
+
+            keyAndFlavor[k] = flavor;
+            backend.sha256(data, offset + k, length - k, keyAndFlavor, hashOutput);
+            System.arraycopy(hashOutput, 0, iv, 0, k);
+            backend.aesCtr(key, iv, 0, data, offset, k);
+        }
+
+        // Long half ^= AES-CTR(key, iv = short half)
+        void keystreamRound(CryptoBackend backend, byte[] data, int offset, int length) {
+            int k = key.length;
+
+            System.arraycopy(data, offset, iv, 0, k);
+            backend.aesCtr(key, iv, 0, data, offset + k, length - k);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECMultiplier;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointCombMultiplier;
+import org.bouncycastle.math.ec.FixedPointUtil;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class to cache precomputed comb tables for the public keys of mix nodes, so that clients routing many packets
+ * through the same nodes only pay for a full scalar multiplication the first time a node key is used.
+ * Lookups do not lock, and the least recently used keys are evicted once the cache holds more than the maximum number of keys.
+ * Each use files the entry under the time of its use in a skip list, so the least recently used entry is found in
+ * logarithmic time, and a single thread at a time evicts entries until the cache is back to its maximum size.
+ */
+public class NodeKeyCache {
+    // 2^6 precomputed points per node key, 38 doublings per multiplication
+    private static final int NODE_KEY_COMB_WIDTH = 6;
+
+    private final EllipticCurveGroup group;
+    private final ECMultiplier fixedPointMultiplier;
+    private final int maxEntries;
+    private final ConcurrentHashMap<ECPoint, Entry> entries;
+    // Entries by the time of their last use, oldest first. An entry can briefly also be filed under an older time.
+    private final ConcurrentSkipListMap<Long, Entry> usage;
+    private final AtomicLong clock;
+
+    /**
+     * Create a cache of node keys.
+     * @param group Group the node keys belong to.
+     * @param maxEntries Maximum number of node keys to hold precomputed tables for.
+     */
+    public NodeKeyCache(EllipticCurveGroup group, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new SphinxException("Maximum number of entries (" + maxEntries + ") must be positive");
+        }
+
+        this.group = group;
+        this.fixedPointMultiplier = new FixedPointCombMultiplier();
+        this.maxEntries = maxEntries;
+        this.entries = new ConcurrentHashMap<ECPoint, Entry>();
+        this.usage = new ConcurrentSkipListMap<Long, Entry>();
+        this.clock = new AtomicLong();
+    }
+
+    /**
+     * Raise a node key to the power exp, precomputing and caching a table for the key if it is not cached yet.
+     * @param key Public key of a mix node.
+     * @param exp Exponent to raise key to.
+     * @return key to the power exp.
+     */
+    public ECPoint expon(ECPoint key, BigInteger exp) {
+        Entry entry = entries.get(key);
+        boolean added = false;
+
+        if (entry == null) {
+            Entry created = new Entry(key, precompute(key));
+            entry = entries.putIfAbsent(key, created);
+
+            if (entry == null) {
+                entry = created;
+                added = true;
+            }
+        }
+
+        touch(entry);
+        if (added && entries.size() > maxEntries) {
+            evict();
+        }
+
+        // The comb only covers exponents up to the bit length of the group order
+        BigInteger order = group.getOrder();
+        if (exp.signum() < 0 || exp.compareTo(order) >= 0) {
+            exp = exp.mod(order);
+        }
+
+        return fixedPointMultiplier.multiply(entry.point, exp);
+    }
+
+    /**
+     * Get the number of node keys currently cached.
+     * @return Number of node keys currently cached.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private ECPoint precompute(ECPoint key) {
+        // Attach the table to a private copy of the point, so that it lives exactly as long as the cache entry
+        ECPoint normalized = key.normalize();
+        ECCurve curve = normalized.getCurve();
+        ECPoint point = curve.createPoint(normalized.getAffineXCoord().toBigInteger(), normalized.getAffineYCoord().toBigInteger());
+
+        FixedPointUtil.precompute(point, NODE_KEY_COMB_WIDTH);
+
+        return point;
+    }
+
+    private void touch(Entry entry) {
+        long now = clock.incrementAndGet();
+        long previous = entry.lastUsed.getAndSet(now);
+
+        usage.put(now, entry);
+        if (previous != 0) {
+            usage.remove(previous);
+        }
+    }
+
+    private void evict() {
+        synchronized (usage) {
+            while (entries.size() > maxEntries) {
+                Map.Entry<Long, Entry> oldest = usage.pollFirstEntry();
+                if (oldest == null) {
+                    return;
+                }
+
+                // Times an entry was used before its last use, or after it was evicted, are dropped on the way
+                Entry entry = oldest.getValue();
+                if (entry.lastUsed.get() == oldest.getKey()) {
+                    entries.remove(entry.key, entry);
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final ECPoint key;
+        final ECPoint point;
+        // Time of the last use, 0 until the entry is first used
+        final AtomicLong lastUsed;
+
+        Entry(ECPoint key, ECPoint point) {
+            this.key = key;
+            this.point = point;
+            this.lastUsed = new AtomicLong();
+        }
+    }
+}
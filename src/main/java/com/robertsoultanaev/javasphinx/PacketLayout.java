@@ -0,0 +1,319 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Offsets of the fields of a packed Sphinx packet, as written by SphinxClient.packMessage:
+ * [[headerLength, bodyLength], [[ext 2 [curveNid, bin alpha], bin beta, bin gamma], bin delta]],
+ * or by CompactPacketFormat, whose fields sit at fixed offsets.
+ * The msgpack framing is parsed directly from a byte array or a ByteBuffer without copying any field. Offsets are
+ * indices into the parsed array or buffer. A layout is filled in again by every call to parse, so that one instance can
+ * be reused for many packets.
+ */
+final class PacketLayout {
+    private static final byte ALPHA_EXTENSION_TYPE = 2;
+
+    int headerLength;
+    int bodyLength;
+    int curveNid;
+    int alphaOffset;
+    int alphaLength;
+    int betaOffset;
+    int betaLength;
+    int gammaOffset;
+    int gammaLength;
+    int deltaOffset;
+    int deltaLength;
+
+    // End of the parsed packet
+    int end;
+
+    // Source of the parser, position of the parser in it and the end of the region being parsed
+    private byte[] data;
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+
+    /**
+     * Parse the packet in the region [offset, offset + length) of data.
+     * @param data Buffer holding the packet.
+     * @param offset Start of the packet in data.
+     * @param length Length of the packet.
+     */
+    void parse(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new SphinxException("Packet region [" + offset + ", " + (offset + length) + ") is outside of the buffer");
+        }
+
+        this.data = data;
+        try {
+            parse(offset, offset + length);
+        } finally {
+            this.data = null;
+        }
+
+        if (end != offset + length) {
+            throw new SphinxException("Packet has " + (offset + length - end) + " trailing bytes");
+        }
+    }
+
+    /**
+     * Parse the packet starting at the position of a buffer, which may be followed by other data before the limit of the buffer.
+     * The position of the buffer is not changed.
+     * @param buffer Buffer holding the packet.
+     */
+    void parse(ByteBuffer buffer) {
+        this.buffer = buffer;
+        try {
+            parse(buffer.position(), buffer.limit());
+        } finally {
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * Parse the packet in the region [offset, offset + length) of data, which is either in the msgpack format or in one
+     * of the given compact formats.
+     * @param formats Compact formats accepted next to the msgpack format.
+     * @param data Buffer holding the packet.
+     * @param offset Start of the packet in data.
+     * @param length Length of the packet.
+     */
+    void parse(CompactPacketFormat[] formats, byte[] data, int offset, int length) {
+        if (offset < 0 || length <= 0 || offset + length > data.length) {
+            throw new SphinxException("Packet region [" + offset + ", " + (offset + length) + ") is outside of the buffer");
+        }
+
+        CompactPacketFormat format = CompactPacketFormat.detect(data[offset], formats);
+        if (format == null) {
+            parse(data, offset, length);
+        } else {
+            parse(format, data, offset, length);
+        }
+    }
+
+    /**
+     * Fill in the layout of the packet in the compact format in the region [offset, offset + length) of data.
+     * @param format Compact format the packet was packed with.
+     * @param data Buffer holding the packet.
+     * @param offset Start of the packet in data.
+     * @param length Length of the packet.
+     */
+    void parse(CompactPacketFormat format, byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new SphinxException("Packet region [" + offset + ", " + (offset + length) + ") is outside of the buffer");
+        }
+
+        if (length != format.getPacketLength()) {
+            throw new SphinxException("Length of the packet (" + length + ") did not match the length of the compact format (" + format.getPacketLength() + ")");
+        }
+
+        parseCompact(format, data[offset], offset);
+    }
+
+    /**
+     * Fill in the layout of the packet in the compact format starting at the position of a buffer.
+     * The position of the buffer is not changed.
+     * @param format Compact format the packet was packed with.
+     * @param buffer Buffer holding the packet.
+     */
+    void parse(CompactPacketFormat format, ByteBuffer buffer) {
+        if (buffer.remaining() < format.getPacketLength()) {
+            throw new TruncatedPacketException("Packet is truncated");
+        }
+
+        parseCompact(format, buffer.get(buffer.position()), buffer.position());
+    }
+
+    // Fields of the compact format follow the profile id at fixed offsets
+    private void parseCompact(CompactPacketFormat format, byte profileId, int start) {
+        if ((profileId & 0xff) != format.getProfileId()) {
+            throw new SphinxException("Expected a packet of profile " + format.getProfileId() + ", found " + (profileId & 0xff));
+        }
+
+        SphinxParams params = format.getParams();
+        headerLength = params.getHeaderLength();
+        bodyLength = params.getBodyLength();
+        curveNid = params.getGroup().getCurveNid();
+
+        alphaOffset = start + 1;
+        alphaLength = format.getAlphaLength();
+        betaOffset = alphaOffset + alphaLength;
+        betaLength = headerLength - 32;
+        gammaOffset = betaOffset + betaLength;
+        gammaLength = params.getKeyLength();
+        deltaOffset = gammaOffset + gammaLength;
+        deltaLength = bodyLength;
+
+        end = deltaOffset + deltaLength;
+    }
+
+    private void parse(int start, int limit) {
+        this.position = start;
+        this.limit = limit;
+
+        expectArray(2);
+        expectArray(2);
+        headerLength = readInt();
+        bodyLength = readInt();
+        expectArray(2);
+        expectArray(3);
+
+        int alphaExtensionLength = readExtensionHeader(ALPHA_EXTENSION_TYPE);
+        int alphaExtensionEnd = position + alphaExtensionLength;
+        expectArray(2);
+        curveNid = readInt();
+        alphaLength = readBinaryHeader();
+        alphaOffset = skip(alphaLength);
+        if (position != alphaExtensionEnd) {
+            throw new SphinxException("Length of the alpha extension (" + alphaExtensionLength + ") did not match its contents");
+        }
+
+        betaLength = readBinaryHeader();
+        betaOffset = skip(betaLength);
+        gammaLength = readBinaryHeader();
+        gammaOffset = skip(gammaLength);
+        deltaLength = readBinaryHeader();
+        deltaOffset = skip(deltaLength);
+
+        end = position;
+    }
+
+    /**
+     * Check that the packet was packed with the given parameters.
+     * @param params Sphinx parameters.
+     */
+    void check(SphinxParams params) {
+        if (headerLength != params.getHeaderLength() || bodyLength != params.getBodyLength()) {
+            throw new SphinxException("Packet lengths (" + headerLength + ", " + bodyLength + ") did not match the parameters (" + params.getHeaderLength() + ", " + params.getBodyLength() + ")");
+        }
+
+        if (betaLength != headerLength - 32 || gammaLength != params.getKeyLength() || deltaLength != bodyLength) {
+            throw new SphinxException("Field lengths of the packet did not match the parameters");
+        }
+
+        if (curveNid != params.getGroup().getCurveNid()) {
+            throw new SphinxException("Curve of alpha (" + curveNid + ") did not match the curve of the group (" + params.getGroup().getCurveNid() + ")");
+        }
+    }
+
+    private void expectArray(int size) {
+        int b = readByte();
+        int actual;
+        if ((b & 0xf0) == 0x90) {
+            actual = b & 0x0f;
+        } else if (b == 0xdc) {
+            actual = (int) readUnsigned(2);
+        } else {
+            throw new SphinxException("Expected a msgpack array at offset " + (position - 1));
+        }
+
+        if (actual != size) {
+            throw new SphinxException("Expected a msgpack array of " + size + " elements, found " + actual);
+        }
+    }
+
+    private int readInt() {
+        int b = readByte();
+        long value;
+        if (b <= 0x7f) {
+            value = b;
+        } else if (b >= 0xe0) {
+            value = (byte) b;
+        } else if (b == 0xcc) {
+            value = readUnsigned(1);
+        } else if (b == 0xcd) {
+            value = readUnsigned(2);
+        } else if (b == 0xce) {
+            value = readUnsigned(4);
+        } else if (b == 0xd0) {
+            value = (byte) readUnsigned(1);
+        } else if (b == 0xd1) {
+            value = (short) readUnsigned(2);
+        } else if (b == 0xd2) {
+            value = (int) readUnsigned(4);
+        } else {
+            throw new SphinxException("Expected a msgpack integer at offset " + (position - 1));
+        }
+
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new SphinxException("Integer at offset " + (position - 1) + " is out of range");
+        }
+
+        return (int) value;
+    }
+
+    private int readExtensionHeader(byte type) {
+        int b = readByte();
+        long length;
+        switch (b) {
+            case 0xd4: length = 1; break;
+            case 0xd5: length = 2; break;
+            case 0xd6: length = 4; break;
+            case 0xd7: length = 8; break;
+            case 0xd8: length = 16; break;
+            case 0xc7: length = readUnsigned(1); break;
+            case 0xc8: length = readUnsigned(2); break;
+            case 0xc9: length = readUnsigned(4); break;
+            default: throw new SphinxException("Expected a msgpack extension at offset " + (position - 1));
+        }
+
+        int actualType = (byte) readByte();
+        if (actualType != type) {
+            throw new SphinxException("Expected extension type " + type + ", found " + actualType);
+        }
+
+        return checkLength(length);
+    }
+
+    private int readBinaryHeader() {
+        int b = readByte();
+        long length;
+        if (b == 0xc4) {
+            length = readUnsigned(1);
+        } else if (b == 0xc5) {
+            length = readUnsigned(2);
+        } else if (b == 0xc6) {
+            length = readUnsigned(4);
+        } else {
+            throw new SphinxException("Expected a msgpack binary at offset " + (position - 1));
+        }
+
+        return checkLength(length);
+    }
+
+    private int checkLength(long length) {
+        if (length > limit - position) {
+            throw new TruncatedPacketException("Length " + length + " at offset " + position + " exceeds the packet");
+        }
+
+        return (int) length;
+    }
+
+    private int skip(int length) {
+        int start = position;
+        position += checkLength(length);
+
+        return start;
+    }
+
+    private int readByte() {
+        if (position >= limit) {
+            throw new TruncatedPacketException("Packet is truncated");
+        }
+
+        byte b = data != null ? data[position] : buffer.get(position);
+        position++;
+
+        return b & 0xff;
+    }
+
+    private long readUnsigned(int bytes) {
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value = (value << 8) | readByte();
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,122 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Type to represent a packed Sphinx packet decoded by SphinxPacketCodec without copying it.
+ * The fields are views of the buffer the packet was decoded from, so they share its contents and stay valid only as
+ * long as that region of the buffer is not reused.
+ */
+public final class PacketView {
+    private final int headerLength;
+    private final int bodyLength;
+    private final int curveNid;
+    private final ByteBuffer packet;
+    private final ByteBuffer encodedAlpha;
+    private final ByteBuffer beta;
+    private final ByteBuffer gamma;
+    private final ByteBuffer delta;
+
+    PacketView(int headerLength, int bodyLength, int curveNid, ByteBuffer packet, ByteBuffer encodedAlpha, ByteBuffer beta, ByteBuffer gamma, ByteBuffer delta) {
+        this.headerLength = headerLength;
+        this.bodyLength = bodyLength;
+        this.curveNid = curveNid;
+        this.packet = packet;
+        this.encodedAlpha = encodedAlpha;
+        this.beta = beta;
+        this.gamma = gamma;
+        this.delta = delta;
+    }
+
+    /**
+     * Get the header length the packet was packed with.
+     * @return Header length of the packet.
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * Get the body length the packet was packed with.
+     * @return Body length of the packet.
+     */
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Get the curve of alpha.
+     * @return OpenSSL NID of the curve of alpha.
+     */
+    public int getCurveNid() {
+        return curveNid;
+    }
+
+    /**
+     * Get the whole packet as it was encoded, for instance to pass it on without decoding it again.
+     * @return View of the packet, positioned at its start.
+     */
+    public ByteBuffer getPacket() {
+        return packet.duplicate();
+    }
+
+    /**
+     * Get the compressed encoding of alpha.
+     * @return View of the encoding of alpha, positioned at its start.
+     */
+    public ByteBuffer getEncodedAlpha() {
+        return encodedAlpha.duplicate();
+    }
+
+    /**
+     * Decode alpha, which decompresses the point.
+     * @return Alpha as an elliptic curve point.
+     */
+    public ECPoint getAlpha() {
+        return Util.decodeECPoint(curveNid, toArray(encodedAlpha));
+    }
+
+    /**
+     * Get beta.
+     * @return View of beta, positioned at its start.
+     */
+    public ByteBuffer getBeta() {
+        return beta.duplicate();
+    }
+
+    /**
+     * Get gamma.
+     * @return View of gamma, positioned at its start.
+     */
+    public ByteBuffer getGamma() {
+        return gamma.duplicate();
+    }
+
+    /**
+     * Get the payload.
+     * @return View of delta, positioned at its start.
+     */
+    public ByteBuffer getDelta() {
+        return delta.duplicate();
+    }
+
+    /**
+     * Copy the packet into a SphinxPacket, as returned by SphinxClient.unpackMessage.
+     * @return Copy of the packet.
+     */
+    public SphinxPacket toSphinxPacket() {
+        Header header = new Header(curveNid, toArray(encodedAlpha), toArray(beta), toArray(gamma));
+        HeaderAndDelta headerAndDelta = new HeaderAndDelta(header, toArray(delta));
+
+        return new SphinxPacket(new ParamLengths(headerLength, bodyLength), headerAndDelta);
+    }
+
+    private static byte[] toArray(ByteBuffer view) {
+        byte[] array = new byte[view.remaining()];
+        view.duplicate().get(array);
+
+        return array;
+    }
+}
@@ -0,0 +1,15 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.math.BigInteger;
+
+/**
+ * Interface to an exponent recoded once by a group for repeated use with EllipticCurveGroup.expon, such as the private key of a mix node.
+ * Implementations are immutable and can be shared between threads.
+ */
+public interface PrecomputedExponent {
+    /**
+     * Get the value of the exponent.
+     * @return Value of the exponent.
+     */
+    BigInteger getValue();
+}
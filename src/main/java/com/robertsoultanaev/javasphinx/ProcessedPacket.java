@@ -1,18 +1,119 @@
 package com.robertsoultanaev.javasphinx;
 
 /**
- * Type to represent the return value of the mix node processing method
+ * Type to represent the return value of the mix node processing method.
+ *
+ * The tag and routing information are available as soon as the packet is processed. The header for the next hop and
+ * the decrypted payload are only computed when they are first requested, so that a final hop, which has no next header,
+ * does not pay for blinding the group element, and a dropped packet does not pay for decrypting its payload.
  */
 public class ProcessedPacket {
     public final byte[] tag;
     public final byte[] routing;
-    public final HeaderAndDelta headerAndDelta;
     public final byte[] macKey;
 
+    // State needed to compute the header and payload on request, released once both are computed
+    private SphinxParams params;
+    private HeaderAndDelta input;
+    private HopKeys hopKeys;
+    private byte[] unwrapped;
+    private int routingLength;
+
+    private Header header;
+    private byte[] delta;
+    private HeaderAndDelta headerAndDelta;
+
     public ProcessedPacket(byte[] tag, byte[] routing, HeaderAndDelta headerAndDelta, byte[] macKey) {
         this.tag = tag;
         this.routing = routing;
-        this.headerAndDelta = headerAndDelta;
         this.macKey = macKey;
+        this.header = headerAndDelta.header;
+        this.delta = headerAndDelta.delta;
+        this.headerAndDelta = headerAndDelta;
+    }
+
+    /**
+     * Create a processed packet whose header and payload are computed on request.
+     * @param params Sphinx parameters
+     * @param input Header and encrypted payload of the packet as received
+     * @param hopKeys Keys of the hop derived from the shared secret
+     * @param unwrapped Buffer of SphinxNode.processWithHopKeys, decrypted up to the end of the routing information
+     * @param routingLength Length of the routing information
+     * @param routing Routing information
+     */
+    ProcessedPacket(SphinxParams params, HeaderAndDelta input, HopKeys hopKeys, byte[] unwrapped, int routingLength, byte[] routing) {
+        this.tag = hopKeys.tau;
+        this.routing = routing;
+        this.macKey = hopKeys.pi;
+        this.params = params;
+        this.input = input;
+        this.hopKeys = hopKeys;
+        this.unwrapped = unwrapped;
+        this.routingLength = routingLength;
+    }
+
+    /**
+     * Get the header for the next hop, blinding the group element on the first call.
+     * @return Header for the next hop.
+     */
+    public synchronized Header getHeader() {
+        if (header == null) {
+            header = SphinxNode.unwrapHeader(params, input.header.getAlpha(), hopKeys, unwrapped, routingLength);
+            release();
+        }
+
+        return header;
+    }
+
+    /**
+     * Get the payload with the layer of the hop removed, decrypting it on the first call.
+     * @return Decrypted payload.
+     */
+    public synchronized byte[] getDelta() {
+        if (delta == null) {
+            delta = params.pii(hopKeys.pi, input.delta);
+            release();
+        }
+
+        return delta;
+    }
+
+    /**
+     * Get the header for the next hop together with the decrypted payload.
+     * @return The new header and payload of the Sphinx packet.
+     */
+    public synchronized HeaderAndDelta getHeaderAndDelta() {
+        if (headerAndDelta == null) {
+            headerAndDelta = new HeaderAndDelta(getHeader(), getDelta());
+        }
+
+        return headerAndDelta;
+    }
+
+    /**
+     * Check whether the routing information designates another mix node, so that the packet is relayed with the next header.
+     * @return True if the packet is to be relayed, false if this is its final hop.
+     */
+    public boolean isRelay() {
+        return SphinxClient.isRelay(routing, 0, routing.length);
+    }
+
+    /**
+     * Replace the header for the next hop with an equal one.
+     * @param header Header equal to the one returned by getHeader, such as one with a normalised group element.
+     */
+    synchronized void replaceHeader(Header header) {
+        this.header = header;
+        this.headerAndDelta = null;
+        release();
+    }
+
+    private void release() {
+        if (header != null && delta != null) {
+            params = null;
+            input = null;
+            hopKeys = null;
+            unwrapped = null;
+        }
     }
 }
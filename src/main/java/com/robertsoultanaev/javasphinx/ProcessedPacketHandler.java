@@ -0,0 +1,20 @@
+package com.robertsoultanaev.javasphinx;
+
+/**
+ * Callback used to receive the results of processing a stream of Sphinx packets at a mix node
+ */
+public interface ProcessedPacketHandler {
+    /**
+     * Called once a packet has been processed successfully.
+     * @param input Header and encrypted payload of the Sphinx packet as received.
+     * @param output Result of processing the Sphinx packet.
+     */
+    void onProcessed(HeaderAndDelta input, ProcessedPacket output);
+
+    /**
+     * Called when processing a packet failed, for example because of a MAC mismatch.
+     * @param input Header and encrypted payload of the Sphinx packet as received.
+     * @param ex Reason for the failure.
+     */
+    void onError(HeaderAndDelta input, SphinxException ex);
+}
@@ -0,0 +1,16 @@
+package com.robertsoultanaev.javasphinx;
+
+/**
+ * Interface to the source of the randomness used to create Sphinx packets: blinding factors, SURB identifiers and keys,
+ * and the random padding of headers.
+ * Implementations must be safe for use by multiple threads.
+ */
+public interface RandomSource {
+    /**
+     * Fill a region of a buffer with random bytes.
+     * @param bytes Buffer receiving the random bytes.
+     * @param offset Start of the region in bytes.
+     * @param length Length of the region.
+     */
+    void nextBytes(byte[] bytes, int offset, int length);
+}
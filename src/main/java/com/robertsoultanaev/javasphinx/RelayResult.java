@@ -0,0 +1,74 @@
+package com.robertsoultanaev.javasphinx;
+
+/**
+ * Type to receive the outcome of SphinxRelay.process. A result is overwritten by every call it is passed to, so that
+ * a thread relaying packets can reuse a single instance and the arrays returned by its getters.
+ */
+public final class RelayResult {
+    // The length of the routing information is encoded in a single byte
+    private static final int MAX_ROUTING_LENGTH = 255;
+
+    private final byte[] tag;
+    private final byte[] macKey;
+    private final byte[] routing;
+    private int routingLength;
+    private boolean relay;
+
+    /**
+     * Create a result for packets processed with the given parameters.
+     * @param params Sphinx parameters.
+     */
+    public RelayResult(SphinxParams params) {
+        this.tag = new byte[params.getKeyLength()];
+        this.macKey = new byte[params.getKeyLength()];
+        this.routing = new byte[MAX_ROUTING_LENGTH];
+    }
+
+    /**
+     * Get the tag of the packet, to be used for replay detection.
+     * @return Tag of the packet.
+     */
+    public byte[] getTag() {
+        return tag;
+    }
+
+    /**
+     * Get the key authenticating the payload, needed to receive a packet at its final hop.
+     * @return Key authenticating the payload.
+     */
+    public byte[] getMacKey() {
+        return macKey;
+    }
+
+    /**
+     * Get the buffer holding the routing information, of which the first getRoutingLength bytes are valid.
+     * @return Buffer holding the routing information.
+     */
+    public byte[] getRouting() {
+        return routing;
+    }
+
+    /**
+     * Get the length of the routing information.
+     * @return Length of the routing information.
+     */
+    public int getRoutingLength() {
+        return routingLength;
+    }
+
+    /**
+     * Check whether the packet was rewritten for another mix node.
+     * @return True if the packet is to be relayed, false if this is its final hop and only its payload was decrypted.
+     */
+    public boolean isRelay() {
+        return relay;
+    }
+
+    void set(HopKeys hopKeys, byte[] unwrapped, int routingOffset, int routingLength, boolean relay) {
+        System.arraycopy(hopKeys.tau, 0, tag, 0, tag.length);
+        System.arraycopy(hopKeys.pi, 0, macKey, 0, macKey.length);
+        System.arraycopy(unwrapped, routingOffset, routing, 0, routingLength);
+        this.routingLength = routingLength;
+        this.relay = relay;
+    }
+}
@@ -0,0 +1,297 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class to detect replayed Sphinx packets by their tags using a fixed amount of memory.
+ *
+ * Tags are recorded in two generations of a cache-line-blocked Bloom filter: all the bits of a tag live in a single
+ * 512-bit block, so checking and recording a tag touches one cache line per generation. The blocks are guarded by striped
+ * locks, and a tag, its duplicates and the rotation of its block always take the same lock, so concurrent duplicates of
+ * the same packet are detected, also while the filter rotates.
+ * Lookups consult both generations and insertions go to the current one. Once the current generation holds the
+ * configured number of tags it becomes the previous generation, and the old previous generation is cleared and reused.
+ * A tag is therefore remembered for at least one full epoch of the configured capacity.
+ *
+ * A filter can also be created without rotation, for replay state bounded by a key epoch: it then holds a single
+ * generation, which is only dropped with the filter itself. Once it holds the configured number of tags it refuses to
+ * record any more, so packets are rejected until the key epoch is rotated, rather than tags being forgotten.
+ *
+ * At a false positive rate of 0.0001 the two generations take about 50 bits per tag of capacity, some 20% more than two
+ * standard Bloom filters: 630 MB for 100 million tags.
+ *
+ * As with any Bloom filter, a fresh tag is reported as seen with a small probability, so a small fraction of legitimate
+ * packets will be dropped.
+ */
+public class ReplayFilter {
+    // Number of bytes of the tag used to place it in the filter. Sphinx tags are outputs of AES and uniformly distributed.
+    public static final int MIN_TAG_LENGTH = 16;
+
+    // A block fills one 64-byte cache line
+    private static final int BLOCK_BITS = 512;
+    private static final int BLOCK_WORDS = BLOCK_BITS / 64;
+    private static final int MAX_BITS_PER_TAG = 24;
+    private static final int MAX_STRIPES = 4096;
+    // Tags are added to the shared count in batches of at most this many per stripe, so threads rarely touch it
+    private static final int MAX_COUNT_BATCH = 64;
+
+    private final long capacity;
+    private final int blockCount;
+    private final int bitsPerTag;
+    private final int blocksPerStripe;
+    private final int countBatch;
+    private final boolean rotating;
+
+    // Both generations, or the only one without rotation, each stripe records which of them is its current one
+    private final long[][] generations;
+    private final Stripe[] stripes;
+    private final AtomicLong count;
+    private volatile long rotations;
+    private volatile boolean full;
+
+    /**
+     * Create a replay filter that rotates its generations.
+     * @param capacity Number of tags recorded per epoch, before the oldest generation is discarded.
+     * @param falsePositiveRate Target probability of reporting a fresh tag as seen.
+     */
+    public ReplayFilter(long capacity, double falsePositiveRate) {
+        this(capacity, falsePositiveRate, true);
+    }
+
+    /**
+     * Create a replay filter.
+     * @param capacity Number of tags recorded per epoch, before the oldest generation is discarded, or in total without rotation.
+     * @param falsePositiveRate Target probability of reporting a fresh tag as seen.
+     * @param rotating Whether the filter rotates its generations, or holds a single one that rejects tags once full.
+     */
+    public ReplayFilter(long capacity, double falsePositiveRate, boolean rotating) {
+        if (capacity < 1) {
+            throw new SphinxException("Capacity (" + capacity + ") must be positive");
+        }
+
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new SphinxException("False positive rate (" + falsePositiveRate + ") must be between 0 and 1");
+        }
+
+        // Lookups hit both generations, so each one gets half of the error budget. The count lags behind by at most
+        // 1/64 of the capacity, which the generations can hold on top of it.
+        double generationRate = rotating ? falsePositiveRate / 2 : falsePositiveRate;
+        long tags = capacity + capacity / MAX_COUNT_BATCH;
+
+        // The search starts from the size of a standard Bloom filter, which a blocked one never beats
+        double minBitsPerTag = Math.log(1 / generationRate) / (Math.log(2) * Math.log(2));
+        long blocks = Math.max(1, (long) Math.ceil(tags * Math.max(1, minBitsPerTag) / BLOCK_BITS));
+        int bestBits = 1;
+        while (true) {
+            double bestRate = 1;
+            for (int k = 1; k <= MAX_BITS_PER_TAG; k++) {
+                double rate = falsePositiveRate(tags, blocks, k);
+                if (rate < bestRate) {
+                    bestRate = rate;
+                    bestBits = k;
+                }
+            }
+
+            if (bestRate <= generationRate) {
+                break;
+            }
+
+            if (blocks >= Integer.MAX_VALUE / BLOCK_WORDS) {
+                throw new SphinxException("Capacity (" + capacity + ") is too large for false positive rate " + falsePositiveRate);
+            }
+
+            blocks = Math.min(Integer.MAX_VALUE / BLOCK_WORDS, blocks + Math.max(1, blocks / 16));
+        }
+
+        this.capacity = capacity;
+        this.blockCount = (int) blocks;
+        this.bitsPerTag = bestBits;
+        this.blocksPerStripe = (blockCount + MAX_STRIPES - 1) / MAX_STRIPES;
+
+        this.stripes = new Stripe[(blockCount + blocksPerStripe - 1) / blocksPerStripe];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+
+        this.countBatch = (int) Math.max(1, Math.min(MAX_COUNT_BATCH, capacity / ((long) MAX_COUNT_BATCH * stripes.length)));
+        this.rotating = rotating;
+        this.generations = new long[rotating ? 2 : 1][];
+        for (int i = 0; i < generations.length; i++) {
+            generations[i] = new long[blockCount * BLOCK_WORDS];
+        }
+        this.count = new AtomicLong();
+    }
+
+    /**
+     * Record a tag, unless it was already recorded.
+     * @param tag Tag of a processed Sphinx packet.
+     * @return True if the tag was not seen before, false if the packet is a replay.
+     * @throws SphinxException If the filter does not rotate and is full.
+     */
+    public boolean add(byte[] tag) {
+        if (tag.length < MIN_TAG_LENGTH) {
+            throw new SphinxException("Length of provided tag (" + tag.length + ") must be at least " + MIN_TAG_LENGTH);
+        }
+
+        if (full) {
+            throw new SphinxException("Replay filter is full after " + capacity + " tags, the key epoch must be rotated");
+        }
+
+        long h1 = readLong(tag, 0);
+        long h2 = readLong(tag, 8);
+
+        int block = (int) ((h1 >>> 1) % blockCount);
+        int offset = block * BLOCK_WORDS;
+        Stripe stripe = stripes[block / blocksPerStripe];
+
+        synchronized (stripe) {
+            long[] current = generations[stripe.current];
+            long[] previous = rotating ? generations[1 - stripe.current] : null;
+
+            if ((previous != null && contains(previous, offset, h1, h2)) || contains(current, offset, h1, h2)) {
+                return false;
+            }
+
+            insert(current, offset, h1, h2);
+
+            if (++stripe.pending < countBatch) {
+                return true;
+            }
+
+            stripe.pending = 0;
+        }
+
+        long expected = rotations;
+        if (count.addAndGet(countBatch) >= capacity) {
+            if (rotating) {
+                rotate(expected);
+            } else {
+                full = true;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Start a new epoch: the current generation becomes the previous one, and the tags of the previous one are forgotten.
+     * @throws SphinxException If the filter does not rotate.
+     */
+    public void rotate() {
+        if (!rotating) {
+            throw new SphinxException("Replay filter does not rotate");
+        }
+
+        rotate(rotations);
+    }
+
+    /**
+     * Tell whether the filter rotates its generations, or rejects tags once full.
+     * @return True if the filter rotates its generations.
+     */
+    public boolean isRotating() {
+        return rotating;
+    }
+
+    /**
+     * Get the number of tags recorded per epoch.
+     * @return Number of tags recorded per epoch.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Get the memory used by the bits of the filter, which stays constant.
+     * @return Size of the filter in bytes.
+     */
+    public long getSizeInBytes() {
+        return (long) generations.length * blockCount * BLOCK_BITS / 8;
+    }
+
+    private synchronized void rotate(long expected) {
+        if (rotations != expected) {
+            // Another thread already rotated
+            return;
+        }
+
+        // Stripes are rotated one at a time, so only the threads recording a tag in the stripe being cleared wait
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[i];
+            int from = i * blocksPerStripe * BLOCK_WORDS;
+            int to = Math.min(blockCount, (i + 1) * blocksPerStripe) * BLOCK_WORDS;
+
+            synchronized (stripe) {
+                int recycled = 1 - stripe.current;
+                Arrays.fill(generations[recycled], from, to, 0L);
+                stripe.current = recycled;
+                stripe.pending = 0;
+            }
+        }
+
+        count.set(0);
+        rotations = expected + 1;
+    }
+
+    private boolean contains(long[] bits, int offset, long h1, long h2) {
+        long h = h2;
+        for (int i = 0; i < bitsPerTag; i++) {
+            int bit = (int) (h & (BLOCK_BITS - 1));
+            if ((bits[offset + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+
+            h = Long.rotateRight(h, 9) + h1;
+        }
+
+        return true;
+    }
+
+    private void insert(long[] bits, int offset, long h1, long h2) {
+        long h = h2;
+        for (int i = 0; i < bitsPerTag; i++) {
+            int bit = (int) (h & (BLOCK_BITS - 1));
+            bits[offset + (bit >>> 6)] |= 1L << bit;
+
+            h = Long.rotateRight(h, 9) + h1;
+        }
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (data[offset + i] & 0xff);
+        }
+
+        return result;
+    }
+
+    // False positive rate of a blocked Bloom filter: the load of each block is Poisson distributed. The probabilities are
+    // computed as logarithms, since e^-lambda underflows for heavily loaded blocks.
+    private static double falsePositiveRate(long n, long blocks, int k) {
+        double lambda = (double) n / blocks;
+        double logLambda = Math.log(lambda);
+        double rate = 0;
+        double logPoisson = -lambda;
+        int maxLoad = (int) Math.ceil(lambda + 10 * Math.sqrt(lambda) + 10);
+
+        for (int j = 0; j <= maxLoad; j++) {
+            if (j > 0) {
+                logPoisson += logLambda - Math.log(j);
+            }
+
+            double unset = Math.pow(1 - 1.0 / BLOCK_BITS, (double) j * k);
+            rate += Math.exp(logPoisson) * Math.pow(1 - unset, k);
+        }
+
+        return rate;
+    }
+
+    private static final class Stripe {
+        // Index of the stripe's current generation, flipped when the stripe rotates
+        int current;
+        // Tags recorded in the stripe and not yet added to the shared count
+        int pending;
+    }
+}
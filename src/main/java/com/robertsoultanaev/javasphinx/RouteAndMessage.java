@@ -0,0 +1,18 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+/**
+ * Type to combine the route of a forward message with its destination and message
+ */
+public class RouteAndMessage {
+    public final byte[][] nodelist;
+    public final ECPoint[] keys;
+    public final DestinationAndMessage destinationAndMessage;
+
+    public RouteAndMessage(byte[][] nodelist, ECPoint[] keys, DestinationAndMessage destinationAndMessage) {
+        this.nodelist = nodelist;
+        this.keys = keys;
+        this.destinationAndMessage = destinationAndMessage;
+    }
+}
@@ -0,0 +1,223 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Class to create batches of forward Sphinx messages on a work-stealing pool sized to the machine, for senders such as
+ * gateways that create packets for many users at once.
+ *
+ * Each task creates the headers of its messages hop by hop, so that the group elements and shared secrets of all its
+ * messages at a hop are normalised with a single field inversion. A task also encodes all its payloads with one packer.
+ */
+public class SphinxBatchClient {
+    // Messages per task: enough to share the field inversions, few enough to balance the load over the workers
+    private static final int MIN_CHUNK_SIZE = 8;
+    private static final int MAX_CHUNK_SIZE = 64;
+    private static final int TASKS_PER_WORKER = 4;
+
+    private final SphinxParams params;
+    private final NodeKeyCache nodeKeyCache;
+    private final ForkJoinPool pool;
+    private final ECCurve curve;
+
+    /**
+     * Create a batch client using as many worker threads as there are available processors.
+     * @param params Sphinx parameters.
+     */
+    public SphinxBatchClient(SphinxParams params) {
+        this(params, null, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a batch client.
+     * @param params Sphinx parameters.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @param parallelism Number of worker threads.
+     */
+    public SphinxBatchClient(SphinxParams params, NodeKeyCache nodeKeyCache, int parallelism) {
+        if (parallelism < 1) {
+            throw new SphinxException("Parallelism (" + parallelism + ") must be positive");
+        }
+
+        this.params = params;
+        this.nodeKeyCache = nodeKeyCache;
+        this.pool = new ForkJoinPool(parallelism);
+        this.curve = params.getGroup().getGenerator().getCurve();
+    }
+
+    /**
+     * Create a batch of forward Sphinx messages in parallel.
+     * @param batch Routes, final destinations and data payloads of the Sphinx packets.
+     * @return Headers and payloads of the Sphinx packets encrypted in a nested manner. The i-th result corresponds to the
+     * i-th input and is null if creating that message failed, for instance because its destination was too long or the
+     * request itself was null or incomplete.
+     */
+    public List<HeaderAndDelta> createForwardMessages(List<RouteAndMessage> batch) {
+        RouteAndMessage[] requests = batch.toArray(new RouteAndMessage[batch.size()]);
+        HeaderAndDelta[] results = new HeaderAndDelta[requests.length];
+
+        if (requests.length > 0) {
+            pool.invoke(new CreateTask(requests, results, 0, requests.length, getChunkSize(requests.length)));
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Stop the worker threads once all submitted work has completed.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Get the number of worker threads.
+     * @return Number of worker threads.
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    private int getChunkSize(int batchSize) {
+        int chunkSize = batchSize / (pool.getParallelism() * TASKS_PER_WORKER);
+        chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, chunkSize));
+        int fairShare = Math.max(1, batchSize / pool.getParallelism());
+
+        return Math.min(chunkSize, fairShare);
+    }
+
+    private class CreateTask extends RecursiveAction {
+        private final RouteAndMessage[] requests;
+        private final HeaderAndDelta[] results;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        CreateTask(RouteAndMessage[] requests, HeaderAndDelta[] results, int from, int to, int chunkSize) {
+            this.requests = requests;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > chunkSize) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new CreateTask(requests, results, from, mid, chunkSize),
+                        new CreateTask(requests, results, mid, to, chunkSize));
+                return;
+            }
+
+            int count = to - from;
+            EllipticCurveGroup group = params.getGroup();
+            RandomSource random = params.getRandomSource();
+
+            // Requests are dropped from the task by setting their entry to null once they fail
+            RouteAndMessage[] valid = new RouteAndMessage[count];
+            BigInteger[] blindFactors = new BigInteger[count];
+            ECPoint[] alphas = new ECPoint[count];
+            HopKeys[][] hopKeys = new HopKeys[count][];
+            byte[][][] secrets = new byte[count][][];
+            int maxHops = 0;
+
+            for (int i = 0; i < count; i++) {
+                RouteAndMessage request = requests[from + i];
+                if (!isWellFormed(request)) {
+                    continue;
+                }
+
+                try {
+                    // Secrets come from the group, as for single messages, so that groups with a cofactor get multiples of it
+                    blindFactors[i] = group.genSecret(random);
+                    alphas[i] = group.exponGenerator(blindFactors[i]);
+                } catch (RuntimeException ex) {
+                    alphas[i] = null;
+                    continue;
+                }
+
+                valid[i] = request;
+                hopKeys[i] = new HopKeys[request.keys.length];
+                secrets[i] = new byte[request.keys.length][];
+                maxHops = Math.max(maxHops, request.keys.length);
+            }
+            normalizeAll(alphas);
+
+            // The shared secrets of a hop only depend on the blinding factors left by the previous hop
+            ECPoint[] sharedSecrets = new ECPoint[count];
+            for (int hop = 0; hop < maxHops; hop++) {
+                for (int i = 0; i < count; i++) {
+                    sharedSecrets[i] = null;
+                    if (valid[i] == null || hop >= valid[i].keys.length) {
+                        continue;
+                    }
+
+                    try {
+                        ECPoint key = valid[i].keys[hop];
+                        sharedSecrets[i] = nodeKeyCache != null ? nodeKeyCache.expon(key, blindFactors[i]) : group.expon(key, blindFactors[i]);
+                    } catch (RuntimeException ex) {
+                        valid[i] = null;
+                    }
+                }
+                normalizeAll(sharedSecrets);
+
+                for (int i = 0; i < count; i++) {
+                    if (sharedSecrets[i] == null || valid[i] == null) {
+                        continue;
+                    }
+
+                    try {
+                        byte[] aesS = params.getAesKey(sharedSecrets[i]);
+                        HopKeys keys = params.deriveHopKeys(aesS);
+                        secrets[i][hop] = aesS;
+                        hopKeys[i][hop] = keys;
+                        blindFactors[i] = blindFactors[i].multiply(keys.b).mod(group.getOrder());
+                    } catch (RuntimeException ex) {
+                        valid[i] = null;
+                    }
+                }
+            }
+
+            MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+            for (int i = 0; i < count; i++) {
+                if (valid[i] == null) {
+                    continue;
+                }
+
+                try {
+                    Header header = SphinxClient.assembleHeader(params, valid[i].nodelist, SphinxClient.PACKED_DEST_FLAG, alphas[i], hopKeys[i], random);
+                    HeaderAndSecrets headerAndSecrets = new HeaderAndSecrets(header, secrets[i], hopKeys[i]);
+                    results[from + i] = SphinxClient.createForwardMessage(params, headerAndSecrets, valid[i].destinationAndMessage, packer);
+                } catch (RuntimeException ex) {
+                    results[from + i] = null;
+                }
+            }
+        }
+
+        private boolean isWellFormed(RouteAndMessage request) {
+            return request != null && request.nodelist != null && request.keys != null && request.destinationAndMessage != null
+                    && request.nodelist.length > 0 && request.nodelist.length == request.keys.length;
+        }
+
+        private void normalizeAll(ECPoint[] points) {
+            // Points of another instance of the curve are left to be normalised on their own
+            for (int i = 0; i < points.length; i++) {
+                if (points[i] != null && points[i].getCurve() != curve) {
+                    points[i] = points[i].normalize();
+                }
+            }
+
+            curve.normalizeAll(points);
+        }
+    }
+}
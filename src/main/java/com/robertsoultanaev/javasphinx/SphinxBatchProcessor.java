@@ -0,0 +1,327 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class to process batches and streams of Sphinx packets at a mix node on a work-stealing pool sized to the machine.
+ * This is the recommended way to run a mix node that has to process packets at a high rate.
+ */
+public class SphinxBatchProcessor {
+    // Amount of work handed to a single task, large enough to amortise the scheduling overhead
+    private static final long TARGET_TASK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Number of tasks per worker that a stream batch is sized for, so that work stealing can balance the load
+    private static final int TASKS_PER_WORKER = 4;
+    private static final int MAX_STREAM_BATCH_SIZE = 65536;
+    private static final double SMOOTHING_FACTOR = 0.2;
+    // Smallest number of packets handled by a task when the batch allows it, since the points of a task share their field inversions
+    private static final int MIN_CHUNK_SIZE = 8;
+
+    private final SphinxParams params;
+    private final KeyEpochs epochs;
+    private final ForkJoinPool pool;
+    private final boolean preserveOrder;
+    private final ECCurve curve;
+
+    private volatile double nanosPerPacket;
+
+    /**
+     * Create a batch processor using as many worker threads as there are available processors, delivering the results of
+     * streams in the order of the packets.
+     * @param params Sphinx parameters.
+     * @param secret Mix node's private key.
+     */
+    public SphinxBatchProcessor(SphinxParams params, BigInteger secret) {
+        this(params, secret, Runtime.getRuntime().availableProcessors(), true);
+    }
+
+    /**
+     * Create a batch processor.
+     * @param params Sphinx parameters.
+     * @param secret Mix node's private key.
+     * @param parallelism Number of worker threads.
+     * @param preserveOrder Whether the results of a stream are handed to the handler in the order of the input packets.
+     */
+    public SphinxBatchProcessor(SphinxParams params, BigInteger secret, int parallelism, boolean preserveOrder) {
+        this(params, secret, parallelism, preserveOrder, null);
+    }
+
+    /**
+     * Create a batch processor that drops replayed packets.
+     * @param params Sphinx parameters.
+     * @param secret Mix node's private key.
+     * @param parallelism Number of worker threads.
+     * @param preserveOrder Whether the results of a stream are handed to the handler in the order of the input packets.
+     * @param replayFilter Filter recording the tags of processed packets, or null to skip the replay check.
+     */
+    public SphinxBatchProcessor(SphinxParams params, BigInteger secret, int parallelism, boolean preserveOrder, ReplayFilter replayFilter) {
+        this(params, new SphinxNodeKey(params.getGroup(), secret), parallelism, preserveOrder, replayFilter);
+    }
+
+    /**
+     * Create a batch processor with a key recoded in advance, that drops replayed packets.
+     * @param params Sphinx parameters.
+     * @param key Mix node's private key.
+     * @param parallelism Number of worker threads.
+     * @param preserveOrder Whether the results of a stream are handed to the handler in the order of the input packets.
+     * @param replayFilter Filter recording the tags of processed packets, or null to skip the replay check.
+     */
+    public SphinxBatchProcessor(SphinxParams params, SphinxNodeKey key, int parallelism, boolean preserveOrder, ReplayFilter replayFilter) {
+        this(params, KeyEpochs.single(key, replayFilter), parallelism, preserveOrder);
+    }
+
+    /**
+     * Create a batch processor for a mix node holding several valid key epochs, each with its own replay filter.
+     * Epochs can be added and expired while the processor is running, each task uses the epochs that are valid when it starts.
+     * @param params Sphinx parameters.
+     * @param epochs Valid key epochs of the mix node.
+     * @param parallelism Number of worker threads.
+     * @param preserveOrder Whether the results of a stream are handed to the handler in the order of the input packets.
+     */
+    public SphinxBatchProcessor(SphinxParams params, KeyEpochs epochs, int parallelism, boolean preserveOrder) {
+        if (parallelism < 1) {
+            throw new SphinxException("Parallelism (" + parallelism + ") must be positive");
+        }
+
+        this.params = params;
+        this.epochs = epochs;
+        this.pool = new ForkJoinPool(parallelism);
+        this.preserveOrder = preserveOrder;
+        this.curve = params.getGroup().getGenerator().getCurve();
+        // Pessimistic initial estimate, corrected after the first batch
+        this.nanosPerPacket = TARGET_TASK_NANOS;
+    }
+
+    /**
+     * Process a batch of Sphinx packets in parallel.
+     * @param batch Headers and encrypted payloads of the Sphinx packets.
+     * @return Results of processing the packets, whatever the ordering of the processor: the i-th result corresponds to the
+     * i-th input and is null if processing that packet failed.
+     */
+    public List<ProcessedPacket> processBatch(List<HeaderAndDelta> batch) {
+        return processBatch(batch, null);
+    }
+
+    /**
+     * Process a batch of Sphinx packets in parallel, keeping the reason each failed packet was rejected.
+     * @param batch Headers and encrypted payloads of the Sphinx packets.
+     * @param errors Array at least as long as the batch, whose i-th entry receives the reason processing the i-th packet
+     * failed and is left untouched if it succeeded, or null to not keep the reasons.
+     * @return Results of processing the packets, whatever the ordering of the processor: the i-th result corresponds to the
+     * i-th input and is null if processing that packet failed.
+     */
+    public List<ProcessedPacket> processBatch(List<HeaderAndDelta> batch, SphinxException[] errors) {
+        HeaderAndDelta[] packets = batch.toArray(new HeaderAndDelta[batch.size()]);
+        ProcessedPacket[] results = new ProcessedPacket[packets.length];
+
+        if (errors != null && errors.length < packets.length) {
+            throw new SphinxException("Length of the errors array (" + errors.length + ") is less than the size of the batch (" + packets.length + ")");
+        }
+
+        // The results are indexed by their input, so that they can be matched with the packets and the errors
+        runBatch(packets, results, errors, null);
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Process a stream of Sphinx packets in parallel, pulling batches from the iterator until it is exhausted.
+     * If the order is preserved, the handler is called on the calling thread in the order of the input packets of each batch.
+     * Otherwise it is called on the worker threads as soon as the packets of each task are processed, and must be thread-safe.
+     * @param packets Headers and encrypted payloads of the Sphinx packets.
+     * @param handler Callback receiving the result for each packet.
+     */
+    public void processStream(Iterator<HeaderAndDelta> packets, ProcessedPacketHandler handler) {
+        while (packets.hasNext()) {
+            int batchSize = getStreamBatchSize();
+            List<HeaderAndDelta> batch = new ArrayList<HeaderAndDelta>(batchSize);
+            while (packets.hasNext() && batch.size() < batchSize) {
+                batch.add(packets.next());
+            }
+
+            HeaderAndDelta[] inputs = batch.toArray(new HeaderAndDelta[batch.size()]);
+            ProcessedPacket[] results = new ProcessedPacket[inputs.length];
+
+            if (preserveOrder) {
+                SphinxException[] errors = new SphinxException[inputs.length];
+                runBatch(inputs, results, errors, null);
+
+                for (int i = 0; i < inputs.length; i++) {
+                    if (results[i] != null) {
+                        handler.onProcessed(inputs[i], results[i]);
+                    } else {
+                        handler.onError(inputs[i], errors[i]);
+                    }
+                }
+            } else {
+                runBatch(inputs, results, null, handler);
+            }
+        }
+    }
+
+    /**
+     * Stop the worker threads once all submitted work has completed.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Get the number of worker threads.
+     * @return Number of worker threads.
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    private void runBatch(HeaderAndDelta[] packets, ProcessedPacket[] results, SphinxException[] errors, ProcessedPacketHandler handler) {
+        if (packets.length == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        pool.invoke(new ProcessTask(packets, results, errors, handler, 0, packets.length, getChunkSize(packets.length)));
+        long elapsed = System.nanoTime() - start;
+
+        // Wall clock time of the batch scaled by the number of workers approximates the CPU time spent per packet
+        double observed = (double) elapsed * Math.min(pool.getParallelism(), packets.length) / packets.length;
+        nanosPerPacket = SMOOTHING_FACTOR * observed + (1 - SMOOTHING_FACTOR) * nanosPerPacket;
+    }
+
+    private int getChunkSize(int batchSize) {
+        int chunkSize = (int) Math.max(MIN_CHUNK_SIZE, TARGET_TASK_NANOS / Math.max(1.0, nanosPerPacket));
+        int fairShare = Math.max(1, batchSize / pool.getParallelism());
+
+        return Math.min(chunkSize, fairShare);
+    }
+
+    private int getStreamBatchSize() {
+        int chunkSize = (int) Math.max(1, TARGET_TASK_NANOS / Math.max(1.0, nanosPerPacket));
+        long batchSize = (long) chunkSize * pool.getParallelism() * TASKS_PER_WORKER;
+
+        return (int) Math.min(batchSize, MAX_STREAM_BATCH_SIZE);
+    }
+
+    private class ProcessTask extends RecursiveAction {
+        private final HeaderAndDelta[] packets;
+        private final ProcessedPacket[] results;
+        private final SphinxException[] errors;
+        private final ProcessedPacketHandler handler;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        ProcessTask(HeaderAndDelta[] packets, ProcessedPacket[] results, SphinxException[] errors, ProcessedPacketHandler handler, int from, int to, int chunkSize) {
+            this.packets = packets;
+            this.results = results;
+            this.errors = errors;
+            this.handler = handler;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > chunkSize) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ProcessTask(packets, results, errors, handler, from, mid, chunkSize),
+                        new ProcessTask(packets, results, errors, handler, mid, to, chunkSize));
+                return;
+            }
+
+            int count = to - from;
+
+            KeyEpochs.Epoch[] validEpochs = epochs.snapshot();
+            if (validEpochs.length == 0) {
+                for (int i = from; i < to; i++) {
+                    fail(i, new SphinxException("No valid key epoch"));
+                }
+                return;
+            }
+
+            // Shared secrets of all packets of the task under the current key are normalised with a single field inversion
+            ECPoint[] sharedSecrets = new ECPoint[count];
+            for (int i = from; i < to; i++) {
+                try {
+                    sharedSecrets[i - from] = SphinxNode.sharedSecret(params, validEpochs[0].key, packets[i].header);
+                } catch (RuntimeException ex) {
+                    fail(i, ex);
+                }
+            }
+            normalizeAll(sharedSecrets);
+
+            // The same for the group elements of the outgoing headers. Only relayed packets get a header for the next hop,
+            // and payloads are decrypted here so that the work stays on the worker threads
+            ECPoint[] alphas = new ECPoint[count];
+            for (int i = from; i < to; i++) {
+                if (sharedSecrets[i - from] == null) {
+                    continue;
+                }
+
+                try {
+                    results[i] = SphinxNode.processWithSharedSecret(params, validEpochs, packets[i], sharedSecrets[i - from]);
+                    results[i].getDelta();
+                    if (results[i].isRelay()) {
+                        alphas[i - from] = results[i].getHeader().getAlpha();
+                    }
+                } catch (RuntimeException ex) {
+                    fail(i, ex);
+                }
+            }
+            normalizeAll(alphas);
+
+            for (int i = from; i < to; i++) {
+                ProcessedPacket result = results[i];
+                if (result == null) {
+                    continue;
+                }
+
+                if (alphas[i - from] != null) {
+                    Header header = result.getHeader();
+                    if (alphas[i - from] != header.getAlpha()) {
+                        result.replaceHeader(new Header(alphas[i - from], header.beta, header.gamma));
+                    }
+                }
+
+                if (handler != null) {
+                    handler.onProcessed(packets[i], result);
+                }
+            }
+        }
+
+        // A malformed packet can fail outside of the checks of SphinxNode, for instance with a null field, and must
+        // only fail on its own rather than abort the batch
+        private void fail(int i, RuntimeException ex) {
+            SphinxException reason = ex instanceof SphinxException ? (SphinxException) ex : new SphinxException("Processing the packet failed: " + ex);
+
+            results[i] = null;
+            if (errors != null) {
+                errors[i] = reason;
+            }
+            if (handler != null) {
+                handler.onError(packets[i], reason);
+            }
+        }
+
+        private void normalizeAll(ECPoint[] points) {
+            // Points of another instance of the curve are left to be normalised on their own
+            for (int i = 0; i < points.length; i++) {
+                if (points[i] != null && points[i].getCurve() != curve) {
+                    points[i] = points[i].normalize();
+                }
+            }
+
+            curve.normalizeAll(points);
+        }
+    }
+}
@@ -9,11 +9,8 @@ import org.msgpack.core.MessageUnpacker;
 import java.io.IOException;
 import java.math.BigInteger;
 
-import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 
 import static com.robertsoultanaev.javasphinx.Util.concatenate;
 import static com.robertsoultanaev.javasphinx.Util.slice;
@@ -27,6 +24,16 @@ public class SphinxClient {
     public static final String SURB_FLAG = new String(new char[]{(char) 0xf2});
 
     public static final int MAX_DEST_SIZE = 127;
+    public static final int MIN_MASTER_KEY_LENGTH = 16;
+
+    private static final byte[] SURB_XID_FLAVOR = "surb:xid:xid:xid".getBytes();
+    private static final byte[] SURB_KTILDE_FLAVOR = "surb:ktilde:ktil".getBytes();
+    private static final byte[] SURB_BLIND_FLAVOR = "surb:blind:blind".getBytes();
+
+    // RELAY_FLAG as packed by encodeNode: a msgpack fixstr holding the UTF-8 encoding of the flag
+    private static final byte[] PACKED_RELAY_FLAG = {(byte) 0xa2, (byte) 0xc3, (byte) 0xb0};
+    // Final routing of forward messages: a msgpack array holding DEST_FLAG. It is only read, so it is shared by all headers.
+    static final byte[] PACKED_DEST_FLAG = {(byte) 0x91, (byte) 0xa2, (byte) 0xc3, (byte) 0xb1};
 
     /**
      * Encode the mix node id into binary format.
@@ -48,6 +55,33 @@ public class SphinxClient {
         return packer.toByteArray();
     }
 
+    /**
+     * Check whether encoded routing information designates a mix node, as encoded by encodeNode, without decoding it.
+     * @param data Buffer holding the routing information.
+     * @param offset Start of the routing information in data.
+     * @param length Length of the routing information.
+     * @return True if the routing information starts with RELAY_FLAG.
+     */
+    static boolean isRelay(byte[] data, int offset, int length) {
+        if (length < 1 + PACKED_RELAY_FLAG.length) {
+            return false;
+        }
+
+        // A msgpack fixarray with at least one element
+        int arrayHeader = data[offset] & 0xff;
+        if ((arrayHeader & 0xf0) != 0x90 || arrayHeader == 0x90) {
+            return false;
+        }
+
+        for (int i = 0; i < PACKED_RELAY_FLAG.length; i++) {
+            if (data[offset + 1 + i] != PACKED_RELAY_FLAG[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Select a random subset of mix node identifiers.
      * @param lst List of mix node identifiers.
@@ -55,17 +89,27 @@ public class SphinxClient {
      * @return Array of identifiers of length nu, randomly taken from lst.
      */
     public static int[] randSubset(int[] lst, int nu) {
+        return randSubset(DrbgRandomSource.getInstance(), lst, nu);
+    }
+
+    /**
+     * Select a random subset of mix node identifiers.
+     * @param random Source of the randomness.
+     * @param lst List of mix node identifiers.
+     * @param nu Number of identifiers to select from lst.
+     * @return Array of identifiers of length nu, randomly taken from lst.
+     */
+    public static int[] randSubset(RandomSource random, int[] lst, int nu) {
         if (lst.length < nu) {
             throw new SphinxException("Number of possible elements (" + lst.length + ") was less than the requested number (" + nu + ")");
         }
 
-        SecureRandom secureRandom = new SecureRandom();
+        byte[] rand = new byte[8 * lst.length];
+        random.nextBytes(rand, 0, rand.length);
 
         long[] randoms = new long[lst.length];
         for (int i = 0; i < randoms.length; i++) {
-            byte[] rand = new byte[8];
-            secureRandom.nextBytes(rand);
-            randoms[i] = (new BigInteger(1, rand)).longValue();
+            randoms[i] = (new BigInteger(1, Arrays.copyOfRange(rand, 8 * i, 8 * (i + 1)))).longValue();
         }
 
         HashMap<Long, Integer> randToIndex = new HashMap<Long, Integer>();
@@ -92,20 +136,43 @@ public class SphinxClient {
      * @return Header and the list of secrets used to encrypt the payload in a nested manner.
      */
     public static HeaderAndSecrets createHeader(SphinxParams params, byte[][] nodelist, ECPoint[] keys, byte[] dest) {
-        class HeaderRecord {
-            final ECPoint alpha;
-            final ECPoint s;
-            final BigInteger b;
-            final byte[] aes;
-
-            HeaderRecord(ECPoint alpha, ECPoint s, BigInteger b, byte[] aes) {
-                this.alpha = alpha;
-                this.s = s;
-                this.b = b;
-                this.aes = aes;
-            }
-        }
+        return createHeader(params, nodelist, keys, dest, null);
+    }
 
+    /**
+     * Create a Sphinx header, using precomputed tables for the public keys of the mix nodes.
+     * @param params Sphinx parameters.
+     * @param nodelist List of encoded mix node identifiers used to route the Sphinx packet.
+     * @param keys List of the corresponding public keys of the mix nodes in nodelist.
+     * @param dest Final destination of the Sphinx packet.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @return Header and the list of secrets used to encrypt the payload in a nested manner.
+     */
+    public static HeaderAndSecrets createHeader(SphinxParams params, byte[][] nodelist, ECPoint[] keys, byte[] dest, NodeKeyCache nodeKeyCache) {
+        return createHeader(params, nodelist, keys, dest, nodeKeyCache, params.getGroup().genSecret(params.getRandomSource()));
+    }
+
+    private static HeaderAndSecrets createHeader(SphinxParams params, byte[][] nodelist, ECPoint[] keys, byte[] dest, NodeKeyCache nodeKeyCache, BigInteger blindFactor) {
+        ECPoint alpha = params.getGroup().exponGenerator(blindFactor);
+        byte[][] secrets = new byte[nodelist.length][];
+        HopKeys[] hopKeys = deriveRouteKeys(params, keys, blindFactor, nodeKeyCache, secrets);
+
+        Header header = assembleHeader(params, nodelist, dest, alpha, hopKeys, params.getRandomSource());
+
+        return new HeaderAndSecrets(header, secrets, hopKeys);
+    }
+
+    /**
+     * Assemble a Sphinx header from the keys shared with the mix nodes of its route, which only takes symmetric operations.
+     * @param params Sphinx parameters.
+     * @param nodelist List of encoded mix node identifiers used to route the Sphinx packet.
+     * @param dest Final destination of the Sphinx packet.
+     * @param alpha Group element of the header for the first hop.
+     * @param hopKeys Keys used at each hop.
+     * @param random Source of the random padding of the header.
+     * @return Header of the Sphinx packet.
+     */
+    static Header assembleHeader(SphinxParams params, byte[][] nodelist, byte[] dest, ECPoint alpha, HopKeys[] hopKeys, RandomSource random) {
         byte[][] nodeMeta = new byte[nodelist.length][];
         for (int i = 0; i < nodelist.length; i++) {
             byte[] node = nodelist[i];
@@ -114,51 +181,25 @@ public class SphinxClient {
         }
 
         int nu = nodelist.length;
-        ECCGroup group = params.getGroup();
-
-        BigInteger blindFactor = group.genSecret();
-        List<HeaderRecord> asbtuples = new ArrayList<HeaderRecord>();
 
-        for (ECPoint k : keys) {
-            ECPoint alpha = group.expon(group.getGenerator(), blindFactor);
-            ECPoint s = group.expon(k, blindFactor);
-            byte[] aesS = params.getAesKey(s);
-
-            BigInteger b = params.hb(alpha, aesS);
-            blindFactor = blindFactor.multiply(b);
-            blindFactor = blindFactor.mod(group.getOrder());
-
-            HeaderRecord headerRecord = new HeaderRecord(alpha, s, b, aesS);
-
-            asbtuples.add(headerRecord);
+        int lenMeta = 0;
+        for (int i = 1; i < nodeMeta.length; i++) {
+            lenMeta += nodeMeta[i].length;
         }
 
-        byte[] phi = {};
+        // The filler is built in place: at step i its first phiLen bytes are XORed with the part of hop (i-1)'s rho
+        // keystream that lines up with them once the node has shifted beta, the remaining bytes are still zero.
+        byte[] phi = new byte[lenMeta + (nu-1)*params.getKeyLength()];
+        int phiLen = 0;
         int minLen = params.getHeaderLength() - 32;
 
         for (int i = 1; i < nu; i++) {
-            byte[] zeroes1 = new byte[params.getKeyLength() + nodeMeta[i].length];
-            Arrays.fill(zeroes1, (byte) 0x00);
-            byte[] plain = concatenate(phi, zeroes1);
-
-            byte[] zeroes2 = new byte[minLen];
-            Arrays.fill(zeroes2, (byte) 0x00);
-            byte[] zeroes2plain = concatenate(zeroes2, plain);
-            phi = params.xorRho(params.hrho(asbtuples.get(i-1).aes), zeroes2plain);
-            phi = slice(phi, minLen, phi.length);
+            phiLen += params.getKeyLength() + nodeMeta[i].length;
+            params.xorRho(hopKeys[i-1].rho, minLen, phi, 0, phiLen);
 
             minLen -= nodeMeta[i].length + params.getKeyLength();
         }
 
-        int lenMeta = 0;
-        for (int i = 1; i < nodeMeta.length; i++) {
-            lenMeta += nodeMeta[i].length;
-        }
-
-        if (phi.length != lenMeta + (nu-1)*params.getKeyLength()) {
-            throw new SphinxException("Length of phi (" + phi.length + ") did not match the expected length (" + (lenMeta + (nu-1)*params.getKeyLength()) + ")");
-        }
-
         byte[] destLength = {(byte) dest.length};
         byte[] finalRouting = concatenate(destLength, dest);
 
@@ -167,15 +208,14 @@ public class SphinxClient {
             throw new SphinxException("Length of random pad (" + randomPadLen + ") must be non-negative");
         }
 
-        SecureRandom secureRandom = new SecureRandom();
         byte[] randomPad = new byte[randomPadLen];
-        secureRandom.nextBytes(randomPad);
+        random.nextBytes(randomPad, 0, randomPadLen);
 
         byte[] beta = concatenate(finalRouting, randomPad);
-        beta = params.xorRho(params.hrho(asbtuples.get(nu - 1).aes), beta);
+        beta = params.xorRho(hopKeys[nu - 1].rho, beta);
         beta = concatenate(beta, phi);
 
-        byte[] gamma = params.mu(params.hmu(asbtuples.get(nu-1).aes), beta);
+        byte[] gamma = params.mu(hopKeys[nu-1].mu, beta);
 
         for (int i = nu - 2; i >= 0; i--) {
             byte[] nodeId = nodeMeta[i+1];
@@ -184,18 +224,40 @@ public class SphinxClient {
             byte[] plainBeta = slice(beta, plainBetaLen);
             byte[] plain = concatenate(nodeId, gamma, plainBeta);
 
-            beta = params.xorRho(params.hrho(asbtuples.get(i).aes), plain);
-            gamma = params.mu(params.hmu(asbtuples.get(i).aes), beta);
+            beta = params.xorRho(hopKeys[i].rho, plain);
+            gamma = params.mu(hopKeys[i].mu, beta);
         }
 
-        Header header = new Header(asbtuples.get(0).alpha, beta, gamma);
+        return new Header(alpha, beta, gamma);
+    }
 
-        byte[][] secrets = new byte[asbtuples.size()][];
-        for (int i = 0; i < asbtuples.size(); i++) {
-            secrets[i] = asbtuples.get(i).aes;
+    /**
+     * Derive the keys shared with each mix node of a route from the initial blinding factor of a header.
+     * @param params Sphinx parameters.
+     * @param keys List of the public keys of the mix nodes of the route.
+     * @param blindFactor Blinding factor of the first hop.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @param secrets Array receiving the AES key derived from the secret shared with each mix node, or null.
+     * @return Keys used at each hop.
+     */
+    private static HopKeys[] deriveRouteKeys(SphinxParams params, ECPoint[] keys, BigInteger blindFactor, NodeKeyCache nodeKeyCache, byte[][] secrets) {
+        EllipticCurveGroup group = params.getGroup();
+        HopKeys[] hopKeys = new HopKeys[keys.length];
+
+        for (int i = 0; i < keys.length; i++) {
+            ECPoint s = nodeKeyCache != null ? nodeKeyCache.expon(keys[i], blindFactor) : group.expon(keys[i], blindFactor);
+            byte[] aesS = params.getAesKey(s);
+
+            hopKeys[i] = params.deriveHopKeys(aesS);
+            if (secrets != null) {
+                secrets[i] = aesS;
+            }
+
+            blindFactor = blindFactor.multiply(hopKeys[i].b);
+            blindFactor = blindFactor.mod(group.getOrder());
         }
 
-        return new HeaderAndSecrets(header, secrets);
+        return hopKeys;
     }
 
     /**
@@ -207,55 +269,98 @@ public class SphinxClient {
      * @return Header and payload of a Sphinx packet encrypted in a nested manner.
      */
     public static HeaderAndDelta createForwardMessage(SphinxParams params, byte[][] nodelist, ECPoint[] keys, DestinationAndMessage destinationAndMessage) {
-        byte[] dest = destinationAndMessage.destination;
-        byte[] message = destinationAndMessage.message;
+        return createForwardMessage(params, nodelist, keys, destinationAndMessage, null);
+    }
 
-        if (!(dest.length > 0 && dest.length < MAX_DEST_SIZE)) {
-            throw new SphinxException("Destination has to be between 1 and " + MAX_DEST_SIZE + " bytes long");
-        }
+    /**
+     * Create a forward Sphinx message, using precomputed tables for the public keys of the mix nodes.
+     * @param params Sphinx parameters.
+     * @param nodelist List of encoded mix node identifiers used to route the Sphinx packet.
+     * @param keys List of the corresponding public keys of the mix nodes in nodelist.
+     * @param destinationAndMessage Final destination and the data payload of the Sphinx packet.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @return Header and payload of a Sphinx packet encrypted in a nested manner.
+     */
+    public static HeaderAndDelta createForwardMessage(SphinxParams params, byte[][] nodelist, ECPoint[] keys, DestinationAndMessage destinationAndMessage, NodeKeyCache nodeKeyCache) {
+        checkDestination(destinationAndMessage.destination);
 
-        MessageBufferPacker packer;
+        HeaderAndSecrets headerAndSecrets = createForwardHeader(params, nodelist, keys, nodeKeyCache);
 
-        packer = MessagePack.newDefaultBufferPacker();
-        try {
-            packer.packArrayHeader(1);
-            packer.packString(DEST_FLAG);
-            packer.close();
-        } catch (IOException ex) {
-            throw new SphinxException("Failed to pack the destination flag");
-        }
+        return createForwardMessage(params, headerAndSecrets, destinationAndMessage);
+    }
+
+    /**
+     * Create the header of a forward Sphinx message. The header only depends on the route, so it can be created ahead
+     * of time, for instance by a HeaderPool, and combined with a payload later by createForwardMessage.
+     * @param params Sphinx parameters.
+     * @param nodelist List of encoded mix node identifiers used to route the Sphinx packet.
+     * @param keys List of the corresponding public keys of the mix nodes in nodelist.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @return Header and the list of secrets used to encrypt the payload in a nested manner.
+     */
+    public static HeaderAndSecrets createForwardHeader(SphinxParams params, byte[][] nodelist, ECPoint[] keys, NodeKeyCache nodeKeyCache) {
+        return createHeader(params, nodelist, keys, PACKED_DEST_FLAG, nodeKeyCache);
+    }
+
+    /**
+     * Create a forward Sphinx message from a header created in advance by createForwardHeader, which only encrypts the payload.
+     * Each header must be used for a single message.
+     * @param params Sphinx parameters.
+     * @param headerAndSecrets Header of a forward message and the secrets shared with the mix nodes of its route.
+     * @param destinationAndMessage Final destination and the data payload of the Sphinx packet.
+     * @return Header and payload of a Sphinx packet encrypted in a nested manner.
+     */
+    public static HeaderAndDelta createForwardMessage(SphinxParams params, HeaderAndSecrets headerAndSecrets, DestinationAndMessage destinationAndMessage) {
+        return createForwardMessage(params, headerAndSecrets, destinationAndMessage, MessagePack.newDefaultBufferPacker());
+    }
 
-        byte[] finalDestination = packer.toByteArray();
-        HeaderAndSecrets headerAndSecrets = createHeader(params, nodelist, keys, finalDestination);
+    /**
+     * Create a forward Sphinx message from a header created in advance, encoding the destination and message with a packer
+     * reused across calls by the same thread.
+     * @param params Sphinx parameters.
+     * @param headerAndSecrets Header of a forward message and the secrets shared with the mix nodes of its route.
+     * @param destinationAndMessage Final destination and the data payload of the Sphinx packet.
+     * @param packer Packer whose content is discarded.
+     * @return Header and payload of a Sphinx packet encrypted in a nested manner.
+     */
+    static HeaderAndDelta createForwardMessage(SphinxParams params, HeaderAndSecrets headerAndSecrets, DestinationAndMessage destinationAndMessage, MessageBufferPacker packer) {
+        byte[] dest = destinationAndMessage.destination;
+        byte[] message = destinationAndMessage.message;
+
+        checkDestination(dest);
 
-        packer = MessagePack.newDefaultBufferPacker();
+        packer.clear();
         try {
             packer.packArrayHeader(2);
             packer.packBinaryHeader(dest.length);
             packer.writePayload(dest);
             packer.packBinaryHeader(message.length);
             packer.writePayload(message);
-            packer.close();
+            packer.flush();
         } catch (IOException ex) {
             throw new SphinxException("Failed to pack destination and message");
         }
 
         byte[] encodedDestAndMsg = packer.toByteArray();
 
-        byte[][] secrets = headerAndSecrets.secrets;
+        HopKeys[] hopKeys = headerAndSecrets.getHopKeys(params);
         byte[] payload = padBody(params.getBodyLength() - params.getKeyLength(), encodedDestAndMsg);
-        byte[] mac = params.mu(params.hpi(secrets[nodelist.length - 1]), payload);
-        byte[] body = concatenate(mac, payload);
+        byte[] mac = params.mu(hopKeys[hopKeys.length - 1].pi, payload);
+        byte[] delta = concatenate(mac, payload);
 
-        byte[] delta = params.pi(params.hpi(secrets[nodelist.length - 1]), body);
-
-        for (int i = nodelist.length - 2; i >= 0; i--) {
-            delta = params.pi(params.hpi(secrets[i]), delta);
+        for (int i = hopKeys.length - 1; i >= 0; i--) {
+            params.pi(hopKeys[i].pi, delta, 0);
         }
 
         return new HeaderAndDelta(headerAndSecrets.header, delta);
     }
 
+    private static void checkDestination(byte[] dest) {
+        if (!(dest.length > 0 && dest.length < MAX_DEST_SIZE)) {
+            throw new SphinxException("Destination has to be between 1 and " + MAX_DEST_SIZE + " bytes long");
+        }
+    }
+
     /**
      * Create a single-use reply block to receive replies anonymously.
      * @param params Sphinx parameters.
@@ -265,12 +370,81 @@ public class SphinxClient {
      * @return An identifier for the SURB, key tuple to receive a message addressed to this SURB, and the reply block itself.
      */
     public static Surb createSurb(SphinxParams params, byte[][] nodelist, ECPoint[] keys, byte[] dest) {
-        SecureRandom secureRandom = new SecureRandom();
-        int nu = nodelist.length;
+        return createSurb(params, nodelist, keys, dest, null);
+    }
+
+    /**
+     * Create a single-use reply block to receive replies anonymously, using precomputed tables for the public keys of the mix nodes.
+     * @param params Sphinx parameters.
+     * @param nodelist List of encoded mix node identifiers used to route the Sphinx packet.
+     * @param keys List of the corresponding public keys of the mix nodes in nodelist.
+     * @param dest Final destination of the Sphinx packet.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @return An identifier for the SURB, key tuple to receive a message addressed to this SURB, and the reply block itself.
+     */
+    public static Surb createSurb(SphinxParams params, byte[][] nodelist, ECPoint[] keys, byte[] dest, NodeKeyCache nodeKeyCache) {
+        RandomSource random = params.getRandomSource();
 
         byte[] xid = new byte[params.getKeyLength()];
-        secureRandom.nextBytes(xid);
+        random.nextBytes(xid, 0, xid.length);
+
+        byte[] ktilde = new byte[params.getKeyLength()];
+        random.nextBytes(ktilde, 0, ktilde.length);
+
+        return createSurb(params, nodelist, keys, dest, nodeKeyCache, xid, ktilde, params.getGroup().genSecret(random), null);
+    }
+
+    /**
+     * Create a single-use reply block whose identifier, payload key and blinding factor are derived from a random seed
+     * under a master key. Instead of the key tuple, the recipient only needs to keep the seed, returned in the seed field
+     * of the SURB, and the route, and recomputes the key tuple when the reply arrives.
+     * @param params Sphinx parameters.
+     * @param masterKey Secret key of the recipient under which the SURB is derived from its seed.
+     * @param nodelist List of encoded mix node identifiers used to route the Sphinx packet.
+     * @param keys List of the corresponding public keys of the mix nodes in nodelist.
+     * @param dest Final destination of the Sphinx packet.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @return An identifier for the SURB, key tuple to receive a message addressed to this SURB, the reply block itself and its seed.
+     */
+    public static Surb createSeededSurb(SphinxParams params, byte[] masterKey, byte[][] nodelist, ECPoint[] keys, byte[] dest, NodeKeyCache nodeKeyCache) {
+        checkMasterKey(masterKey);
+
+        byte[] seed = new byte[params.getKeyLength()];
+        params.getRandomSource().nextBytes(seed, 0, seed.length);
+
+        byte[] xid = slice(deriveFromSeed(params, masterKey, SURB_XID_FLAVOR, seed), params.getKeyLength());
+        byte[] ktilde = slice(deriveFromSeed(params, masterKey, SURB_KTILDE_FLAVOR, seed), params.getKeyLength());
+
+        return createSurb(params, nodelist, keys, dest, nodeKeyCache, xid, ktilde, deriveBlindFactor(params, masterKey, seed), seed);
+    }
+
+    /**
+     * Recompute the key tuple of a SURB created by createSeededSurb.
+     * @param params Sphinx parameters.
+     * @param masterKey Secret key of the recipient the SURB was created under.
+     * @param seed Seed of the SURB.
+     * @param keys List of the public keys of the mix nodes of the route of the SURB.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @return Key tuple used to receive a message addressed to the SURB.
+     */
+    public static byte[][] deriveSurbKeytuple(SphinxParams params, byte[] masterKey, byte[] seed, ECPoint[] keys, NodeKeyCache nodeKeyCache) {
+        checkMasterKey(masterKey);
+        if (seed.length != params.getKeyLength()) {
+            throw new SphinxException("Length of provided seed (" + seed.length + ") must be " + params.getKeyLength());
+        }
 
+        HopKeys[] hopKeys = deriveRouteKeys(params, keys, deriveBlindFactor(params, masterKey, seed), nodeKeyCache, null);
+
+        byte[][] keytuple = new byte[hopKeys.length + 1][];
+        keytuple[0] = slice(deriveFromSeed(params, masterKey, SURB_KTILDE_FLAVOR, seed), params.getKeyLength());
+        for (int i = 1; i < keytuple.length; i++) {
+            keytuple[i] = hopKeys[i - 1].pi;
+        }
+
+        return keytuple;
+    }
+
+    private static Surb createSurb(SphinxParams params, byte[][] nodelist, ECPoint[] keys, byte[] dest, NodeKeyCache nodeKeyCache, byte[] xid, byte[] ktilde, BigInteger blindFactor, byte[] seed) {
         MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
         try {
             packer.packArrayHeader(3);
@@ -285,26 +459,45 @@ public class SphinxClient {
         }
 
         byte[] finalDest = packer.toByteArray();
-        HeaderAndSecrets headerAndSecrets = createHeader(params, nodelist, keys, finalDest);
+        HeaderAndSecrets headerAndSecrets = createHeader(params, nodelist, keys, finalDest, nodeKeyCache, blindFactor);
 
-        byte[] ktilde = new byte[params.getKeyLength()];
-        secureRandom.nextBytes(ktilde);
-
-        byte[][] hashedSecrets = new byte[headerAndSecrets.secrets.length][];
-        for (int i = 0; i < hashedSecrets.length; i++) {
-            hashedSecrets[i] = params.hpi(headerAndSecrets.secrets[i]);
-        }
-
-        byte[][] keytuple = new byte[hashedSecrets.length + 1][];
+        HopKeys[] hopKeys = headerAndSecrets.getHopKeys(params);
+        byte[][] keytuple = new byte[hopKeys.length + 1][];
         keytuple[0] = ktilde;
 
         for (int i = 1; i < keytuple.length; i++) {
-            keytuple[i] = hashedSecrets[i - 1];
+            keytuple[i] = hopKeys[i - 1].pi;
         }
 
         NymTuple nymTuple = new NymTuple(nodelist[0], headerAndSecrets.header, ktilde);
 
-        return new Surb(xid, keytuple, nymTuple);
+        return new Surb(xid, keytuple, nymTuple, seed);
+    }
+
+    // Each value is derived with its own HMAC, so that knowing one of them, such as the xid seen by the last mix node,
+    // reveals nothing about the others
+    private static byte[] deriveFromSeed(SphinxParams params, byte[] masterKey, byte[] flavor, byte[] seed) {
+        byte[] data = concatenate(flavor, seed);
+        byte[] output = new byte[32];
+        params.getCryptoBackend().hmacSha256(masterKey, data, 0, data.length, output);
+
+        return output;
+    }
+
+    // The blinding factor takes all 256 bits of the HMAC, as a 128-bit exponent would be found with about 2^64 group operations
+    private static BigInteger deriveBlindFactor(SphinxParams params, byte[] masterKey, byte[] seed) {
+        BigInteger blindFactor = params.getGroup().makeexp(deriveFromSeed(params, masterKey, SURB_BLIND_FLAVOR, seed));
+        if (blindFactor.signum() == 0) {
+            throw new SphinxException("Seed yields a zero blinding factor");
+        }
+
+        return blindFactor;
+    }
+
+    private static void checkMasterKey(byte[] masterKey) {
+        if (masterKey.length < MIN_MASTER_KEY_LENGTH) {
+            throw new SphinxException("Length of provided master key (" + masterKey.length + ") must be at least " + MIN_MASTER_KEY_LENGTH);
+        }
     }
 
     /**
@@ -368,8 +561,24 @@ public class SphinxClient {
      * @return The data payload of the Sphinx packet.
      */
     public static byte[] receiveSurb(SphinxParams params, byte[][] keytuple, byte[] delta) {
+        return receiveSurb(params, keytuple, keytuple.length, delta);
+    }
+
+    /**
+     * Receive a reply to a Sphinx message addressed to a SURB, with a key tuple read into reused arrays, such as by SurbKeyStore.take.
+     * @param params Sphinx parameters.
+     * @param keytuple Key tuple used to receive the message addressed to a SURB, followed by unused arrays.
+     * @param keyCount Number of keys in keytuple.
+     * @param delta The encrypted data payload of the Sphinx packet.
+     * @return The data payload of the Sphinx packet.
+     */
+    public static byte[] receiveSurb(SphinxParams params, byte[][] keytuple, int keyCount, byte[] delta) {
+        if (keyCount < 1 || keyCount > keytuple.length) {
+            throw new SphinxException("Number of keys (" + keyCount + ") must be between 1 and the length of the key tuple (" + keytuple.length + ")");
+        }
+
         byte[] ktilde = keytuple[0];
-        for (int i = keytuple.length - 1; i > 0; i--) {
+        for (int i = keyCount - 1; i > 0; i--) {
             delta = params.pi(keytuple[i], delta);
         }
         delta = params.pii(ktilde, delta);
@@ -386,6 +595,19 @@ public class SphinxClient {
         return unpadBody(slice(delta, params.getKeyLength(), delta.length));
     }
 
+    /**
+     * Receive a reply addressed to a SURB created by createSeededSurb, recomputing its key tuple from the seed.
+     * @param params Sphinx parameters.
+     * @param masterKey Secret key of the recipient the SURB was created under.
+     * @param seed Seed of the SURB.
+     * @param keys List of the public keys of the mix nodes of the route of the SURB.
+     * @param delta The encrypted data payload of the Sphinx packet.
+     * @return The data payload of the Sphinx packet.
+     */
+    public static byte[] receiveSurb(SphinxParams params, byte[] masterKey, byte[] seed, ECPoint[] keys, byte[] delta) {
+        return receiveSurb(params, deriveSurbKeytuple(params, masterKey, seed, keys, null), delta);
+    }
+
     /**
      * Package a Sphinx message into binary format.
      * @param sphinxPacket Sphinx packet and the Sphinx parameter lengths.
@@ -399,7 +621,7 @@ public class SphinxClient {
 
         Header header = sphinxPacket.headerAndDelta.header;
         byte[] delta = sphinxPacket.headerAndDelta.delta;
-        byte[] packedEcPoint = packECPoint(header.alpha);
+        byte[] packedEcPoint = packECPoint(header.getCurveNid(), header.getEncodedAlpha());
 
         try {
             packer.packArrayHeader(2);
@@ -454,10 +676,11 @@ public class SphinxClient {
         }
 
         unpacker = MessagePack.newDefaultUnpacker(packedAlpha);
+        int curveNid;
         byte[] encodedAlpha;
         try {
             unpacker.unpackArrayHeader();
-            unpacker.unpackInt();
+            curveNid = unpacker.unpackInt();
             int encodedAlphaLength = unpacker.unpackBinaryHeader();
             encodedAlpha = unpacker.readPayload(encodedAlphaLength);
             unpacker.close();
@@ -465,16 +688,34 @@ public class SphinxClient {
             throw new SphinxException("Failed to unpack alpha");
         }
 
-        ECPoint alpha = Util.decodeECPoint(encodedAlpha);
-
+        // Alpha is only decompressed once the packet is processed
         ParamLengths paramLengths = new ParamLengths(headerLength, bodyLength);
-        Header header = new Header(alpha, beta, gamma);
+        Header header = new Header(curveNid, encodedAlpha, beta, gamma);
 
         HeaderAndDelta headerAndDelta = new HeaderAndDelta(header, delta);
 
         return new SphinxPacket(paramLengths, headerAndDelta);
     }
 
+    /**
+     * Unpack a binary message that is either in the msgpack format of packMessage or in one of the given compact formats.
+     * @param m Binary message.
+     * @param formats Compact formats accepted next to the msgpack format.
+     * @return Binary message serialised into SphinxPacket type.
+     */
+    public static SphinxPacket unpackMessage(byte[] m, CompactPacketFormat[] formats) {
+        if (m.length == 0) {
+            throw new SphinxException("Failed to unpack the sphinx packet");
+        }
+
+        CompactPacketFormat format = CompactPacketFormat.detect(m[0], formats);
+        if (format == null) {
+            return unpackMessage(m);
+        }
+
+        return format.unpackMessage(m);
+    }
+
     /**
      * Compute the maximum number of bytes that can be packet into a single Sphinx packet payload with the given parameters.
      * @param params Sphinx parameters.
@@ -531,13 +772,11 @@ public class SphinxClient {
         return ret;
     }
 
-    private static byte[] packECPoint(ECPoint ecPoint) {
-        byte[] encodedEcPoint = ecPoint.getEncoded(true);
-
+    private static byte[] packECPoint(int curveNid, byte[] encodedEcPoint) {
         MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
         try {
             packer.packArrayHeader(2);
-            packer.packInt(ECCGroup.DEFAULT_CURVE_NID);
+            packer.packInt(curveNid);
             packer.packBinaryHeader(encodedEcPoint.length);
             packer.writePayload(encodedEcPoint);
             packer.close();
@@ -1,17 +1,20 @@
 package com.robertsoultanaev.javasphinx;
 
 import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.util.encoders.Hex;
 
 import java.math.BigInteger;
 import java.util.Arrays;
 
 import static com.robertsoultanaev.javasphinx.Util.slice;
-import static com.robertsoultanaev.javasphinx.Util.concatenate;
 
 /**
  * Class to house the methods used by mix nodes to process Sphinx packets
  */
 public class SphinxNode {
+    // The length of the routing information is encoded in a single byte
+    private static final int MAX_ROUTING_LENGTH = 255;
+
     /**
      * Method that processes Sphinx packets at a mix node
      * @param params Sphinx parameters
@@ -20,48 +23,220 @@ public class SphinxNode {
      * @return The new header and payload of the Sphinx packet along with some auxiliary information
      */
     public static ProcessedPacket sphinxProcess(SphinxParams params, BigInteger secret, HeaderAndDelta headerAndDelta) {
-        ECCGroup group = params.getGroup();
-        ECPoint alpha = headerAndDelta.header.alpha;
-        byte[] beta = headerAndDelta.header.beta;
-        byte[] gamma = headerAndDelta.header.gamma;
-        byte[] delta = headerAndDelta.delta;
+        return sphinxProcess(params, secret, headerAndDelta, null);
+    }
 
-        ECPoint s = group.expon(alpha, secret);
-        byte[] aesS = params.getAesKey(s);
+    /**
+     * Method that processes Sphinx packets at a mix node, dropping replayed packets before decrypting their payload
+     * @param params Sphinx parameters
+     * @param secret Mix node's private key
+     * @param headerAndDelta Header and encrypted payload of the Sphinx packet
+     * @param replayFilter Filter recording the tags of processed packets, or null to skip the replay check
+     * @return The new header and payload of the Sphinx packet along with some auxiliary information
+     */
+    public static ProcessedPacket sphinxProcess(SphinxParams params, BigInteger secret, HeaderAndDelta headerAndDelta, ReplayFilter replayFilter) {
+        checkHeader(params, headerAndDelta.header);
+        ECPoint s = params.getGroup().expon(headerAndDelta.header.getAlpha(), secret);
+
+        return processWithSharedSecret(params, headerAndDelta, s, replayFilter);
+    }
+
+    /**
+     * Method that processes Sphinx packets at a mix node with a key recoded in advance, for nodes processing many packets
+     * @param params Sphinx parameters
+     * @param key Mix node's private key
+     * @param headerAndDelta Header and encrypted payload of the Sphinx packet
+     * @param replayFilter Filter recording the tags of processed packets, or null to skip the replay check
+     * @return The new header and payload of the Sphinx packet along with some auxiliary information
+     */
+    public static ProcessedPacket sphinxProcess(SphinxParams params, SphinxNodeKey key, HeaderAndDelta headerAndDelta, ReplayFilter replayFilter) {
+        ECPoint s = sharedSecret(params, key, headerAndDelta.header);
+
+        return processWithSharedSecret(params, headerAndDelta, s, replayFilter);
+    }
+
+    /**
+     * Method that processes Sphinx packets at a mix node holding several valid key epochs.
+     * The packet is tried against the key of the current epoch first, and against the keys of older epochs only if its MAC does not match.
+     * Replays are checked with the replay filter of the epoch whose key matched.
+     * @param params Sphinx parameters
+     * @param epochs Valid key epochs of the mix node
+     * @param headerAndDelta Header and encrypted payload of the Sphinx packet
+     * @return The new header and payload of the Sphinx packet along with some auxiliary information
+     */
+    public static ProcessedPacket sphinxProcess(SphinxParams params, KeyEpochs epochs, HeaderAndDelta headerAndDelta) {
+        KeyEpochs.Epoch[] validEpochs = epochs.snapshot();
+        if (validEpochs.length == 0) {
+            throw new SphinxException("No valid key epoch");
+        }
+
+        ECPoint s = sharedSecret(params, validEpochs[0].key, headerAndDelta.header);
+
+        return processWithSharedSecret(params, validEpochs, headerAndDelta, s);
+    }
+
+    /**
+     * First stage of sphinxProcess: check the header of a packet and compute the secret shared with its sender.
+     * Alpha is only decoded once the lengths and the curve of the header have been checked.
+     * The result may be in projective coordinates, so that callers processing several packets can normalise them together.
+     * @param params Sphinx parameters
+     * @param key Mix node's private key
+     * @param header Header of the Sphinx packet
+     * @return alpha to the power of the private key
+     */
+    static ECPoint sharedSecret(SphinxParams params, SphinxNodeKey key, Header header) {
+        checkHeader(params, header);
+
+        return sharedSecret(params, key, header.getAlpha());
+    }
+
+    /**
+     * Compute the secret shared with the sender of a packet from the group element of its header.
+     * The result may be in projective coordinates, so that callers processing several packets can normalise them together.
+     * @param params Sphinx parameters
+     * @param key Mix node's private key
+     * @param alpha Group element of the header of the Sphinx packet
+     * @return alpha to the power of the private key
+     */
+    static ECPoint sharedSecret(SphinxParams params, SphinxNodeKey key, ECPoint alpha) {
+        checkCurve(params, alpha);
+
+        if (key.getGroup().getCurveNid() != params.getGroup().getCurveNid()) {
+            throw new SphinxException("Curve of the key (" + key.getGroup().getCurveNid() + ") did not match the curve of the group (" + params.getGroup().getCurveNid() + ")");
+        }
+
+        return key.expon(alpha);
+    }
 
+    private static void checkCurve(SphinxParams params, ECPoint alpha) {
+        checkCurveNid(params, Util.getCurveNid(alpha.getCurve()));
+    }
+
+    private static void checkCurveNid(SphinxParams params, int curveNid) {
+        EllipticCurveGroup group = params.getGroup();
+        if (curveNid != group.getCurveNid()) {
+            throw new SphinxException("Curve of alpha (" + curveNid + ") did not match the curve of the group (" + group.getCurveNid() + ")");
+        }
+    }
+
+    // Checks that do not need alpha to be decoded
+    private static void checkHeader(SphinxParams params, Header header) {
+        checkCurveNid(params, header.getCurveNid());
+        checkBetaLength(params, header.beta);
+
+        if (header.gamma.length != params.getKeyLength()) {
+            throw new SphinxException("Length of gamma (" + header.gamma.length + ") did not match expected length (" + params.getKeyLength() + ")");
+        }
+    }
+
+    /**
+     * Second stage of sphinxProcess: process a packet given the secret shared with its sender.
+     * The group element of the new header may be in projective coordinates.
+     * @param params Sphinx parameters
+     * @param headerAndDelta Header and encrypted payload of the Sphinx packet
+     * @param s Secret shared with the sender, as returned by sharedSecret
+     * @param replayFilter Filter recording the tags of processed packets, or null to skip the replay check
+     * @return The new header and payload of the Sphinx packet along with some auxiliary information
+     */
+    static ProcessedPacket processWithSharedSecret(SphinxParams params, HeaderAndDelta headerAndDelta, ECPoint s, ReplayFilter replayFilter) {
+        checkBetaLength(params, headerAndDelta.header.beta);
+
+        HopKeys hopKeys = deriveHopKeysIfMacMatches(params, headerAndDelta.header, s);
+        if (hopKeys == null) {
+            throw new SphinxException("MAC mismatch");
+        }
+
+        return processWithHopKeys(params, headerAndDelta, hopKeys, replayFilter);
+    }
+
+    /**
+     * Second stage of sphinxProcess with key epochs: process a packet given the secret it shares with the key of the first epoch,
+     * trying the keys of the other epochs in order if its MAC does not match.
+     * The group element of the new header may be in projective coordinates.
+     * @param params Sphinx parameters
+     * @param epochs Valid key epochs of the mix node, newest first
+     * @param headerAndDelta Header and encrypted payload of the Sphinx packet
+     * @param s Secret shared with the sender under the key of the first epoch, as returned by sharedSecret
+     * @return The new header and payload of the Sphinx packet along with some auxiliary information
+     */
+    static ProcessedPacket processWithSharedSecret(SphinxParams params, KeyEpochs.Epoch[] epochs, HeaderAndDelta headerAndDelta, ECPoint s) {
+        checkBetaLength(params, headerAndDelta.header.beta);
+
+        for (int i = 0; i < epochs.length; i++) {
+            if (i > 0) {
+                s = sharedSecret(params, epochs[i].key, headerAndDelta.header.getAlpha());
+            }
+
+            HopKeys hopKeys = deriveHopKeysIfMacMatches(params, headerAndDelta.header, s);
+            if (hopKeys != null) {
+                return processWithHopKeys(params, headerAndDelta, hopKeys, epochs[i].replayFilter);
+            }
+        }
+
+        throw new SphinxException("MAC mismatch");
+    }
+
+    private static void checkBetaLength(SphinxParams params, byte[] beta) {
         if (beta.length != (params.getHeaderLength() - 32)) {
             throw new SphinxException("Length of beta (" + beta.length + ") did not match expected length (" + (params.getHeaderLength() - 32) + ")");
         }
+    }
 
-        if (!Arrays.equals(gamma, params.mu(params.hmu(aesS), beta))) {
-            throw new SphinxException("MAC mismatch");
+    private static HopKeys deriveHopKeysIfMacMatches(SphinxParams params, Header header, ECPoint s) {
+        byte[] aesS = params.getAesKey(s);
+        HopKeys hopKeys = params.deriveHopKeys(aesS);
+
+        if (!Arrays.equals(header.gamma, params.mu(hopKeys.mu, header.beta))) {
+            return null;
         }
 
-        byte[] betaPadZeroes = new byte[2 * params.getBodyLength()];
-        Arrays.fill(betaPadZeroes, (byte) 0x00);
-        byte[] betaPad = concatenate(beta, betaPadZeroes);
+        return hopKeys;
+    }
 
-        byte[] B = params.xorRho(params.hrho(aesS), betaPad);
+    private static ProcessedPacket processWithHopKeys(SphinxParams params, HeaderAndDelta headerAndDelta, HopKeys hopKeys, ReplayFilter replayFilter) {
+        byte[] tag = hopKeys.tau;
 
-        byte length = B[0];
-        byte[] routing = slice(B, 1, 1 + length);
-        byte[] rest = slice(B, 1 + length, B.length);
+        if (replayFilter != null && !replayFilter.add(tag)) {
+            throw new SphinxException("Replayed packet with tag " + Hex.toHexString(tag));
+        }
 
-        byte[] tag = params.htau(aesS);
-        BigInteger b = params.hb(alpha, aesS);
-        alpha = group.expon(alpha, b);
-        gamma = slice(rest, params.getKeyLength());
-        beta = slice(rest, params.getKeyLength(), params.getKeyLength() + (params.getHeaderLength() - 32));
-        delta = params.pii(params.hpi(aesS), delta);
+        // Only the keystream covering beta and the routing information is computed here, the keystream covering the next
+        // gamma and beta is left to unwrapHeader, rather than running rho over beta padded with zeroes
+        int betaLength = params.getHeaderLength() - 32;
+        byte[] rho = hopKeys.rho;
+        byte[] B = new byte[1 + MAX_ROUTING_LENGTH + params.getKeyLength() + betaLength];
+        System.arraycopy(headerAndDelta.header.beta, 0, B, 0, betaLength);
+        params.xorRho(rho, 0, B, 0, betaLength);
+
+        int length = B[0] & 0xff;
+        if (1 + length > betaLength) {
+            params.xorRho(rho, betaLength, B, betaLength, 1 + length - betaLength);
+        }
 
-        byte[] macKey = params.hpi(aesS);
+        byte[] routing = slice(B, 1, 1 + length);
 
-        Header header = new Header(alpha, beta, gamma);
+        return new ProcessedPacket(params, headerAndDelta, hopKeys, B, length, routing);
+    }
 
-        HeaderAndDelta headerAndDelta1 = new HeaderAndDelta(header, delta);
+    /**
+     * Compute the header for the next hop of a processed packet.
+     * @param params Sphinx parameters
+     * @param alpha Group element of the header as received
+     * @param hopKeys Keys of the hop derived from the shared secret
+     * @param B Buffer of processWithHopKeys, decrypted up to the end of the routing information
+     * @param length Length of the routing information
+     * @return Header for the next hop, whose group element may be in projective coordinates
+     */
+    static Header unwrapHeader(SphinxParams params, ECPoint alpha, HopKeys hopKeys, byte[] B, int length) {
+        int betaLength = params.getHeaderLength() - 32;
+        int decryptedLength = Math.max(betaLength, 1 + length);
+        int unwrappedLength = 1 + length + params.getKeyLength() + betaLength;
+        params.xorRho(hopKeys.rho, decryptedLength, B, decryptedLength, unwrappedLength - decryptedLength);
 
-        ProcessedPacket ret = new ProcessedPacket(tag, routing, headerAndDelta1, macKey);
+        ECPoint blindedAlpha = params.getGroup().expon(alpha, hopKeys.b);
+        byte[] gamma = slice(B, 1 + length, 1 + length + params.getKeyLength());
+        byte[] beta = slice(B, 1 + length + params.getKeyLength(), unwrappedLength);
 
-        return ret;
+        return new Header(blindedAlpha, beta, gamma);
     }
 }
@@ -0,0 +1,59 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+
+/**
+ * Class to hold the private key of a mix node together with its recoding, which is computed once when the key is loaded
+ * instead of for every processed packet. Instances are immutable and can be shared between the threads processing packets.
+ */
+public final class SphinxNodeKey {
+    private final EllipticCurveGroup group;
+    private final BigInteger secret;
+    private final PrecomputedExponent exponent;
+
+    /**
+     * Create the key of a mix node.
+     * @param group Group the key belongs to.
+     * @param secret Mix node's private key.
+     */
+    public SphinxNodeKey(EllipticCurveGroup group, BigInteger secret) {
+        this.group = group;
+        this.secret = secret;
+        this.exponent = group.precomputeExponent(secret);
+    }
+
+    /**
+     * Get the group the key belongs to.
+     * @return Group the key belongs to.
+     */
+    public EllipticCurveGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * Get the private key.
+     * @return Mix node's private key.
+     */
+    public BigInteger getSecret() {
+        return secret;
+    }
+
+    /**
+     * Get the public key matching the private key.
+     * @return Generator of the group to the power of the private key.
+     */
+    public ECPoint getPublicKey() {
+        return group.exponGenerator(secret);
+    }
+
+    /**
+     * Raise base to the power of the private key.
+     * @param base Base elliptic curve point.
+     * @return base to the power of the private key.
+     */
+    ECPoint expon(ECPoint base) {
+        return group.expon(base, exponent);
+    }
+}
@@ -0,0 +1,260 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Class to read and write packed Sphinx packets straight from and to heap or direct ByteBuffers.
+ *
+ * The wire format is the msgpack format of SphinxClient.packMessage, byte for byte, with every length and integer in
+ * the smallest encoding as chosen by msgpack, so packets are interchangeable with the ones of packMessage and of the
+ * Python reference implementation. Decoding parses the msgpack framing in place and returns views of the fields.
+ */
+public final class SphinxPacketCodec {
+    private static final byte ALPHA_EXTENSION_TYPE = 2;
+
+    private SphinxPacketCodec() {
+    }
+
+    /**
+     * Decode the packet at the position of a buffer, without copying its fields.
+     * The position of the buffer is advanced past the packet, and the buffer may hold other data after it.
+     * @param buffer Buffer holding the packed packet.
+     * @return Views of the fields of the packet.
+     */
+    public static PacketView decode(ByteBuffer buffer) {
+        PacketLayout layout = new PacketLayout();
+        layout.parse(buffer);
+
+        return view(buffer, layout);
+    }
+
+    /**
+     * Decode the packet at the position of a buffer, which is either in the msgpack format or in one of the given compact
+     * formats, without copying its fields.
+     * The position of the buffer is advanced past the packet, and the buffer may hold other data after it.
+     * @param buffer Buffer holding the packet.
+     * @param formats Compact formats accepted next to the msgpack format.
+     * @return Views of the fields of the packet.
+     */
+    public static PacketView decode(ByteBuffer buffer, CompactPacketFormat[] formats) {
+        if (!buffer.hasRemaining()) {
+            throw new TruncatedPacketException("Packet is truncated");
+        }
+
+        return decode(buffer, formats, new PacketLayout());
+    }
+
+    // Decode the packet at the position of a non-empty buffer, reusing the layout of the caller
+    static PacketView decode(ByteBuffer buffer, CompactPacketFormat[] formats, PacketLayout layout) {
+        CompactPacketFormat format = CompactPacketFormat.detect(buffer.get(buffer.position()), formats);
+        if (format == null) {
+            layout.parse(buffer);
+        } else {
+            layout.parse(format, buffer);
+        }
+
+        return view(buffer, layout);
+    }
+
+    /**
+     * Compute the length of a packet once packed.
+     * @param sphinxPacket Sphinx packet and the Sphinx parameter lengths.
+     * @return Number of bytes written by encode for the packet.
+     */
+    public static int getEncodedLength(SphinxPacket sphinxPacket) {
+        Header header = sphinxPacket.headerAndDelta.header;
+        int alphaLength = header.getEncodedAlpha().length;
+
+        return getEncodedLength(sphinxPacket.paramLengths, header.getCurveNid(), alphaLength,
+                header.beta.length, header.gamma.length, sphinxPacket.headerAndDelta.delta.length);
+    }
+
+    /**
+     * Write a packet at the position of a buffer, advancing the position past it.
+     * The bytes written are identical to the ones returned by SphinxClient.packMessage.
+     * @param sphinxPacket Sphinx packet and the Sphinx parameter lengths.
+     * @param buffer Buffer receiving the packed packet.
+     */
+    public static void encode(SphinxPacket sphinxPacket, ByteBuffer buffer) {
+        ParamLengths paramLengths = sphinxPacket.paramLengths;
+        Header header = sphinxPacket.headerAndDelta.header;
+        byte[] delta = sphinxPacket.headerAndDelta.delta;
+        int curveNid = header.getCurveNid();
+        byte[] encodedAlpha = header.getEncodedAlpha();
+
+        int length = getEncodedLength(paramLengths, curveNid, encodedAlpha.length, header.beta.length, header.gamma.length, delta.length);
+        if (buffer.remaining() < length) {
+            throw new SphinxException("Packet of " + length + " bytes does not fit in the " + buffer.remaining() + " remaining bytes of the buffer");
+        }
+
+        try {
+            writeArrayHeader(buffer, 2);
+            writeArrayHeader(buffer, 2);
+            writeInt(buffer, paramLengths.headerLength);
+            writeInt(buffer, paramLengths.bodyLength);
+            writeArrayHeader(buffer, 2);
+            writeArrayHeader(buffer, 3);
+            writeExtensionHeader(buffer, ALPHA_EXTENSION_TYPE, getPackedAlphaLength(curveNid, encodedAlpha.length));
+            writeArrayHeader(buffer, 2);
+            writeInt(buffer, curveNid);
+            writeBinary(buffer, encodedAlpha);
+            writeBinary(buffer, header.beta);
+            writeBinary(buffer, header.gamma);
+            writeBinary(buffer, delta);
+        } catch (BufferOverflowException ex) {
+            throw new SphinxException("Failed to pack the sphinx packet");
+        }
+    }
+
+    private static int getEncodedLength(ParamLengths paramLengths, int curveNid, int alphaLength, int betaLength, int gammaLength, int deltaLength) {
+        int packedAlphaLength = getPackedAlphaLength(curveNid, alphaLength);
+
+        return 1 + 1 + getIntLength(paramLengths.headerLength) + getIntLength(paramLengths.bodyLength) + 1 + 1
+                + getExtensionHeaderLength(packedAlphaLength) + packedAlphaLength
+                + getBinaryHeaderLength(betaLength) + betaLength
+                + getBinaryHeaderLength(gammaLength) + gammaLength
+                + getBinaryHeaderLength(deltaLength) + deltaLength;
+    }
+
+    // [curveNid, bin alpha], as packed by SphinxClient.packECPoint
+    private static int getPackedAlphaLength(int curveNid, int alphaLength) {
+        return 1 + getIntLength(curveNid) + getBinaryHeaderLength(alphaLength) + alphaLength;
+    }
+
+    // Views of the fields of a parsed packet, advancing the position of the buffer past it
+    static PacketView view(ByteBuffer buffer, PacketLayout layout) {
+        PacketView view = new PacketView(layout.headerLength, layout.bodyLength, layout.curveNid,
+                view(buffer, buffer.position(), layout.end - buffer.position()),
+                view(buffer, layout.alphaOffset, layout.alphaLength),
+                view(buffer, layout.betaOffset, layout.betaLength),
+                view(buffer, layout.gammaOffset, layout.gammaLength),
+                view(buffer, layout.deltaOffset, layout.deltaLength));
+
+        buffer.position(layout.end);
+
+        return view;
+    }
+
+    private static ByteBuffer view(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+
+        return view.slice();
+    }
+
+    private static void writeArrayHeader(ByteBuffer buffer, int size) {
+        // Packets only contain arrays of up to 3 elements
+        buffer.put((byte) (0x90 | size));
+    }
+
+    private static int getIntLength(int value) {
+        if (value < -(1 << 5)) {
+            if (value < -(1 << 15)) {
+                return 5;
+            } else if (value < -(1 << 7)) {
+                return 3;
+            } else {
+                return 2;
+            }
+        } else if (value < (1 << 7)) {
+            return 1;
+        } else if (value < (1 << 8)) {
+            return 2;
+        } else if (value < (1 << 16)) {
+            return 3;
+        } else {
+            return 5;
+        }
+    }
+
+    // Same choice of encoding as MessagePacker.packInt
+    private static void writeInt(ByteBuffer buffer, int value) {
+        if (value < -(1 << 5)) {
+            if (value < -(1 << 15)) {
+                buffer.put((byte) 0xd2);
+                buffer.putInt(value);
+            } else if (value < -(1 << 7)) {
+                buffer.put((byte) 0xd1);
+                buffer.putShort((short) value);
+            } else {
+                buffer.put((byte) 0xd0);
+                buffer.put((byte) value);
+            }
+        } else if (value < (1 << 7)) {
+            buffer.put((byte) value);
+        } else if (value < (1 << 8)) {
+            buffer.put((byte) 0xcc);
+            buffer.put((byte) value);
+        } else if (value < (1 << 16)) {
+            buffer.put((byte) 0xcd);
+            buffer.putShort((short) value);
+        } else {
+            buffer.put((byte) 0xce);
+            buffer.putInt(value);
+        }
+    }
+
+    private static int getExtensionHeaderLength(int length) {
+        if (length < (1 << 8)) {
+            boolean fixed = length == 1 || length == 2 || length == 4 || length == 8 || length == 16;
+            return fixed ? 2 : 3;
+        } else if (length < (1 << 16)) {
+            return 4;
+        } else {
+            return 6;
+        }
+    }
+
+    // Same choice of encoding as MessagePacker.packExtensionTypeHeader
+    private static void writeExtensionHeader(ByteBuffer buffer, byte type, int length) {
+        if (length < (1 << 8)) {
+            switch (length) {
+                case 1: buffer.put((byte) 0xd4); break;
+                case 2: buffer.put((byte) 0xd5); break;
+                case 4: buffer.put((byte) 0xd6); break;
+                case 8: buffer.put((byte) 0xd7); break;
+                case 16: buffer.put((byte) 0xd8); break;
+                default:
+                    buffer.put((byte) 0xc7);
+                    buffer.put((byte) length);
+            }
+        } else if (length < (1 << 16)) {
+            buffer.put((byte) 0xc8);
+            buffer.putShort((short) length);
+        } else {
+            buffer.put((byte) 0xc9);
+            buffer.putInt(length);
+        }
+
+        buffer.put(type);
+    }
+
+    private static int getBinaryHeaderLength(int length) {
+        if (length < (1 << 8)) {
+            return 2;
+        } else if (length < (1 << 16)) {
+            return 3;
+        } else {
+            return 5;
+        }
+    }
+
+    // Same choice of encoding as MessagePacker.packBinaryHeader
+    private static void writeBinary(ByteBuffer buffer, byte[] data) {
+        int length = data.length;
+        if (length < (1 << 8)) {
+            buffer.put((byte) 0xc4);
+            buffer.put((byte) length);
+        } else if (length < (1 << 16)) {
+            buffer.put((byte) 0xc5);
+            buffer.putShort((short) length);
+        } else {
+            buffer.put((byte) 0xc6);
+            buffer.putInt(length);
+        }
+
+        buffer.put(data);
+    }
+}
@@ -0,0 +1,144 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Class to read a stream of Sphinx packets from a channel.
+ *
+ * Packets are sent back to back without any extra framing: packets in the msgpack format carry the lengths of their
+ * fields, and packets in a compact format have the fixed length of their profile. Data is read into a single buffer
+ * that is reused for the whole stream, as many bytes at a time as the channel returns, and packets are decoded from it
+ * in place as soon as they are complete, so that partial reads are handled and many packets can be read with a single
+ * call to the channel.
+ *
+ * Without framing, the end of a malformed packet cannot be found, so the stream cannot be resynchronised after one. Once
+ * read has thrown a SphinxException the reader is failed: every later call throws, and the channel must be closed.
+ *
+ * A reader is not safe for use by several threads.
+ */
+public class SphinxPacketReader {
+    private static final int DEFAULT_BUFFER_CAPACITY = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final CompactPacketFormat[] formats;
+    private final ByteBuffer buffer;
+    private final PacketLayout layout = new PacketLayout();
+    private boolean endOfStream;
+    private SphinxException failure;
+
+    /**
+     * Create a reader for packets in the msgpack format, with a direct buffer of 64 KiB.
+     * @param channel Channel to read packets from.
+     */
+    public SphinxPacketReader(ReadableByteChannel channel) {
+        this(channel, ByteBuffer.allocateDirect(DEFAULT_BUFFER_CAPACITY), new CompactPacketFormat[0]);
+    }
+
+    /**
+     * Create a reader for packets in the msgpack format or in one of the given compact formats.
+     * @param channel Channel to read packets from.
+     * @param buffer Buffer the data is read into, which bounds the length of a packet and is owned by the reader from now on.
+     * @param formats Compact formats accepted next to the msgpack format.
+     */
+    public SphinxPacketReader(ReadableByteChannel channel, ByteBuffer buffer, CompactPacketFormat[] formats) {
+        this.channel = channel;
+        this.formats = formats.clone();
+        this.buffer = buffer;
+
+        // The buffer holds the data read but not yet decoded between its position and its limit
+        buffer.clear();
+        buffer.limit(0);
+    }
+
+    /**
+     * Read the next packet.
+     * The fields of the returned packet are views of the buffer of the reader, which stay valid until the next call to
+     * read. Blocking channels are read from until a whole packet has arrived. With non-blocking channels, null is
+     * returned as soon as the channel has no more data to give.
+     * @return Next packet, or null if no whole packet is available yet or the stream has ended.
+     * @throws IOException If reading from the channel failed.
+     * @throws SphinxException If the stream holds a malformed packet, or the reader failed on one before.
+     */
+    public PacketView read() throws IOException {
+        if (failure != null) {
+            throw new SphinxException("Reader failed on a malformed packet and the channel must be closed: " + failure.getMessage());
+        }
+
+        try {
+            while (true) {
+                if (buffer.hasRemaining()) {
+                    try {
+                        return SphinxPacketCodec.decode(buffer, formats, layout);
+                    } catch (TruncatedPacketException ex) {
+                        // The rest of the packet has not arrived yet
+                    }
+                }
+
+                if (!fill()) {
+                    return null;
+                }
+            }
+        } catch (SphinxException ex) {
+            failure = ex;
+            throw ex;
+        }
+    }
+
+    /**
+     * Check whether the reader failed on a malformed packet, after which it cannot read any further packet.
+     * @return True if the reader failed.
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Check whether the channel has reached the end of the stream.
+     * Packets already read from the channel may still be returned by read.
+     * @return True if the end of the stream was reached.
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    /**
+     * Get the number of bytes read from the channel but not yet returned as packets.
+     * @return Number of buffered bytes.
+     */
+    public int getBufferedLength() {
+        return buffer.remaining();
+    }
+
+    // Read more data behind the data left in the buffer, returning whether any was read
+    private boolean fill() throws IOException {
+        if (endOfStream) {
+            if (buffer.hasRemaining()) {
+                throw new SphinxException("Stream ended inside a packet, " + buffer.remaining() + " bytes were left");
+            }
+
+            return false;
+        }
+
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            buffer.flip();
+            throw new SphinxException("Packet does not fit in the " + buffer.capacity() + " bytes of the reader buffer");
+        }
+
+        int read;
+        try {
+            read = channel.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+
+        if (read < 0) {
+            endOfStream = true;
+            return fill();
+        }
+
+        return read > 0;
+    }
+}
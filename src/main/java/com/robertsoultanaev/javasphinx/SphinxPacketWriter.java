@@ -0,0 +1,189 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Class to write a stream of Sphinx packets to a channel, to be read back by SphinxPacketReader.
+ *
+ * Packets are encoded back to back into a single buffer that is reused for the whole stream, and packets that are
+ * already packed, such as the ones rewritten in place by SphinxRelay, are queued without being copied. Nothing is
+ * written until the buffer is full or flush is called, and everything queued is then handed to the channel at once,
+ * with a single gathering write if the channel is a GatheringByteChannel.
+ *
+ * A writer is not safe for use by several threads.
+ */
+public class SphinxPacketWriter {
+    private static final int DEFAULT_BUFFER_CAPACITY = 64 * 1024;
+
+    // Number of queued segments after which the queue is flushed, below the usual limit of a single gathering write
+    private static final int MAX_SEGMENTS = 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    // Queued data in the order it is to be written: regions of the buffer interleaved with packets queued by the caller
+    private ByteBuffer[] segments = new ByteBuffer[16];
+    private int segmentCount;
+    private int firstPendingSegment;
+
+    // Start of the data encoded into the buffer since the last segment was queued
+    private int segmentStart;
+
+    /**
+     * Create a writer with a direct buffer of 64 KiB.
+     * @param channel Channel to write packets to.
+     */
+    public SphinxPacketWriter(WritableByteChannel channel) {
+        this(channel, ByteBuffer.allocateDirect(DEFAULT_BUFFER_CAPACITY));
+    }
+
+    /**
+     * Create a writer.
+     * @param channel Channel to write packets to.
+     * @param buffer Buffer the packets are encoded into, which bounds the length of a packet and is owned by the writer from now on.
+     */
+    public SphinxPacketWriter(WritableByteChannel channel, ByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+        buffer.clear();
+    }
+
+    /**
+     * Queue a packet in the msgpack format.
+     * @param sphinxPacket Sphinx packet and the Sphinx parameter lengths.
+     * @return True if the packet was queued, false if the channel could not take the data queued before it.
+     * @throws IOException If writing to the channel failed.
+     */
+    public boolean write(SphinxPacket sphinxPacket) throws IOException {
+        if (!makeRoom(SphinxPacketCodec.getEncodedLength(sphinxPacket))) {
+            return false;
+        }
+
+        SphinxPacketCodec.encode(sphinxPacket, buffer);
+
+        return true;
+    }
+
+    /**
+     * Queue a packet in a compact format.
+     * @param sphinxPacket Sphinx packet built with the parameters of the format.
+     * @param format Compact format to write the packet in.
+     * @return True if the packet was queued, false if the channel could not take the data queued before it.
+     * @throws IOException If writing to the channel failed.
+     */
+    public boolean write(SphinxPacket sphinxPacket, CompactPacketFormat format) throws IOException {
+        if (!makeRoom(format.getPacketLength())) {
+            return false;
+        }
+
+        format.encode(sphinxPacket, buffer);
+
+        return true;
+    }
+
+    /**
+     * Queue a packet that is already packed, between its position and its limit, without copying it.
+     * The contents of the packet must not be changed until it has been flushed.
+     * @param packet Packed packet.
+     * @return True if the packet was queued, false if the channel could not take the data queued before it.
+     * @throws IOException If writing to the channel failed.
+     */
+    public boolean write(ByteBuffer packet) throws IOException {
+        if (segmentCount + 2 > MAX_SEGMENTS && !flush()) {
+            return false;
+        }
+
+        closeSegment();
+        addSegment(packet.duplicate());
+
+        return true;
+    }
+
+    /**
+     * Write everything queued to the channel.
+     * Blocking channels take all of it. Non-blocking channels may take only part of it, in which case flush has to be
+     * called again once the channel is writable, and packets that need the space still taken in the buffer are
+     * refused until it returns true.
+     * @return True if everything queued was written.
+     * @throws IOException If writing to the channel failed.
+     */
+    public boolean flush() throws IOException {
+        closeSegment();
+
+        while (firstPendingSegment < segmentCount) {
+            long written;
+            if (channel instanceof GatheringByteChannel) {
+                written = ((GatheringByteChannel) channel).write(segments, firstPendingSegment, segmentCount - firstPendingSegment);
+            } else {
+                written = channel.write(segments[firstPendingSegment]);
+            }
+
+            while (firstPendingSegment < segmentCount && !segments[firstPendingSegment].hasRemaining()) {
+                segments[firstPendingSegment++] = null;
+            }
+
+            if (written == 0 && firstPendingSegment < segmentCount) {
+                return false;
+            }
+        }
+
+        segmentCount = 0;
+        firstPendingSegment = 0;
+        segmentStart = 0;
+        buffer.clear();
+
+        return true;
+    }
+
+    /**
+     * Get the number of bytes queued but not yet written to the channel.
+     * @return Number of queued bytes.
+     */
+    public long getQueuedLength() {
+        long length = buffer.position() - segmentStart;
+        for (int i = firstPendingSegment; i < segmentCount; i++) {
+            length += segments[i].remaining();
+        }
+
+        return length;
+    }
+
+    // Make sure that length bytes can be encoded into the buffer, flushing it if needed
+    private boolean makeRoom(int length) throws IOException {
+        if (length > buffer.capacity()) {
+            throw new SphinxException("Packet of " + length + " bytes does not fit in the " + buffer.capacity() + " bytes of the writer buffer");
+        }
+
+        if (buffer.remaining() < length) {
+            return flush();
+        }
+
+        return true;
+    }
+
+    // Queue the data encoded into the buffer since the last segment
+    private void closeSegment() {
+        int position = buffer.position();
+        if (position == segmentStart) {
+            return;
+        }
+
+        ByteBuffer segment = buffer.duplicate();
+        segment.position(segmentStart);
+        segment.limit(position);
+        addSegment(segment);
+        segmentStart = position;
+    }
+
+    private void addSegment(ByteBuffer segment) {
+        if (segmentCount == segments.length) {
+            segments = Arrays.copyOf(segments, segments.length * 2);
+        }
+
+        segments[segmentCount++] = segment;
+    }
+}
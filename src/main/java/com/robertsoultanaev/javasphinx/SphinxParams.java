@@ -1,14 +1,5 @@
 package com.robertsoultanaev.javasphinx;
 
-import org.bouncycastle.crypto.CipherParameters;
-import org.bouncycastle.crypto.Mac;
-import org.bouncycastle.crypto.digests.SHA256Digest;
-import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.macs.HMac;
-import org.bouncycastle.crypto.modes.SICBlockCipher;
-import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.crypto.params.ParametersWithIV;
-
 import java.math.BigInteger;
 import org.bouncycastle.math.ec.ECPoint;
 
@@ -23,13 +14,53 @@ public class SphinxParams {
     private final int keyLength;
     private final int bodyLength;
     private final int headerLength;
-    private final ECCGroup group;
+    private final EllipticCurveGroup group;
+    private final CryptoBackend cryptoBackend;
+    private final RandomSource randomSource;
+
+    private static final byte[] HB_FLAVOR = "hbhbhbhbhbhbhbhb".getBytes();
+    private static final byte[] HRHO_FLAVOR = "hrhohrhohrhohrho".getBytes();
+    private static final byte[] HMU_FLAVOR = "hmu:hmu:hmu:hmu:".getBytes();
+    private static final byte[] HPI_FLAVOR = "hpi:hpi:hpi:hpi:".getBytes();
+    private static final byte[] HTAU_FLAVOR = "htauhtauhtauhtau".getBytes();
+    private static final byte[][] HOP_FLAVORS = {HRHO_FLAVOR, HMU_FLAVOR, HPI_FLAVOR, HTAU_FLAVOR, HB_FLAVOR};
+
+    private static final byte[] ZERO_IV = new byte[16];
+    private static final byte[] EMPTY = new byte[0];
+
+    public SphinxParams(int keyLength, int bodyLength, int headerLength, EllipticCurveGroup group) {
+        this(keyLength, bodyLength, headerLength, group, new JcaCryptoBackend());
+    }
 
-    public SphinxParams(int keyLength, int bodyLength, int headerLength, ECCGroup group) {
+    /**
+     * Create Sphinx parameters that use the given implementation of the symmetric primitives.
+     * All backends produce identical packets, so the choice only affects performance.
+     * @param keyLength Length of the symmetric keys.
+     * @param bodyLength Length of the payload.
+     * @param headerLength Length of the routing information in the header.
+     * @param group Group used for the key exchange.
+     * @param cryptoBackend Implementation of AES-CTR, HMAC-SHA256 and SHA-256.
+     */
+    public SphinxParams(int keyLength, int bodyLength, int headerLength, EllipticCurveGroup group, CryptoBackend cryptoBackend) {
+        this(keyLength, bodyLength, headerLength, group, cryptoBackend, DrbgRandomSource.getInstance());
+    }
+
+    /**
+     * Create Sphinx parameters that draw the randomness of new packets from the given source.
+     * @param keyLength Length of the symmetric keys.
+     * @param bodyLength Length of the payload.
+     * @param headerLength Length of the routing information in the header.
+     * @param group Group used for the key exchange.
+     * @param cryptoBackend Implementation of AES-CTR, HMAC-SHA256 and SHA-256.
+     * @param randomSource Source of the blinding factors, SURB identifiers and keys, and header padding.
+     */
+    public SphinxParams(int keyLength, int bodyLength, int headerLength, EllipticCurveGroup group, CryptoBackend cryptoBackend, RandomSource randomSource) {
         this.keyLength = keyLength;
         this.bodyLength = bodyLength;
         this.headerLength = headerLength;
         this.group = group;
+        this.cryptoBackend = cryptoBackend;
+        this.randomSource = randomSource;
     }
 
     public SphinxParams() {
@@ -48,101 +79,67 @@ public class SphinxParams {
         return headerLength;
     }
 
-    public ECCGroup getGroup() {
+    public EllipticCurveGroup getGroup() {
         return group;
     }
 
-    public byte[] aesCtr(byte[] key, byte[] message, byte[] iv) {
-        CipherParameters params = new ParametersWithIV(new KeyParameter(key), iv);
-        SICBlockCipher engine = new SICBlockCipher(new AESEngine());
-
-        engine.init(true, params);
+    public CryptoBackend getCryptoBackend() {
+        return cryptoBackend;
+    }
 
-        byte[] ciphertext = new byte[message.length];
+    public RandomSource getRandomSource() {
+        return randomSource;
+    }
 
-        engine.processBytes(message, 0, message.length, ciphertext, 0);
+    public byte[] aesCtr(byte[] key, byte[] message, byte[] iv) {
+        byte[] ciphertext = message.clone();
+        cryptoBackend.aesCtr(key, iv, 0, ciphertext, 0, ciphertext.length);
 
         return ciphertext;
     }
 
     public byte[] aesCtr(byte[] key, byte[] message) {
-        byte[] iv = {0,0,0,0,0,0,0,0,0,0,0,0,0,0,0,0};
-        return aesCtr(key, message, iv);
+        return aesCtr(key, message, ZERO_IV);
     }
 
     public byte[] lionessEnc(byte[] key, byte[] message) {
-        if (key.length != keyLength) {
-            throw new SphinxException("Length of provided key (" + key.length + ") did not match the required key length (" + keyLength + ")");
-        }
+        byte[] ciphertext = message.clone();
+        lionessEnc(key, ciphertext, 0, ciphertext.length);
 
-        if (message.length < keyLength * 2) {
-            throw new SphinxException("Length of provided message (" + message.length + ") needs to be at least double the length of the key (" + keyLength + ")");
-        }
+        return ciphertext;
+    }
 
-        // Round 1
-        byte[] messageShort = slice(message, keyLength);
-        byte[] messageLong = slice(message, keyLength, message.length);
-        byte[] one = "1".getBytes();
-        byte[] k1 = slice(hash(concatenate(messageLong, key, one)), keyLength);
-        byte[] c = aesCtr(key, messageShort, k1);
-        byte[] r1 = concatenate(c, messageLong);
-
-        // Round 2
-        byte[] r1Short = slice(r1, keyLength);
-        byte[] r1Long = slice(r1, keyLength, message.length);
-        c = aesCtr(key, r1Long, r1Short);
-        byte[] r2 = concatenate(r1Short, c);
-
-        // Round 3
-        byte[] r2Short = slice(r2, keyLength);
-        byte[] r2Long = slice(r2, keyLength, message.length);
-        byte[] three = "3".getBytes();
-        byte[] k3 = slice(hash(concatenate(r2Long, key, three)), keyLength);
-        c = aesCtr(key, r2Short, k3);
-        byte[] r3 = concatenate(c, r2Long);
-
-        // Round 4
-        byte[] r3Short = slice(r3, keyLength);
-        byte[] r3Long = slice(r3, keyLength, message.length);
-        c = aesCtr(key, r3Long, r3Short);
-        byte[] r4 = concatenate(r3Short, c);
-
-        return r4;
+    /**
+     * Encrypt a message with Lioness in place.
+     * @param key Lioness key.
+     * @param data Buffer holding the message.
+     * @param offset Start of the message in data.
+     * @param length Length of the message.
+     */
+    public void lionessEnc(byte[] key, byte[] data, int offset, int length) {
+        checkLionessArguments(key, length);
+
+        Lioness.encrypt(cryptoBackend, key, data, offset, length);
     }
 
     public byte[] lionessDec(byte[] key, byte[] message) {
-        if (key.length != keyLength) {
-            throw new SphinxException("Length of provided key (" + key.length + ") did not match the required key length (" + keyLength + ")");
-        }
-
-        if (message.length < keyLength * 2) {
-            throw new SphinxException("Length of provided message (" + message.length + ") needs to be at least double the length of the key (" + keyLength + ")");
-        }
-
-        byte[] r4Short = slice(message, keyLength);
-        byte[] r4Long = slice(message, keyLength, message.length);
-
-        // Round 4
-        byte[] r3Long = aesCtr(key, r4Long, r4Short);
-        byte[] r3Short = r4Short;
+        byte[] plaintext = message.clone();
+        lionessDec(key, plaintext, 0, plaintext.length);
 
-        // Round 3
-        byte[] three = "3".getBytes();
-        byte[] k2 = slice(hash(concatenate(r3Long, key, three)), keyLength);
-        byte[] r2Short = aesCtr(key, r3Short, k2);
-        byte[] r2Long = r3Long;
-
-        // Round 2
-        byte[] r1Long = aesCtr(key, r2Long, r2Short);
-        byte[] r1Short = r2Short;
-
-        // Round 1
-        byte[] one = "1".getBytes();
-        byte[] k0 = slice(hash(concatenate(r1Long, key, one)), keyLength);
-        byte[] c = aesCtr(key, r1Short, k0);
-        byte[] r0 = concatenate(c, r1Long);
+        return plaintext;
+    }
 
-        return r0;
+    /**
+     * Decrypt a message with Lioness in place.
+     * @param key Lioness key.
+     * @param data Buffer holding the message.
+     * @param offset Start of the message in data.
+     * @param length Length of the message.
+     */
+    public void lionessDec(byte[] key, byte[] data, int offset, int length) {
+        checkLionessArguments(key, length);
+
+        Lioness.decrypt(cryptoBackend, key, data, offset, length);
     }
 
     public byte[] xorRho(byte[] key, byte[] plain) {
@@ -153,48 +150,101 @@ public class SphinxParams {
         return aesCtr(key, plain);
     }
 
-    public byte[] mu(byte[] key, byte[] data) {
-        Mac mac = new HMac(new SHA256Digest());
-        CipherParameters cipherParameters = new KeyParameter(key);
-        mac.init(cipherParameters);
-        byte[] output = new byte[mac.getMacSize()];
+    /**
+     * XOR a region of data in place with the rho keystream (AES-CTR under key with a zero IV), starting at an arbitrary position of the keystream.
+     * Only the blocks of the keystream covering [position, position + length) are computed.
+     * @param key Rho key.
+     * @param position Offset into the keystream that lines up with data[offset].
+     * @param data Buffer to XOR with the keystream.
+     * @param offset Start of the region in data.
+     * @param length Length of the region.
+     */
+    public void xorRho(byte[] key, long position, byte[] data, int offset, int length) {
+        if (key.length != keyLength) {
+            throw new SphinxException("Length of provided key (" + key.length + ") did not match the required key length (" + keyLength + ")");
+        }
+
+        cryptoBackend.aesCtr(key, ZERO_IV, position, data, offset, length);
+    }
+
+    /**
+     * Compute a slice of the rho keystream (AES-CTR under key with a zero IV).
+     * @param key Rho key.
+     * @param position Offset into the keystream of the first byte returned.
+     * @param length Number of keystream bytes to return.
+     * @return Keystream bytes [position, position + length).
+     */
+    public byte[] rhoKeystream(byte[] key, long position, int length) {
+        byte[] keystream = new byte[length];
+        xorRho(key, position, keystream, 0, length);
+
+        return keystream;
+    }
 
-        mac.update(data, 0, data.length);
-        mac.doFinal(output, 0);
+    public byte[] mu(byte[] key, byte[] data) {
+        byte[] output = new byte[32];
+        cryptoBackend.hmacSha256(key, data, 0, data.length, output);
 
         return slice(output, keyLength);
     }
 
+    /**
+     * Compute the MAC of a region of a buffer without copying it.
+     * @param key MAC key.
+     * @param data Buffer holding the data.
+     * @param offset Start of the data in data.
+     * @param length Length of the data.
+     * @param output Buffer of at least 32 bytes receiving the full HMAC, whose first keyLength bytes are the MAC.
+     */
+    public void mu(byte[] key, byte[] data, int offset, int length, byte[] output) {
+        cryptoBackend.hmacSha256(key, data, offset, length, output);
+    }
+
     public byte[] pi(byte[] key, byte[] data) {
-        if (key.length != keyLength) {
-            throw new SphinxException("Length of provided key (" + key.length + ") did not match the required key length (" + keyLength + ")");
-        }
+        checkPayloadArguments(key, data.length);
 
-        if (data.length != bodyLength) {
-            throw new SphinxException("Length of provided message (" + data.length + ") did not match the required message body length (" + bodyLength + ")");
-        }
+        byte[] ciphertext = data.clone();
+        Lioness.encrypt(cryptoBackend, key, ciphertext, 0, bodyLength);
 
-        return lionessEnc(key, data);
+        return ciphertext;
+    }
+
+    /**
+     * Encrypt a Sphinx payload in place.
+     * @param key Payload encryption key.
+     * @param data Buffer holding the payload.
+     * @param offset Start of the payload in data, which is followed by at least bodyLength bytes.
+     */
+    public void pi(byte[] key, byte[] data, int offset) {
+        checkPayloadArguments(key, Math.min(data.length - offset, bodyLength));
+
+        Lioness.encrypt(cryptoBackend, key, data, offset, bodyLength);
     }
 
     public byte[] pii(byte[] key, byte[] data) {
-        if (key.length != keyLength) {
-            throw new SphinxException("Length of provided key (" + key.length + ") did not match the required key length (" + keyLength + ")");
-        }
+        checkPayloadArguments(key, data.length);
 
-        if (data.length != bodyLength) {
-            throw new SphinxException("Length of provided message (" + data.length + ") did not match the required message body length (" + bodyLength + ")");
-        }
+        byte[] plaintext = data.clone();
+        Lioness.decrypt(cryptoBackend, key, plaintext, 0, bodyLength);
 
-        return lionessDec(key, data);
+        return plaintext;
     }
 
-    public byte[] hash(byte[] data) {
-        SHA256Digest digest = new SHA256Digest();
-        byte[] output = new byte[digest.getDigestSize()];
+    /**
+     * Decrypt a Sphinx payload in place.
+     * @param key Payload encryption key.
+     * @param data Buffer holding the payload.
+     * @param offset Start of the payload in data, which is followed by at least bodyLength bytes.
+     */
+    public void pii(byte[] key, byte[] data, int offset) {
+        checkPayloadArguments(key, Math.min(data.length - offset, bodyLength));
+
+        Lioness.decrypt(cryptoBackend, key, data, offset, bodyLength);
+    }
 
-        digest.update(data, 0, data.length);
-        digest.doFinal(output, 0);
+    public byte[] hash(byte[] data) {
+        byte[] output = new byte[32];
+        cryptoBackend.sha256(data, 0, data.length, EMPTY, output);
 
         return output;
     }
@@ -209,40 +259,74 @@ public class SphinxParams {
         return slice(hash, keyLength);
     }
 
+    /**
+     * Derive all the keys used at a hop from its shared secret, expanding the AES key only once.
+     * The derived keys are identical to the ones returned by hrho, hmu, hpi, htau and hb.
+     * @param k AES key derived from the shared secret of the hop.
+     * @return Keys used at the hop.
+     */
+    public HopKeys deriveHopKeys(byte[] k) {
+        byte[][] keys = new byte[HOP_FLAVORS.length][keyLength];
+        cryptoBackend.aesCtrKeystreams(k, HOP_FLAVORS, keys);
+
+        return new HopKeys(keys[0], keys[1], keys[2], keys[3], group.makeexp(keys[4]));
+    }
+
     public byte[] deriveKey(byte[] k, byte[] flavor) {
-        byte[] m = new byte[keyLength];
+        byte[] key = new byte[keyLength];
+        cryptoBackend.aesCtr(k, flavor, 0, key, 0, keyLength);
 
-        return aesCtr(k, m, flavor);
+        return key;
     }
 
     public BigInteger hb(ECPoint alpha, byte[] k) {
-        byte[] flavor = "hbhbhbhbhbhbhbhb".getBytes();
+        byte[] flavor = HB_FLAVOR;
         byte[] K = deriveKey(k, flavor);
 
         return group.makeexp(K);
     }
 
     public byte[] hrho(byte[] k) {
-        byte[] flavor = "hrhohrhohrhohrho".getBytes();
+        byte[] flavor = HRHO_FLAVOR;
 
         return deriveKey(k, flavor);
     }
 
     public byte[] hmu(byte[] k) {
-        byte[] flavor = "hmu:hmu:hmu:hmu:".getBytes();
+        byte[] flavor = HMU_FLAVOR;
 
         return deriveKey(k, flavor);
     }
 
     public byte[] hpi(byte[] k) {
-        byte[] flavor = "hpi:hpi:hpi:hpi:".getBytes();
+        byte[] flavor = HPI_FLAVOR;
 
         return deriveKey(k, flavor);
     }
 
     public byte[] htau(byte[] k) {
-        byte[] flavor = "htauhtauhtauhtau".getBytes();
+        byte[] flavor = HTAU_FLAVOR;
 
         return deriveKey(k, flavor);
     }
+
+    private void checkLionessArguments(byte[] key, int length) {
+        if (key.length != keyLength) {
+            throw new SphinxException("Length of provided key (" + key.length + ") did not match the required key length (" + keyLength + ")");
+        }
+
+        if (length < keyLength * 2) {
+            throw new SphinxException("Length of provided message (" + length + ") needs to be at least double the length of the key (" + keyLength + ")");
+        }
+    }
+
+    private void checkPayloadArguments(byte[] key, int length) {
+        if (key.length != keyLength) {
+            throw new SphinxException("Length of provided key (" + key.length + ") did not match the required key length (" + keyLength + ")");
+        }
+
+        if (length != bodyLength) {
+            throw new SphinxException("Length of provided message (" + length + ") did not match the required message body length (" + bodyLength + ")");
+        }
+    }
 }
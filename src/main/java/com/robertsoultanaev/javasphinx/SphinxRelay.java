@@ -0,0 +1,178 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+
+/**
+ * Class to process packed Sphinx packets at a mix node in place. The packet is rewritten in its own buffer into the
+ * packed packet for the next hop, without unpacking it into a SphinxPacket or building a ProcessedPacket, and the
+ * buffers used while processing are kept per thread. Packed packets keep the same length from hop to hop, so the
+ * outgoing packet occupies exactly the bytes of the incoming one.
+ *
+ * Only the elliptic curve arithmetic and the derivation of the keys of the hop allocate memory per packet.
+ */
+public class SphinxRelay {
+    // The length of the routing information is encoded in a single byte
+    private static final int MAX_ROUTING_LENGTH = 255;
+
+    private final SphinxParams params;
+    private final KeyEpochs epochs;
+    private final CompactPacketFormat[] formats;
+    private final ThreadLocal<Context> context;
+
+    /**
+     * Create a relay for a mix node holding several valid key epochs.
+     * @param params Sphinx parameters.
+     * @param epochs Valid key epochs of the mix node.
+     */
+    public SphinxRelay(SphinxParams params, KeyEpochs epochs) {
+        this(params, epochs, new CompactPacketFormat[0]);
+    }
+
+    /**
+     * Create a relay for a mix node holding several valid key epochs, which also accepts packets in compact formats.
+     * Packets are relayed in the format they were received in.
+     * @param params Sphinx parameters.
+     * @param epochs Valid key epochs of the mix node.
+     * @param formats Compact formats accepted next to the msgpack format.
+     */
+    public SphinxRelay(final SphinxParams params, KeyEpochs epochs, CompactPacketFormat[] formats) {
+        this.params = params;
+        this.epochs = epochs;
+        this.formats = formats.clone();
+        this.context = new ThreadLocal<Context>() {
+            @Override
+            protected Context initialValue() {
+                return new Context(params);
+            }
+        };
+    }
+
+    /**
+     * Create a relay for a mix node with a single key.
+     * @param params Sphinx parameters.
+     * @param key Mix node's private key.
+     * @param replayFilter Filter recording the tags of processed packets, or null to skip the replay check.
+     */
+    public SphinxRelay(SphinxParams params, SphinxNodeKey key, ReplayFilter replayFilter) {
+        this(params, KeyEpochs.single(key, replayFilter));
+    }
+
+    /**
+     * Process a packed Sphinx packet in place.
+     * If the packet is to be relayed, the region is rewritten into the packed packet for the next hop.
+     * At its final hop only the payload is decrypted in place, and the header is left as received.
+     * If processing fails, an exception is thrown and the contents of the region are unspecified.
+     * @param packet Buffer holding the packed packet, as written by SphinxClient.packMessage or by one of the compact formats of the relay.
+     * @param offset Start of the packet in packet.
+     * @param length Length of the packet.
+     * @param result Result receiving the tag, the MAC key and the routing information of the packet.
+     */
+    public void process(byte[] packet, int offset, int length, RelayResult result) {
+        Context context = this.context.get();
+        PacketLayout layout = context.layout;
+        layout.parse(formats, packet, offset, length);
+        layout.check(params);
+
+        byte[] encodedAlpha = context.encodedAlpha(layout.alphaLength);
+        System.arraycopy(packet, layout.alphaOffset, encodedAlpha, 0, layout.alphaLength);
+        ECPoint alpha;
+        try {
+            alpha = Util.decodeECPoint(layout.curveNid, encodedAlpha);
+        } catch (IllegalArgumentException ex) {
+            throw new SphinxException("Invalid encoding of alpha: " + ex.getMessage());
+        }
+
+        KeyEpochs.Epoch[] validEpochs = epochs.snapshot();
+        if (validEpochs.length == 0) {
+            throw new SphinxException("No valid key epoch");
+        }
+
+        // The current epoch is tried first, older epochs only if the MAC does not match
+        HopKeys hopKeys = null;
+        ReplayFilter replayFilter = null;
+        for (KeyEpochs.Epoch epoch : validEpochs) {
+            ECPoint s = SphinxNode.sharedSecret(params, epoch.key, alpha);
+            HopKeys candidate = params.deriveHopKeys(params.getAesKey(s));
+
+            params.mu(candidate.mu, packet, layout.betaOffset, layout.betaLength, context.mac);
+            if (macMatches(context.mac, packet, layout.gammaOffset, layout.gammaLength)) {
+                hopKeys = candidate;
+                replayFilter = epoch.replayFilter;
+                break;
+            }
+        }
+
+        if (hopKeys == null) {
+            throw new SphinxException("MAC mismatch");
+        }
+
+        if (replayFilter != null && !replayFilter.add(hopKeys.tau)) {
+            throw new SphinxException("Replayed packet with tag " + Hex.toHexString(hopKeys.tau));
+        }
+
+        // Beta is decrypted in the scratch buffer, where it is followed by the keystream covering the routing information
+        // and the next gamma and beta, as in SphinxNode
+        int betaLength = layout.betaLength;
+        int keyLength = params.getKeyLength();
+        byte[] B = context.unwrapped;
+        System.arraycopy(packet, layout.betaOffset, B, 0, betaLength);
+        Arrays.fill(B, betaLength, B.length, (byte) 0);
+        params.xorRho(hopKeys.rho, 0, B, 0, betaLength);
+
+        int routingLength = B[0] & 0xff;
+        boolean relay = SphinxClient.isRelay(B, 1, routingLength);
+
+        if (relay) {
+            int unwrappedLength = 1 + routingLength + keyLength + betaLength;
+            params.xorRho(hopKeys.rho, betaLength, B, betaLength, unwrappedLength - betaLength);
+
+            byte[] blindedAlpha = params.getGroup().expon(alpha, hopKeys.b).getEncoded(true);
+            if (blindedAlpha.length != layout.alphaLength) {
+                throw new SphinxException("Length of the blinded alpha (" + blindedAlpha.length + ") did not match the length of alpha (" + layout.alphaLength + ")");
+            }
+
+            System.arraycopy(blindedAlpha, 0, packet, layout.alphaOffset, layout.alphaLength);
+            System.arraycopy(B, 1 + routingLength, packet, layout.gammaOffset, keyLength);
+            System.arraycopy(B, 1 + routingLength + keyLength, packet, layout.betaOffset, betaLength);
+        } else if (1 + routingLength > betaLength) {
+            params.xorRho(hopKeys.rho, betaLength, B, betaLength, 1 + routingLength - betaLength);
+        }
+
+        params.pii(hopKeys.pi, packet, layout.deltaOffset);
+
+        result.set(hopKeys, B, 1, routingLength, relay);
+    }
+
+    // Compare without returning early, so that the time taken does not depend on the position of the first mismatch
+    private static boolean macMatches(byte[] mac, byte[] data, int offset, int length) {
+        int difference = 0;
+        for (int i = 0; i < length; i++) {
+            difference |= mac[i] ^ data[offset + i];
+        }
+
+        return difference == 0;
+    }
+
+    private static class Context {
+        final PacketLayout layout = new PacketLayout();
+        final byte[] mac = new byte[32];
+        final byte[] unwrapped;
+        byte[] encodedAlpha;
+
+        Context(SphinxParams params) {
+            int betaLength = params.getHeaderLength() - 32;
+            this.unwrapped = new byte[1 + MAX_ROUTING_LENGTH + params.getKeyLength() + betaLength];
+        }
+
+        byte[] encodedAlpha(int length) {
+            if (encodedAlpha == null || encodedAlpha.length != length) {
+                encodedAlpha = new byte[length];
+            }
+
+            return encodedAlpha;
+        }
+    }
+}
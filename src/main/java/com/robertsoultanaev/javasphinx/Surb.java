@@ -7,10 +7,17 @@ public class Surb {
     public final byte[] xid;
     public final byte[][] keytuple;
     public final NymTuple nymTuple;
+    // Seed the SURB was derived from, or null if it was not created by SphinxClient.createSeededSurb
+    public final byte[] seed;
 
     public Surb(byte[] xid, byte[][] keytuple, NymTuple nymTuple) {
+        this(xid, keytuple, nymTuple, null);
+    }
+
+    public Surb(byte[] xid, byte[][] keytuple, NymTuple nymTuple, byte[] seed) {
         this.xid = xid;
         this.keytuple = keytuple;
         this.nymTuple = nymTuple;
+        this.seed = seed;
     }
 }
@@ -0,0 +1,476 @@
+package com.robertsoultanaev.javasphinx;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Class to store the key tuples of outstanding SURBs in a memory-mapped file, indexed by the identifier (xid) of the SURB.
+ *
+ * The file holds a hash table with linear probing and fixed-size records, so the keys live outside of the Java heap and a
+ * lookup only reads the mapped records. Each key tuple expires after a time to live, and is deleted when it is taken to
+ * receive a reply, so every SURB can be used once. Deletions shift the following records back instead of leaving
+ * tombstones, which keeps probe sequences short as SURBs come and go.
+ *
+ * Records are written before they are marked as used, and a deletion never leaves a record unreachable for longer than
+ * one step, which is repaired when the file is reopened. The store therefore survives the crash of the process. The
+ * records written since the last call to sync may be lost if the machine itself goes down.
+ */
+public class SurbKeyStore implements Closeable {
+    // Key tuples hold one key per hop and ktilde, and the number of keys is stored in a byte
+    public static final int MAX_HOPS = 254;
+
+    private static final int MAGIC = 0x53555242;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int KEY_LENGTH_OFFSET = 8;
+    private static final int MAX_HOPS_OFFSET = 12;
+    private static final int SLOT_COUNT_OFFSET = 16;
+
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final int STATE_OFFSET = 0;
+    private static final int KEY_COUNT_OFFSET = 1;
+    private static final int EXPIRY_OFFSET = 8;
+    private static final int XID_OFFSET = 16;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int keyLength;
+    private final int maxHops;
+    private final int capacity;
+    private final int slotMask;
+    private final int recordLength;
+    private int size;
+    private boolean closed;
+
+    /**
+     * Open a store, creating the file if it does not exist. An existing file must have been created with the same parameters.
+     * @param path File holding the store.
+     * @param params Sphinx parameters.
+     * @param maxHops Maximum number of hops of the routes of the SURBs.
+     * @param capacity Maximum number of key tuples held at the same time.
+     * @throws IOException If the file cannot be opened or mapped.
+     */
+    public SurbKeyStore(File path, SphinxParams params, int maxHops, int capacity) throws IOException {
+        if (maxHops < 1 || maxHops > MAX_HOPS) {
+            throw new SphinxException("Maximum number of hops (" + maxHops + ") must be between 1 and " + MAX_HOPS);
+        }
+
+        if (capacity < 1) {
+            throw new SphinxException("Capacity (" + capacity + ") must be positive");
+        }
+
+        if (params.getKeyLength() < 8 || params.getKeyLength() % 8 != 0) {
+            throw new SphinxException("Key length (" + params.getKeyLength() + ") must be a positive multiple of 8");
+        }
+
+        // Keep the load of the table at three quarters at most
+        long slots = Long.highestOneBit(capacity + capacity / 3L) << 1;
+        long fileLength = HEADER_LENGTH + slots * (XID_OFFSET + (maxHops + 2L) * params.getKeyLength());
+        if (fileLength > Integer.MAX_VALUE) {
+            throw new SphinxException("Capacity (" + capacity + ") is too large for a single mapped file");
+        }
+
+        this.keyLength = params.getKeyLength();
+        this.maxHops = maxHops;
+        this.capacity = capacity;
+        this.slotMask = (int) slots - 1;
+        this.recordLength = XID_OFFSET + (maxHops + 2) * keyLength;
+
+        boolean exists = path.length() > 0;
+        this.file = new RandomAccessFile(path, "rw");
+        try {
+            if (exists && file.length() != fileLength) {
+                throw new SphinxException("Size of the SURB key store (" + file.length() + ") does not match its parameters (" + fileLength + ")");
+            }
+
+            file.setLength(fileLength);
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+
+            // A file whose magic number was never written holds no records yet
+            if (buffer.getInt(MAGIC_OFFSET) == 0) {
+                initialize();
+            } else {
+                checkHeader();
+                recover();
+            }
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Store the key tuple of a SURB.
+     * @param surb SURB created by SphinxClient.createSurb.
+     * @param ttlMillis Time in milliseconds after which the key tuple expires.
+     */
+    public void put(Surb surb, long ttlMillis) {
+        put(surb.xid, surb.keytuple, ttlMillis);
+    }
+
+    /**
+     * Store the key tuple of a SURB.
+     * @param xid Identifier of the SURB.
+     * @param keytuple Key tuple used to receive the message addressed to the SURB.
+     * @param ttlMillis Time in milliseconds after which the key tuple expires.
+     */
+    public synchronized void put(byte[] xid, byte[][] keytuple, long ttlMillis) {
+        checkOpen();
+        checkXid(xid);
+
+        if (keytuple.length < 2 || keytuple.length > maxHops + 1) {
+            throw new SphinxException("Length of key tuple (" + keytuple.length + ") must be between 2 and " + (maxHops + 1));
+        }
+
+        for (byte[] key : keytuple) {
+            if (key.length != keyLength) {
+                throw new SphinxException("Length of keys in the key tuple (" + key.length + ") must be " + keyLength);
+            }
+        }
+
+        if (ttlMillis <= 0) {
+            throw new SphinxException("Time to live (" + ttlMillis + ") must be positive");
+        }
+
+        long now = System.currentTimeMillis();
+        if (size >= capacity) {
+            purgeExpired(now);
+            if (size >= capacity) {
+                throw new SphinxException("SURB key store is full (" + capacity + " key tuples)");
+            }
+        }
+
+        int slot = home(readLong(xid));
+        while (buffer.get(offset(slot) + STATE_OFFSET) == USED) {
+            if (xidEquals(slot, xid)) {
+                throw new SphinxException("SURB key store already holds a key tuple for this xid");
+            }
+            slot = (slot + 1) & slotMask;
+        }
+
+        int base = offset(slot);
+        buffer.put(base + KEY_COUNT_OFFSET, (byte) keytuple.length);
+        buffer.putLong(base + EXPIRY_OFFSET, ttlMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlMillis);
+        buffer.position(base + XID_OFFSET);
+        buffer.put(xid);
+        for (byte[] key : keytuple) {
+            buffer.put(key);
+        }
+        buffer.put(base + STATE_OFFSET, USED);
+        size++;
+    }
+
+    /**
+     * Take the key tuple of a SURB out of the store, copying it into arrays owned by the caller so that no memory is allocated.
+     * The key tuple is deleted, so a second reply to the same SURB is not received.
+     * @param xid Identifier of the SURB.
+     * @param keytuple Arrays receiving the keys, at least as many as the hops of the route plus one, of the key length each.
+     * @return Number of keys copied into keytuple, or -1 if the store holds no key tuple for the xid or it expired.
+     */
+    public synchronized int take(byte[] xid, byte[][] keytuple) {
+        checkOpen();
+        checkXid(xid);
+
+        int slot = find(xid);
+        if (slot < 0) {
+            return -1;
+        }
+
+        int base = offset(slot);
+        if (buffer.getLong(base + EXPIRY_OFFSET) <= System.currentTimeMillis()) {
+            delete(slot);
+            return -1;
+        }
+
+        int keyCount = buffer.get(base + KEY_COUNT_OFFSET) & 0xff;
+        if (keytuple.length < keyCount) {
+            throw new SphinxException("Key tuple needs room for " + keyCount + " keys, but only has " + keytuple.length);
+        }
+
+        buffer.position(base + XID_OFFSET + keyLength);
+        for (int i = 0; i < keyCount; i++) {
+            if (keytuple[i].length != keyLength) {
+                throw new SphinxException("Length of keys in the key tuple (" + keytuple[i].length + ") must be " + keyLength);
+            }
+            buffer.get(keytuple[i]);
+        }
+
+        delete(slot);
+        return keyCount;
+    }
+
+    /**
+     * Take the key tuple of a SURB out of the store. The key tuple is deleted, so a second reply to the same SURB is not received.
+     * @param xid Identifier of the SURB.
+     * @return Key tuple used to receive the message addressed to the SURB, or null if the store holds none for the xid or it expired.
+     */
+    public synchronized byte[][] take(byte[] xid) {
+        checkOpen();
+        checkXid(xid);
+
+        int slot = find(xid);
+        if (slot < 0) {
+            return null;
+        }
+
+        byte[][] keytuple = new byte[buffer.get(offset(slot) + KEY_COUNT_OFFSET) & 0xff][keyLength];
+        return take(xid, keytuple) < 0 ? null : keytuple;
+    }
+
+    /**
+     * Delete all expired key tuples. Expired key tuples are also deleted when they are looked up, and when the store is full.
+     * @return Number of deleted key tuples.
+     */
+    public synchronized int purgeExpired() {
+        checkOpen();
+
+        return purgeExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the number of key tuples in the store, including expired ones that were not deleted yet.
+     * @return Number of stored key tuples.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the maximum number of key tuples held at the same time.
+     * @return Capacity of the store.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Write the changes to the store through to the storage device.
+     */
+    public synchronized void sync() {
+        checkOpen();
+
+        buffer.force();
+    }
+
+    /**
+     * Write the changes to the store through to the storage device and close it.
+     * @throws IOException If the file cannot be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        buffer.force();
+        file.close();
+    }
+
+    private void initialize() {
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(KEY_LENGTH_OFFSET, keyLength);
+        buffer.putInt(MAX_HOPS_OFFSET, maxHops);
+        buffer.putInt(SLOT_COUNT_OFFSET, slotMask + 1);
+        buffer.force();
+
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.force();
+    }
+
+    private void checkHeader() {
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new SphinxException("File is not a SURB key store of version " + VERSION);
+        }
+
+        if (buffer.getInt(KEY_LENGTH_OFFSET) != keyLength || buffer.getInt(MAX_HOPS_OFFSET) != maxHops || buffer.getInt(SLOT_COUNT_OFFSET) != slotMask + 1) {
+            throw new SphinxException("SURB key store was created with a key length of " + buffer.getInt(KEY_LENGTH_OFFSET)
+                    + ", " + buffer.getInt(MAX_HOPS_OFFSET) + " hops and " + buffer.getInt(SLOT_COUNT_OFFSET) + " slots");
+        }
+    }
+
+    // Repair the table after a crash: a record moved by an interrupted deletion can be left behind as a duplicate of its
+    // new copy, or be cut off from its home slot by the hole it was about to fill
+    private void recover() {
+        int slot = 0;
+        while (slot <= slotMask) {
+            if (buffer.get(offset(slot) + STATE_OFFSET) != USED) {
+                slot++;
+                continue;
+            }
+
+            int found = findRecord(slot);
+            if (found == slot) {
+                slot++;
+                continue;
+            }
+
+            if (found < 0) {
+                copyRecord(slot, freeSlot(slot));
+            }
+
+            // The record is now reachable at another slot, and the slot is checked again once the next records moved back
+            delete(slot);
+        }
+
+        size = 0;
+        for (slot = 0; slot <= slotMask; slot++) {
+            if (buffer.get(offset(slot) + STATE_OFFSET) == USED) {
+                size++;
+            }
+        }
+    }
+
+    private int purgeExpired(long now) {
+        int purged = 0;
+        int slot = 0;
+        while (slot <= slotMask) {
+            int base = offset(slot);
+            if (buffer.get(base + STATE_OFFSET) == USED && buffer.getLong(base + EXPIRY_OFFSET) <= now) {
+                // The next records may have moved back into the slot
+                delete(slot);
+                purged++;
+            } else {
+                slot++;
+            }
+        }
+
+        return purged;
+    }
+
+    private int find(byte[] xid) {
+        int slot = home(readLong(xid));
+        while (buffer.get(offset(slot) + STATE_OFFSET) == USED) {
+            if (xidEquals(slot, xid)) {
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+
+        return -1;
+    }
+
+    // Find the first slot on the probe sequence of the record in the given slot holding the same xid
+    private int findRecord(int recordSlot) {
+        int slot = home(buffer.getLong(offset(recordSlot) + XID_OFFSET));
+        while (buffer.get(offset(slot) + STATE_OFFSET) == USED) {
+            if (recordXidEquals(slot, recordSlot)) {
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+
+        return -1;
+    }
+
+    // Find the first free slot on the probe sequence of the record in the given slot
+    private int freeSlot(int recordSlot) {
+        int slot = home(buffer.getLong(offset(recordSlot) + XID_OFFSET));
+        while (buffer.get(offset(slot) + STATE_OFFSET) == USED) {
+            slot = (slot + 1) & slotMask;
+        }
+
+        return slot;
+    }
+
+    // Delete the record in the given slot and move back the following records whose probe sequence crosses the hole.
+    // Each record is copied before its old slot is freed.
+    private void delete(int slot) {
+        int hole = slot;
+        buffer.put(offset(hole) + STATE_OFFSET, EMPTY);
+
+        int next = hole;
+        while (true) {
+            next = (next + 1) & slotMask;
+            if (buffer.get(offset(next) + STATE_OFFSET) != USED) {
+                break;
+            }
+
+            int home = home(buffer.getLong(offset(next) + XID_OFFSET));
+            if (((next - home) & slotMask) < ((next - hole) & slotMask)) {
+                continue;
+            }
+
+            copyRecord(next, hole);
+            buffer.put(offset(next) + STATE_OFFSET, EMPTY);
+            hole = next;
+        }
+
+        size--;
+    }
+
+    private void copyRecord(int from, int to) {
+        int source = offset(from);
+        int target = offset(to);
+
+        buffer.put(target + KEY_COUNT_OFFSET, buffer.get(source + KEY_COUNT_OFFSET));
+        for (int i = EXPIRY_OFFSET; i < recordLength; i += 8) {
+            buffer.putLong(target + i, buffer.getLong(source + i));
+        }
+        buffer.put(target + STATE_OFFSET, USED);
+    }
+
+    private boolean xidEquals(int slot, byte[] xid) {
+        int base = offset(slot) + XID_OFFSET;
+        for (int i = 0; i < keyLength; i++) {
+            if (buffer.get(base + i) != xid[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean recordXidEquals(int slot, int otherSlot) {
+        int base = offset(slot) + XID_OFFSET;
+        int otherBase = offset(otherSlot) + XID_OFFSET;
+        for (int i = 0; i < keyLength; i += 8) {
+            if (buffer.getLong(base + i) != buffer.getLong(otherBase + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int offset(int slot) {
+        return HEADER_LENGTH + slot * recordLength;
+    }
+
+    // Identifiers of SURBs are random, so their first bytes are enough to place them in the table
+    private int home(long xidPrefix) {
+        long h = xidPrefix * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & slotMask;
+    }
+
+    private void checkXid(byte[] xid) {
+        if (xid.length != keyLength) {
+            throw new SphinxException("Length of provided xid (" + xid.length + ") must be " + keyLength);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new SphinxException("SURB key store is closed");
+        }
+    }
+
+    private static long readLong(byte[] data) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (data[i] & 0xff);
+        }
+
+        return result;
+    }
+}
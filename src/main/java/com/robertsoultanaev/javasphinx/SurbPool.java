@@ -0,0 +1,178 @@
+package com.robertsoultanaev.javasphinx;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Class to keep single-use reply blocks for a route ready ahead of time, so that attaching a SURB to a message does not
+ * cost the public key operations of its header.
+ *
+ * SURBs are created on background threads and handed out once each, and the pool is refilled up to its capacity whenever
+ * the number of ready SURBs drops below the low watermark. Every SURB is tagged with the key epoch of the mix node keys
+ * it was created for. When the nodes of the route rotate their keys, the pool is moved to the new epoch and the SURBs
+ * left over from the previous one are dropped, since the nodes could no longer process them.
+ */
+public class SurbPool {
+    private final SphinxParams params;
+    private final byte[][] nodelist;
+    private final byte[] dest;
+    private final NodeKeyCache nodeKeyCache;
+    private final BackgroundPool<EpochSurb> pool;
+    private volatile Epoch epoch;
+
+    private static final class Epoch {
+        final long id;
+        final ECPoint[] keys;
+
+        Epoch(long id, ECPoint[] keys) {
+            this.id = id;
+            this.keys = keys;
+        }
+    }
+
+    private static final class EpochSurb {
+        final Epoch epoch;
+        final Surb surb;
+
+        EpochSurb(Epoch epoch, Surb surb) {
+            this.epoch = epoch;
+            this.surb = surb;
+        }
+    }
+
+    /**
+     * Create a pool for a route, with its own background thread.
+     * @param params Sphinx parameters.
+     * @param nodelist List of encoded mix node identifiers of the route.
+     * @param keys List of the corresponding public keys of the mix nodes in nodelist.
+     * @param dest Final destination of the replies.
+     * @param epochId Identifier of the key epoch the keys belong to.
+     * @param lowWatermark Number of ready SURBs below which the pool is refilled.
+     * @param capacity Number of SURBs the pool is filled up to.
+     */
+    public SurbPool(SphinxParams params, byte[][] nodelist, ECPoint[] keys, byte[] dest, long epochId, int lowWatermark, int capacity) {
+        this(params, nodelist, keys, dest, epochId, null, lowWatermark, capacity, BackgroundPool.newDaemonExecutor("sphinx-surb-pool"), true);
+    }
+
+    /**
+     * Create a pool for a route, creating SURBs on the given executor, which can be shared between the pools of several routes.
+     * @param params Sphinx parameters.
+     * @param nodelist List of encoded mix node identifiers of the route.
+     * @param keys List of the corresponding public keys of the mix nodes in nodelist.
+     * @param dest Final destination of the replies.
+     * @param epochId Identifier of the key epoch the keys belong to.
+     * @param nodeKeyCache Cache of precomputed tables for the public keys of the mix nodes, or null to not use one.
+     * @param lowWatermark Number of ready SURBs below which the pool is refilled.
+     * @param capacity Number of SURBs the pool is filled up to.
+     * @param executor Executor creating the SURBs in the background.
+     */
+    public SurbPool(SphinxParams params, byte[][] nodelist, ECPoint[] keys, byte[] dest, long epochId, NodeKeyCache nodeKeyCache, int lowWatermark, int capacity, ExecutorService executor) {
+        this(params, nodelist, keys, dest, epochId, nodeKeyCache, lowWatermark, capacity, executor, false);
+    }
+
+    private SurbPool(SphinxParams params, byte[][] nodelist, ECPoint[] keys, byte[] dest, long epochId, NodeKeyCache nodeKeyCache, int lowWatermark, int capacity, ExecutorService executor, boolean ownsExecutor) {
+        if (nodelist.length == 0) {
+            throw new SphinxException("Route needs at least one node");
+        }
+        checkKeys(nodelist, keys);
+
+        this.params = params;
+        this.nodelist = nodelist.clone();
+        this.dest = dest.clone();
+        this.nodeKeyCache = nodeKeyCache;
+        this.epoch = new Epoch(epochId, keys.clone());
+        this.pool = new BackgroundPool<EpochSurb>(lowWatermark, capacity, executor, ownsExecutor) {
+            @Override
+            EpochSurb create() {
+                return createSurb(epoch);
+            }
+
+            @Override
+            boolean isValid(EpochSurb item) {
+                return item.epoch == epoch;
+            }
+        };
+
+        pool.refill();
+    }
+
+    /**
+     * Take a SURB of the current key epoch out of the pool, creating it on the calling thread if none is ready.
+     * Each SURB is handed out only once.
+     * @return An identifier for the SURB, key tuple to receive a message addressed to this SURB, and the reply block itself.
+     */
+    public Surb take() {
+        return pool.take().surb;
+    }
+
+    /**
+     * Move the pool to a new key epoch of the mix nodes, dropping the SURBs left over from the previous epoch and
+     * refilling the pool with SURBs for the new keys.
+     * @param epochId Identifier of the new key epoch.
+     * @param keys List of the public keys of the mix nodes of the route in the new epoch.
+     */
+    public void rotate(long epochId, ECPoint[] keys) {
+        checkKeys(nodelist, keys);
+
+        epoch = new Epoch(epochId, keys.clone());
+        pool.discardInvalid();
+    }
+
+    /**
+     * Get the identifier of the key epoch the pool hands out SURBs for.
+     * @return Identifier of the current key epoch.
+     */
+    public long getEpochId() {
+        return epoch.id;
+    }
+
+    /**
+     * Get the number of SURBs ready to be taken, which can include SURBs of a previous epoch not dropped yet.
+     * @return Number of ready SURBs.
+     */
+    public int getReadyCount() {
+        return pool.getReadyCount();
+    }
+
+    /**
+     * Get the number of SURBs that had to be created on the calling thread because the pool was empty.
+     * @return Number of SURBs not served from the pool.
+     */
+    public long getMissCount() {
+        return pool.getMissCount();
+    }
+
+    /**
+     * Get the number of SURBs that failed to be created in the background, for instance because the route is invalid.
+     * @return Number of failed background creations.
+     */
+    public long getFailureCount() {
+        return pool.getFailureCount();
+    }
+
+    /**
+     * Get the reason the last background creation failed.
+     * @return Last failure of the background creation, or null if none failed.
+     */
+    public RuntimeException getLastFailure() {
+        return pool.getLastFailure();
+    }
+
+    /**
+     * Stop the background thread of the pool, if the pool created its own. SURBs still in the pool can be taken.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private EpochSurb createSurb(Epoch epoch) {
+        return new EpochSurb(epoch, SphinxClient.createSurb(params, nodelist, epoch.keys, dest, nodeKeyCache));
+    }
+
+    private static void checkKeys(byte[][] nodelist, ECPoint[] keys) {
+        if (nodelist.length != keys.length) {
+            throw new SphinxException("Route needs as many node keys (" + keys.length + ") as nodes (" + nodelist.length + ")");
+        }
+    }
+}
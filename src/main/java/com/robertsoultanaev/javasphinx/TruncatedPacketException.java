@@ -0,0 +1,17 @@
+package com.robertsoultanaev.javasphinx;
+
+/**
+ * SphinxException raised when the data parsed ends before the packet does, so that readers can tell a packet that is
+ * still arriving apart from a malformed one. It is thrown for every partial read of a stream, so no stack trace is
+ * recorded.
+ */
+final class TruncatedPacketException extends SphinxException {
+    TruncatedPacketException(String message) {
+        super(message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
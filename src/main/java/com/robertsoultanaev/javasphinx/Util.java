@@ -1,13 +1,20 @@
 package com.robertsoultanaev.javasphinx;
 
-import org.bouncycastle.jce.ECNamedCurveTable;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
 import org.bouncycastle.math.ec.ECCurve;
 import org.bouncycastle.math.ec.ECPoint;
 
+import java.math.BigInteger;
+import java.util.Arrays;
+
 /**
  * Class to house various utility methods.
  */
 public class Util {
+    private static final X9ECParameters SECP224R1_PARAMETERS = CustomNamedCurves.getByName(ECCGroup.DEFAULT_CURVE_NAME);
+    private static final X9ECParameters CURVE25519_PARAMETERS = CustomNamedCurves.getByName(Curve25519Group.CURVE_NAME);
+
     /**
      * Concatenate the provided byte arrays into one byte array.
      * @param arrays Array of byte arrays.
@@ -36,8 +43,47 @@ public class Util {
      * @return Elliptic curve point as the ECPoint type.
      */
     public static ECPoint decodeECPoint(byte[] encodedECPoint) {
-        ECCurve ecCurve = ECNamedCurveTable.getParameterSpec(ECCGroup.DEFAULT_CURVE_NAME).getCurve();
-        return ecCurve.decodePoint(encodedECPoint);
+        return decodeECPoint(ECCGroup.DEFAULT_CURVE_NID, encodedECPoint);
+    }
+
+    /**
+     * Decode an elliptic curve point of the given curve from its binary representation.
+     * @param curveNid OpenSSL NID of the curve.
+     * @param encodedECPoint Binary representation of an elliptic curve point.
+     * @return Elliptic curve point as the ECPoint type.
+     */
+    public static ECPoint decodeECPoint(int curveNid, byte[] encodedECPoint) {
+        return getCurveParameters(curveNid).getCurve().decodePoint(encodedECPoint);
+    }
+
+    /**
+     * Get the parameters of a supported curve. The same instance is returned for every call, so points of a curve share one ECCurve.
+     * @param curveNid OpenSSL NID of the curve.
+     * @return Parameters of the curve.
+     */
+    public static X9ECParameters getCurveParameters(int curveNid) {
+        if (curveNid == ECCGroup.DEFAULT_CURVE_NID) {
+            return SECP224R1_PARAMETERS;
+        } else if (curveNid == Curve25519Group.CURVE_NID) {
+            return CURVE25519_PARAMETERS;
+        }
+
+        throw new SphinxException("Unsupported curve with NID " + curveNid);
+    }
+
+    /**
+     * Get the identifier of the curve of a point.
+     * @param ecCurve Curve of a point.
+     * @return OpenSSL NID of the curve.
+     */
+    public static int getCurveNid(ECCurve ecCurve) {
+        if (ecCurve == SECP224R1_PARAMETERS.getCurve() || ecCurve.equals(SECP224R1_PARAMETERS.getCurve())) {
+            return ECCGroup.DEFAULT_CURVE_NID;
+        } else if (ecCurve == CURVE25519_PARAMETERS.getCurve() || ecCurve.equals(CURVE25519_PARAMETERS.getCurve())) {
+            return Curve25519Group.CURVE_NID;
+        }
+
+        throw new SphinxException("Unsupported curve");
     }
 
     /**
@@ -63,4 +109,55 @@ public class Util {
     public static byte[] slice(byte[] source, int end) {
         return slice(source, 0, end);
     }
+
+    /**
+     * Compute the AES-CTR counter block that produces the keystream at a given position: the initial counter block,
+     * zero padded on the right, plus the number of whole blocks before the position as a 128-bit big-endian integer.
+     * @param iv Initial counter block, at most 16 bytes.
+     * @param position Offset into the keystream.
+     * @param counter Buffer of 16 bytes receiving the counter block.
+     */
+    static void counterBlock(byte[] iv, long position, byte[] counter) {
+        if (iv.length > counter.length) {
+            throw new SphinxException("Length of provided IV (" + iv.length + ") must be at most " + counter.length);
+        }
+
+        System.arraycopy(iv, 0, counter, 0, iv.length);
+        Arrays.fill(counter, iv.length, counter.length, (byte) 0);
+
+        long carry = position / counter.length;
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xff) + (carry & 0xff);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+    }
+
+    /**
+     * Draw a uniformly distributed number from a range by rejection sampling.
+     * @param random Source of the random bytes.
+     * @param min Smallest number of the range.
+     * @param max Largest number of the range.
+     * @return Random number between min and max, both included.
+     */
+    static BigInteger randomInRange(RandomSource random, BigInteger min, BigInteger max) {
+        BigInteger range = max.subtract(min);
+        if (range.signum() < 0) {
+            throw new SphinxException("Lower bound of the range (" + min + ") is above its upper bound (" + max + ")");
+        }
+
+        int bits = range.bitLength();
+        byte[] bytes = new byte[Math.max(1, (bits + 7) / 8)];
+        int excessBits = bytes.length * 8 - bits;
+
+        while (true) {
+            random.nextBytes(bytes, 0, bytes.length);
+            bytes[0] &= (byte) (0xff >>> excessBits);
+
+            BigInteger candidate = new BigInteger(1, bytes);
+            if (candidate.compareTo(range) <= 0) {
+                return candidate.add(min);
+            }
+        }
+    }
 }
@@ -0,0 +1,252 @@
+package com.robertsoultanaev.javasphinx;
+
+/**
+ * Class implementing arithmetic modulo 2^255 - 19 on ten signed limbs of alternately 26 and 25 bits, as in the
+ * reference implementation of Curve25519. Products of limbs fit in a long, so no arbitrary precision arithmetic is needed.
+ */
+final class X25519Field {
+    static final int SIZE = 10;
+
+    private static final int M25 = (1 << 25) - 1;
+    private static final int M26 = (1 << 26) - 1;
+
+    private X25519Field() {
+    }
+
+    static int[] create() {
+        return new int[SIZE];
+    }
+
+    static void one(int[] z) {
+        zero(z);
+        z[0] = 1;
+    }
+
+    static void zero(int[] z) {
+        for (int i = 0; i < SIZE; i++) {
+            z[i] = 0;
+        }
+    }
+
+    static void copy(int[] x, int[] z) {
+        System.arraycopy(x, 0, z, 0, SIZE);
+    }
+
+    static void add(int[] x, int[] y, int[] z) {
+        for (int i = 0; i < SIZE; i++) {
+            z[i] = x[i] + y[i];
+        }
+    }
+
+    static void subtract(int[] x, int[] y, int[] z) {
+        for (int i = 0; i < SIZE; i++) {
+            z[i] = x[i] - y[i];
+        }
+    }
+
+    /**
+     * Swap x and y if swap is 1, leave them if swap is 0, without branching on swap.
+     */
+    static void conditionalSwap(int swap, int[] x, int[] y) {
+        int mask = -swap;
+        for (int i = 0; i < SIZE; i++) {
+            int t = mask & (x[i] ^ y[i]);
+            x[i] ^= t;
+            y[i] ^= t;
+        }
+    }
+
+    static void multiply(int[] f, int[] g, int[] h) {
+        int f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+        int g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4], g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+
+        // Limbs above 2^255 wrap around multiplied by 19, and products of two odd limbs carry an extra factor of 2
+        int g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4, g5_19 = 19 * g5;
+        int g6_19 = 19 * g6, g7_19 = 19 * g7, g8_19 = 19 * g8, g9_19 = 19 * g9;
+        int f1_2 = 2 * f1, f3_2 = 2 * f3, f5_2 = 2 * f5, f7_2 = 2 * f7, f9_2 = 2 * f9;
+
+        long h0 = (long) f0 * g0 + (long) f1_2 * g9_19 + (long) f2 * g8_19 + (long) f3_2 * g7_19
+            + (long) f4 * g6_19 + (long) f5_2 * g5_19 + (long) f6 * g4_19 + (long) f7_2 * g3_19
+            + (long) f8 * g2_19 + (long) f9_2 * g1_19;
+        long h1 = (long) f0 * g1 + (long) f1 * g0 + (long) f2 * g9_19 + (long) f3 * g8_19
+            + (long) f4 * g7_19 + (long) f5 * g6_19 + (long) f6 * g5_19 + (long) f7 * g4_19
+            + (long) f8 * g3_19 + (long) f9 * g2_19;
+        long h2 = (long) f0 * g2 + (long) f1_2 * g1 + (long) f2 * g0 + (long) f3_2 * g9_19
+            + (long) f4 * g8_19 + (long) f5_2 * g7_19 + (long) f6 * g6_19 + (long) f7_2 * g5_19
+            + (long) f8 * g4_19 + (long) f9_2 * g3_19;
+        long h3 = (long) f0 * g3 + (long) f1 * g2 + (long) f2 * g1 + (long) f3 * g0
+            + (long) f4 * g9_19 + (long) f5 * g8_19 + (long) f6 * g7_19 + (long) f7 * g6_19
+            + (long) f8 * g5_19 + (long) f9 * g4_19;
+        long h4 = (long) f0 * g4 + (long) f1_2 * g3 + (long) f2 * g2 + (long) f3_2 * g1
+            + (long) f4 * g0 + (long) f5_2 * g9_19 + (long) f6 * g8_19 + (long) f7_2 * g7_19
+            + (long) f8 * g6_19 + (long) f9_2 * g5_19;
+        long h5 = (long) f0 * g5 + (long) f1 * g4 + (long) f2 * g3 + (long) f3 * g2
+            + (long) f4 * g1 + (long) f5 * g0 + (long) f6 * g9_19 + (long) f7 * g8_19
+            + (long) f8 * g7_19 + (long) f9 * g6_19;
+        long h6 = (long) f0 * g6 + (long) f1_2 * g5 + (long) f2 * g4 + (long) f3_2 * g3
+            + (long) f4 * g2 + (long) f5_2 * g1 + (long) f6 * g0 + (long) f7_2 * g9_19
+            + (long) f8 * g8_19 + (long) f9_2 * g7_19;
+        long h7 = (long) f0 * g7 + (long) f1 * g6 + (long) f2 * g5 + (long) f3 * g4
+            + (long) f4 * g3 + (long) f5 * g2 + (long) f6 * g1 + (long) f7 * g0
+            + (long) f8 * g9_19 + (long) f9 * g8_19;
+        long h8 = (long) f0 * g8 + (long) f1_2 * g7 + (long) f2 * g6 + (long) f3_2 * g5
+            + (long) f4 * g4 + (long) f5_2 * g3 + (long) f6 * g2 + (long) f7_2 * g1
+            + (long) f8 * g0 + (long) f9_2 * g9_19;
+        long h9 = (long) f0 * g9 + (long) f1 * g8 + (long) f2 * g7 + (long) f3 * g6
+            + (long) f4 * g5 + (long) f5 * g4 + (long) f6 * g3 + (long) f7 * g2
+            + (long) f8 * g1 + (long) f9 * g0;
+
+        carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    static void square(int[] f, int[] h) {
+        int f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+
+        // Each cross product appears twice, the factors of 2 and 19 are the same as in multiply
+        long h0 = (long) f0 * f0 + (long) f1 * f9 * 76 + (long) f2 * f8 * 38 + (long) f3 * f7 * 76
+            + (long) f4 * f6 * 38 + (long) f5 * f5 * 38;
+        long h1 = (long) f0 * f1 * 2 + (long) f2 * f9 * 38 + (long) f3 * f8 * 38 + (long) f4 * f7 * 38
+            + (long) f5 * f6 * 38;
+        long h2 = (long) f0 * f2 * 2 + (long) f1 * f1 * 2 + (long) f3 * f9 * 76 + (long) f4 * f8 * 38
+            + (long) f5 * f7 * 76 + (long) f6 * f6 * 19;
+        long h3 = (long) f0 * f3 * 2 + (long) f1 * f2 * 2 + (long) f4 * f9 * 38 + (long) f5 * f8 * 38
+            + (long) f6 * f7 * 38;
+        long h4 = (long) f0 * f4 * 2 + (long) f1 * f3 * 4 + (long) f2 * f2 + (long) f5 * f9 * 76
+            + (long) f6 * f8 * 38 + (long) f7 * f7 * 38;
+        long h5 = (long) f0 * f5 * 2 + (long) f1 * f4 * 2 + (long) f2 * f3 * 2 + (long) f6 * f9 * 38
+            + (long) f7 * f8 * 38;
+        long h6 = (long) f0 * f6 * 2 + (long) f1 * f5 * 4 + (long) f2 * f4 * 2 + (long) f3 * f3 * 2
+            + (long) f7 * f9 * 76 + (long) f8 * f8 * 19;
+        long h7 = (long) f0 * f7 * 2 + (long) f1 * f6 * 2 + (long) f2 * f5 * 2 + (long) f3 * f4 * 2
+            + (long) f8 * f9 * 38;
+        long h8 = (long) f0 * f8 * 2 + (long) f1 * f7 * 4 + (long) f2 * f6 * 2 + (long) f3 * f5 * 4
+            + (long) f4 * f4 + (long) f9 * f9 * 38;
+        long h9 = (long) f0 * f9 * 2 + (long) f1 * f8 * 2 + (long) f2 * f7 * 2 + (long) f3 * f6 * 2
+            + (long) f4 * f5 * 2;
+
+        carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    /**
+     * Square f n times.
+     */
+    static void square(int[] f, int n, int[] h) {
+        square(f, h);
+        for (int i = 1; i < n; i++) {
+            square(h, h);
+        }
+    }
+
+    /**
+     * Invert a non-zero field element by raising it to the power p - 2, in constant time.
+     */
+    static void invert(int[] z, int[] out) {
+        int[] t0 = create(), t1 = create(), t2 = create(), t3 = create();
+
+        // Addition chain of the reference implementation, the comments give the exponent reached
+        square(z, t0);                // 2
+        square(t0, 2, t1);            // 8
+        multiply(z, t1, t1);          // 9
+        multiply(t0, t1, t0);         // 11
+        square(t0, t2);               // 22
+        multiply(t1, t2, t1);         // 2^5 - 1
+        square(t1, 5, t2);
+        multiply(t2, t1, t1);         // 2^10 - 1
+        square(t1, 10, t2);
+        multiply(t2, t1, t2);         // 2^20 - 1
+        square(t2, 20, t3);
+        multiply(t3, t2, t2);         // 2^40 - 1
+        square(t2, 10, t2);
+        multiply(t2, t1, t1);         // 2^50 - 1
+        square(t1, 50, t2);
+        multiply(t2, t1, t2);         // 2^100 - 1
+        square(t2, 100, t3);
+        multiply(t3, t2, t2);         // 2^200 - 1
+        square(t2, 50, t2);
+        multiply(t2, t1, t1);         // 2^250 - 1
+        square(t1, 5, t1);            // 2^255 - 32
+        multiply(t1, t0, out);        // 2^255 - 21 = p - 2
+    }
+
+    static void multiply(int[] f, int g, int[] h) {
+        long h0 = (long) f[0] * g, h1 = (long) f[1] * g, h2 = (long) f[2] * g, h3 = (long) f[3] * g, h4 = (long) f[4] * g;
+        long h5 = (long) f[5] * g, h6 = (long) f[6] * g, h7 = (long) f[7] * g, h8 = (long) f[8] * g, h9 = (long) f[9] * g;
+
+        carry(h, h0, h1, h2, h3, h4, h5, h6, h7, h8, h9);
+    }
+
+    /**
+     * Load a field element from eight little-endian 32-bit words, ignoring the top bit.
+     */
+    static void decode(int[] words, int[] z) {
+        int offset = 0;
+        for (int i = 0; i < SIZE; i++) {
+            int width = (i & 1) == 0 ? 26 : 25;
+            int word = offset >>> 5, shift = offset & 31;
+
+            long bits = (words[word] & 0xffffffffL) >>> shift;
+            if (shift + width > 32 && word + 1 < 8) {
+                bits |= (words[word + 1] & 0xffffffffL) << (32 - shift);
+            }
+
+            z[i] = (int) bits & (width == 26 ? M26 : M25);
+            offset += width;
+        }
+    }
+
+    /**
+     * Store the fully reduced value of a field element as eight little-endian 32-bit words.
+     */
+    static void encode(int[] x, int[] words) {
+        int[] h = x.clone();
+
+        // q is 1 if h is at least p, so that h - q * p is the canonical representative
+        int q = (19 * h[9] + (1 << 24)) >> 25;
+        for (int i = 0; i < SIZE; i++) {
+            q = (h[i] + q) >> ((i & 1) == 0 ? 26 : 25);
+        }
+
+        h[0] += 19 * q;
+        for (int i = 0; i < SIZE - 1; i++) {
+            int width = (i & 1) == 0 ? 26 : 25;
+            int c = h[i] >> width;
+            h[i + 1] += c;
+            h[i] -= c << width;
+        }
+        h[9] &= M25;
+
+        long acc = 0;
+        int accBits = 0, word = 0;
+        for (int i = 0; i < SIZE; i++) {
+            acc |= (long) h[i] << accBits;
+            accBits += (i & 1) == 0 ? 26 : 25;
+
+            while (accBits >= 32) {
+                words[word++] = (int) acc;
+                acc >>>= 32;
+                accBits -= 32;
+            }
+        }
+        words[word] = (int) acc;
+    }
+
+    private static void carry(int[] h, long h0, long h1, long h2, long h3, long h4, long h5, long h6, long h7, long h8, long h9) {
+        long c;
+
+        c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+        c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+        c = (h1 + (1L << 24)) >> 25; h2 += c; h1 -= c << 25;
+        c = (h5 + (1L << 24)) >> 25; h6 += c; h5 -= c << 25;
+        c = (h2 + (1L << 25)) >> 26; h3 += c; h2 -= c << 26;
+        c = (h6 + (1L << 25)) >> 26; h7 += c; h6 -= c << 26;
+        c = (h3 + (1L << 24)) >> 25; h4 += c; h3 -= c << 25;
+        c = (h7 + (1L << 24)) >> 25; h8 += c; h7 -= c << 25;
+        c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+        c = (h8 + (1L << 25)) >> 26; h9 += c; h8 -= c << 26;
+        c = (h9 + (1L << 24)) >> 25; h0 += c * 19; h9 -= c << 25;
+        c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+
+        h[0] = (int) h0; h[1] = (int) h1; h[2] = (int) h2; h[3] = (int) h3; h[4] = (int) h4;
+        h[5] = (int) h5; h[6] = (int) h6; h[7] = (int) h7; h[8] = (int) h8; h[9] = (int) h9;
+    }
+}
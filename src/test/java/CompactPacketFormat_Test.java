@@ -0,0 +1,132 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CompactPacketFormat_Test {
+    private static final int HOPS = 3;
+
+    private SphinxNodeKey[] createNodeKeys(SphinxParams params) {
+        SphinxNodeKey[] keys = new SphinxNodeKey[HOPS];
+        for (int i = 0; i < HOPS; i++) {
+            keys[i] = new SphinxNodeKey(params.getGroup(), params.getGroup().genSecret());
+        }
+
+        return keys;
+    }
+
+    private SphinxPacket createPacket(SphinxParams params, SphinxNodeKey[] keys) {
+        byte[][] nodesRouting = new byte[HOPS][];
+        ECPoint[] nodeKeys = new ECPoint[HOPS];
+        for (int i = 0; i < HOPS; i++) {
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+            nodeKeys[i] = keys[i].getPublicKey();
+        }
+
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+        HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage);
+
+        return new SphinxPacket(new ParamLengths(params.getHeaderLength(), params.getBodyLength()), headerAndDelta);
+    }
+
+    private void packUnpack(SphinxParams params) {
+        CompactPacketFormat format = new CompactPacketFormat(1, params);
+        SphinxPacket packet = createPacket(params, createNodeKeys(params));
+
+        byte[] compact = format.packMessage(packet);
+        byte[] packed = SphinxClient.packMessage(packet);
+        assertEquals(format.getPacketLength(), compact.length);
+        assertTrue(compact.length < packed.length);
+        assertEquals(1, compact[0]);
+
+        SphinxPacket unpacked = format.unpackMessage(compact);
+        assertArrayEquals(packed, SphinxClient.packMessage(unpacked));
+    }
+
+    @Test
+    public void packUnpack() throws Exception {
+        packUnpack(new SphinxParams());
+    }
+
+    @Test
+    public void packUnpackCurve25519() throws Exception {
+        packUnpack(new SphinxParams(16, 1024, 192, new Curve25519Group()));
+    }
+
+    @Test
+    public void formatIsDetected() throws Exception {
+        SphinxParams params = new SphinxParams();
+        SphinxParams curve25519Params = new SphinxParams(16, 1024, 192, new Curve25519Group());
+        CompactPacketFormat[] formats = {new CompactPacketFormat(1, params), new CompactPacketFormat(2, curve25519Params)};
+
+        SphinxPacket packet = createPacket(curve25519Params, createNodeKeys(curve25519Params));
+        byte[] packed = SphinxClient.packMessage(packet);
+        byte[] compact = formats[1].packMessage(packet);
+
+        assertArrayEquals(packed, SphinxClient.packMessage(SphinxClient.unpackMessage(packed, formats)));
+        assertArrayEquals(packed, SphinxClient.packMessage(SphinxClient.unpackMessage(compact, formats)));
+
+        // Packets of both formats back to back in a single buffer
+        ByteBuffer buffer = ByteBuffer.allocateDirect(packed.length + compact.length);
+        buffer.put(compact);
+        buffer.put(packed);
+        buffer.flip();
+
+        PacketView first = SphinxPacketCodec.decode(buffer, formats);
+        assertEquals(compact.length, buffer.position());
+        PacketView second = SphinxPacketCodec.decode(buffer, formats);
+        assertFalse(buffer.hasRemaining());
+
+        assertEquals(first.getBeta(), second.getBeta());
+        assertEquals(first.getDelta(), second.getDelta());
+        assertEquals(first.getAlpha(), second.getAlpha());
+    }
+
+    @Test(expected = SphinxException.class)
+    public void unknownProfileIsRejected() throws Exception {
+        SphinxParams params = new SphinxParams();
+        byte[] compact = new CompactPacketFormat(3, params).packMessage(createPacket(params, createNodeKeys(params)));
+
+        SphinxClient.unpackMessage(compact, new CompactPacketFormat[] {new CompactPacketFormat(1, params)});
+    }
+
+    @Test(expected = SphinxException.class)
+    public void profileIdClashingWithMsgpackIsRejected() throws Exception {
+        new CompactPacketFormat(0x92, new SphinxParams());
+    }
+
+    @Test(expected = SphinxException.class)
+    public void packetOfOtherParametersIsRejected() throws Exception {
+        SphinxParams params = new SphinxParams();
+        SphinxParams otherParams = new SphinxParams(16, 2048, 192, new ECCGroup());
+
+        new CompactPacketFormat(1, params).packMessage(createPacket(otherParams, createNodeKeys(otherParams)));
+    }
+
+    @Test
+    public void relayKeepsCompactFormat() throws Exception {
+        SphinxParams params = new SphinxParams();
+        CompactPacketFormat format = new CompactPacketFormat(1, params);
+        SphinxNodeKey[] keys = createNodeKeys(params);
+        SphinxPacket packet = createPacket(params, keys);
+        byte[] compact = format.packMessage(packet);
+
+        KeyEpochs epochs = new KeyEpochs();
+        epochs.add(0, keys[0], new ReplayFilter(1000, 0.001, false));
+        SphinxRelay relay = new SphinxRelay(params, epochs, new CompactPacketFormat[] {format});
+        RelayResult result = new RelayResult(params);
+        relay.process(compact, 0, compact.length, result);
+
+        ProcessedPacket expected = SphinxNode.sphinxProcess(params, keys[0].getSecret(), packet.headerAndDelta);
+        assertTrue(result.isRelay());
+        assertArrayEquals(expected.routing, Arrays.copyOf(result.getRouting(), result.getRoutingLength()));
+
+        // The rewritten packet is the compact packet for the next hop
+        ParamLengths paramLengths = new ParamLengths(params.getHeaderLength(), params.getBodyLength());
+        assertArrayEquals(format.packMessage(new SphinxPacket(paramLengths, expected.getHeaderAndDelta())), compact);
+    }
+}
@@ -0,0 +1,158 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+
+import static org.junit.Assert.*;
+
+public class CryptoBackend_Test {
+    private CryptoBackend jca;
+    private CryptoBackend bouncyCastle;
+    private SecureRandom random;
+
+    @Before
+    public void setUp() {
+        jca = new JcaCryptoBackend();
+        bouncyCastle = new BouncyCastleCryptoBackend();
+        random = new SecureRandom();
+    }
+
+    @Test
+    public void aesCtrMatches() throws Exception {
+        byte[] key = randomBytes(16);
+        byte[] data = randomBytes(1000);
+
+        for (int ivLength : new int[] {8, 16}) {
+            byte[] iv = randomBytes(ivLength);
+
+            for (long position : new long[] {0, 1, 15, 16, 17, 4095}) {
+                byte[] jcaOutput = data.clone();
+                byte[] bouncyCastleOutput = data.clone();
+
+                jca.aesCtr(key, iv, position, jcaOutput, 3, 500);
+                bouncyCastle.aesCtr(key, iv, position, bouncyCastleOutput, 3, 500);
+
+                assertArrayEquals(bouncyCastleOutput, jcaOutput);
+            }
+        }
+    }
+
+    @Test
+    public void aesCtrCounterCarry() throws Exception {
+        byte[] key = randomBytes(16);
+        byte[] iv = new byte[16];
+        for (int i = 8; i < 16; i++) {
+            iv[i] = (byte) 0xff;
+        }
+
+        byte[] jcaOutput = new byte[64];
+        byte[] bouncyCastleOutput = new byte[64];
+
+        jca.aesCtr(key, iv, 20, jcaOutput, 0, 64);
+        bouncyCastle.aesCtr(key, iv, 20, bouncyCastleOutput, 0, 64);
+
+        assertArrayEquals(bouncyCastleOutput, jcaOutput);
+    }
+
+    @Test
+    public void aesCtrKeystreamsMatchAesCtr() throws Exception {
+        byte[] key = randomBytes(16);
+        byte[][] ivs = {randomBytes(16), randomBytes(16), randomBytes(8)};
+
+        for (CryptoBackend backend : new CryptoBackend[] {jca, bouncyCastle}) {
+            byte[][] outputs = {new byte[16], new byte[5], new byte[40]};
+            backend.aesCtrKeystreams(key, ivs, outputs);
+
+            for (int i = 0; i < ivs.length; i++) {
+                byte[] expected = new byte[outputs[i].length];
+                backend.aesCtr(key, ivs[i], 0, expected, 0, expected.length);
+
+                assertArrayEquals(expected, outputs[i]);
+            }
+        }
+    }
+
+    @Test
+    public void hmacSha256Matches() throws Exception {
+        byte[] key = randomBytes(16);
+        byte[] data = randomBytes(300);
+
+        byte[] jcaOutput = new byte[32];
+        byte[] bouncyCastleOutput = new byte[32];
+
+        jca.hmacSha256(key, data, 7, 200, jcaOutput);
+        bouncyCastle.hmacSha256(key, data, 7, 200, bouncyCastleOutput);
+
+        assertArrayEquals(bouncyCastleOutput, jcaOutput);
+    }
+
+    @Test
+    public void repeatedAndChangedKeysMatch() throws Exception {
+        byte[] key = randomBytes(16);
+        byte[] otherKey = randomBytes(16);
+        byte[] data = randomBytes(300);
+        byte[] iv = randomBytes(16);
+
+        // The same key twice, another key, then the first key changed in place
+        byte[][] keys = {key, key.clone(), otherKey, key};
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 3) {
+                key[0] ^= 1;
+            }
+
+            byte[] jcaOutput = new byte[32];
+            byte[] bouncyCastleOutput = new byte[32];
+            jca.hmacSha256(keys[i], data, 0, data.length, jcaOutput);
+            bouncyCastle.hmacSha256(keys[i], data, 0, data.length, bouncyCastleOutput);
+            assertArrayEquals(bouncyCastleOutput, jcaOutput);
+
+            byte[][] jcaStreams = {new byte[40]};
+            byte[][] bouncyCastleStreams = {new byte[40]};
+            jca.aesCtrKeystreams(keys[i], new byte[][] {iv}, jcaStreams);
+            bouncyCastle.aesCtrKeystreams(keys[i], new byte[][] {iv}, bouncyCastleStreams);
+            assertArrayEquals(bouncyCastleStreams[0], jcaStreams[0]);
+
+            byte[] jcaData = data.clone();
+            byte[] bouncyCastleData = data.clone();
+            jca.aesCtr(keys[i], iv, 5, jcaData, 0, jcaData.length);
+            bouncyCastle.aesCtr(keys[i], iv, 5, bouncyCastleData, 0, bouncyCastleData.length);
+            assertArrayEquals(bouncyCastleData, jcaData);
+        }
+    }
+
+    @Test
+    public void sha256Matches() throws Exception {
+        byte[] data = randomBytes(300);
+        byte[] suffix = randomBytes(17);
+
+        byte[] jcaOutput = new byte[32];
+        byte[] bouncyCastleOutput = new byte[32];
+
+        jca.sha256(data, 7, 200, suffix, jcaOutput);
+        bouncyCastle.sha256(data, 7, 200, suffix, bouncyCastleOutput);
+
+        assertArrayEquals(bouncyCastleOutput, jcaOutput);
+    }
+
+    @Test
+    public void payloadEncryptionMatches() throws Exception {
+        SphinxParams jcaParams = new SphinxParams(16, 1024, 192, new ECCGroup(), jca);
+        SphinxParams bouncyCastleParams = new SphinxParams(16, 1024, 192, new ECCGroup(), bouncyCastle);
+
+        byte[] key = randomBytes(16);
+        byte[] body = randomBytes(1024);
+
+        byte[] ciphertext = jcaParams.pi(key, body);
+
+        assertArrayEquals(bouncyCastleParams.pi(key, body), ciphertext);
+        assertArrayEquals(body, bouncyCastleParams.pii(key, ciphertext));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+
+        return bytes;
+    }
+}
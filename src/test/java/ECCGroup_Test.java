@@ -1,4 +1,7 @@
+import com.robertsoultanaev.javasphinx.Curve25519Group;
 import com.robertsoultanaev.javasphinx.ECCGroup;
+import com.robertsoultanaev.javasphinx.EllipticCurveGroup;
+import com.robertsoultanaev.javasphinx.PrecomputedExponent;
 import com.robertsoultanaev.javasphinx.Util;
 import org.bouncycastle.math.ec.ECPoint;
 import org.bouncycastle.util.encoders.Hex;
@@ -6,6 +9,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.List;
 
@@ -32,6 +36,49 @@ public class ECCGroup_Test {
         assertArrayEquals(expectedOutput, output);
     }
 
+    @Test
+    public void exponGenerator() throws Exception {
+        BigInteger secret = new BigInteger("10242318609670578569309311701916918226942711495988531232197429015905");
+
+        byte[] expectedOutput = Hex.decode("02a66335a59f1277c193315eb2db69808e6eaf15c944286765c0adcae2");
+        byte[] output = eccGroup.exponGenerator(secret).getEncoded(true);
+
+        assertArrayEquals(expectedOutput, output);
+
+        for (int i = 0; i < 20; i++) {
+            BigInteger exp = eccGroup.genSecret();
+            assertEquals(eccGroup.getGenerator().multiply(exp), eccGroup.exponGenerator(exp));
+        }
+
+        BigInteger order = eccGroup.getOrder();
+        assertEquals(eccGroup.getGenerator().multiply(secret), eccGroup.exponGenerator(secret.add(order)));
+        assertEquals(eccGroup.getGenerator().multiply(secret).negate(), eccGroup.exponGenerator(secret.negate()));
+    }
+
+    @Test
+    public void exponPrecomputed() throws Exception {
+        EllipticCurveGroup[] groups = {eccGroup, new Curve25519Group()};
+
+        for (EllipticCurveGroup group : groups) {
+            BigInteger secret = group.genSecret();
+            PrecomputedExponent exponent = group.precomputeExponent(secret);
+            assertEquals(secret, exponent.getValue());
+
+            for (int i = 0; i < 10; i++) {
+                ECPoint base = group.exponGenerator(group.genSecret());
+                assertEquals(base.multiply(secret), group.expon(base, exponent));
+            }
+
+            assertEquals(group.exponGenerator(secret), group.expon(group.getGenerator(), exponent));
+            assertTrue(group.expon(group.getGenerator(), group.precomputeExponent(BigInteger.ZERO)).isInfinity());
+            assertTrue(group.expon(group.getGenerator().getCurve().getInfinity(), exponent).isInfinity());
+
+            ECPoint base = group.exponGenerator(group.genSecret());
+            assertEquals(base, group.expon(base, group.precomputeExponent(BigInteger.ONE)));
+            assertEquals(base.negate(), group.expon(base, group.precomputeExponent(group.getOrder().subtract(BigInteger.ONE))));
+        }
+    }
+
     @Test
     public void multiexpon() throws Exception {
         BigInteger secret1 = new BigInteger("10242318609670578569309311701916918226942711495988531232197429015905");
@@ -71,4 +118,50 @@ public class ECCGroup_Test {
 
         assertArrayEquals(expectedOutput, output);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void curve25519Group() throws Exception {
+        Curve25519Group curve25519Group = new Curve25519Group();
+        BigInteger cofactor = BigInteger.valueOf(8);
+
+        for (int i = 0; i < 20; i++) {
+            BigInteger secret = curve25519Group.genSecret();
+            assertEquals(BigInteger.ZERO, secret.mod(cofactor));
+            assertTrue(secret.compareTo(curve25519Group.getOrder()) < 0);
+
+            ECPoint publicKey = curve25519Group.exponGenerator(secret);
+            assertEquals(curve25519Group.getGenerator().multiply(secret), publicKey);
+
+            BigInteger exp = curve25519Group.genSecret();
+            ECPoint shared = curve25519Group.expon(publicKey, exp);
+            assertEquals(publicKey.multiply(exp), shared);
+
+            // Results of the ladder are fed back to it, as when a node blinds alpha for the next hop
+            assertEquals(publicKey.multiply(exp).multiply(secret), curve25519Group.expon(shared, secret));
+            assertEquals(publicKey.multiply(exp).add(publicKey), shared.add(publicKey));
+
+            byte[] encoded = publicKey.getEncoded(true);
+            assertEquals(publicKey, Util.decodeECPoint(Curve25519Group.CURVE_NID, encoded));
+        }
+
+        // Points outside the prime order subgroup go through the same ladder, here with the point of order two (u = 0)
+        BigInteger p = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+        BigInteger uToX = BigInteger.valueOf(486662).multiply(BigInteger.valueOf(3).modInverse(p)).mod(p);
+        ECPoint torsion = curve25519Group.getGenerator().getCurve().createPoint(uToX, BigInteger.ZERO);
+        assertTrue(torsion.twice().isInfinity());
+
+        SecureRandom secureRandom = new SecureRandom();
+        ECPoint base = curve25519Group.exponGenerator(curve25519Group.genSecret()).add(torsion);
+        for (int i = 0; i < 20; i++) {
+            BigInteger exp = new BigInteger(255, secureRandom);
+            assertEquals(base.multiply(exp), curve25519Group.expon(base, exp));
+        }
+
+        assertEquals(torsion, curve25519Group.expon(base, curve25519Group.getOrder()));
+        assertTrue(curve25519Group.expon(torsion, curve25519Group.genSecret()).isInfinity());
+        assertEquals(base.negate(), curve25519Group.expon(base, BigInteger.ONE.negate()));
+
+        assertEquals(Curve25519Group.CURVE_NID, Util.getCurveNid(curve25519Group.getGenerator().getCurve()));
+        assertEquals(ECCGroup.DEFAULT_CURVE_NID, Util.getCurveNid(eccGroup.getGenerator().getCurve()));
+    }
+}
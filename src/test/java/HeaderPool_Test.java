@@ -0,0 +1,152 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class HeaderPool_Test {
+    private static final int HOPS = 3;
+
+    private final SphinxParams params = new SphinxParams();
+    private final BigInteger[] secrets = new BigInteger[HOPS];
+    private final byte[][] nodesRouting = new byte[HOPS][];
+    private final ECPoint[] nodeKeys = new ECPoint[HOPS];
+
+    public HeaderPool_Test() {
+        for (int i = 0; i < HOPS; i++) {
+            secrets[i] = params.getGroup().genSecret();
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+            nodeKeys[i] = params.getGroup().exponGenerator(secrets[i]);
+        }
+    }
+
+    private static void awaitReady(HeaderPool pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (pool.getReadyCount() < count) {
+            assertTrue("Pool was not refilled in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private DestinationAndMessage deliver(HeaderAndDelta headerAndDelta) {
+        int node = 0;
+        for (int hop = 0; hop < HOPS; hop++) {
+            ProcessedPacket processed = SphinxNode.sphinxProcess(params, secrets[node], headerAndDelta);
+            if (!processed.isRelay()) {
+                return SphinxClient.receiveForward(params, processed.macKey, processed.getDelta());
+            }
+
+            headerAndDelta = processed.getHeaderAndDelta();
+            node = processed.routing[4];
+        }
+
+        throw new AssertionError("Packet was not delivered");
+    }
+
+    @Test
+    public void pooledHeadersDeliverMessages() throws Exception {
+        HeaderPool pool = new HeaderPool(params, nodesRouting, nodeKeys, 2, 4);
+        try {
+            awaitReady(pool, 4);
+
+            DestinationAndMessage sent = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+            DestinationAndMessage received = deliver(pool.createForwardMessage(sent));
+
+            assertArrayEquals(sent.destination, received.destination);
+            assertArrayEquals(sent.message, received.message);
+            assertEquals(0, pool.getMissCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void poolIsRefilledBelowLowWatermark() throws Exception {
+        HeaderPool pool = new HeaderPool(params, nodesRouting, nodeKeys, 2, 4);
+        try {
+            awaitReady(pool, 4);
+
+            // Each header is handed out once
+            Set<ECPoint> alphas = new HashSet<ECPoint>();
+            for (int i = 0; i < 3; i++) {
+                alphas.add(pool.take().header.getAlpha());
+            }
+            assertEquals(3, alphas.size());
+
+            awaitReady(pool, 4);
+            assertEquals(0, pool.getMissCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void emptyPoolCreatesHeaderOnCallingThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        HeaderPool pool = new HeaderPool(params, nodesRouting, nodeKeys, null, 1, 2, executor);
+        assertEquals(0, pool.getReadyCount());
+
+        DestinationAndMessage sent = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+        DestinationAndMessage received = deliver(pool.createForwardMessage(sent));
+
+        assertArrayEquals(sent.message, received.message);
+        assertEquals(1, pool.getMissCount());
+    }
+
+    @Test
+    public void backgroundFailuresAreReported() throws Exception {
+        // Far more hops than fit in the header, so no header of the route can be created
+        int hops = 32;
+        byte[][] longRouting = new byte[hops][];
+        ECPoint[] longKeys = new ECPoint[hops];
+        for (int i = 0; i < hops; i++) {
+            longRouting[i] = nodesRouting[i % HOPS];
+            longKeys[i] = nodeKeys[i % HOPS];
+        }
+
+        HeaderPool pool = new HeaderPool(params, longRouting, longKeys, 1, 2);
+        try {
+            long deadline = System.currentTimeMillis() + 30000;
+            while (pool.getFailureCount() < 2) {
+                assertTrue("Background failures were not counted in time", System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+
+            assertNotNull(pool.getLastFailure());
+            assertEquals(0, pool.getReadyCount());
+
+            try {
+                pool.take();
+                fail("Header was created for an invalid route");
+            } catch (RuntimeException ex) {
+                assertSame(pool.getLastFailure(), ex.getSuppressed()[0]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void forwardMessageFromHeaderMatchesRoute() throws Exception {
+        HeaderAndSecrets headerAndSecrets = SphinxClient.createForwardHeader(params, nodesRouting, nodeKeys, null);
+
+        DestinationAndMessage sent = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+        HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, headerAndSecrets, sent);
+
+        assertSame(headerAndSecrets.header, headerAndDelta.header);
+        assertArrayEquals(sent.message, deliver(headerAndDelta).message);
+    }
+
+    @Test(expected = SphinxException.class)
+    public void lowWatermarkAboveCapacityIsRejected() throws Exception {
+        new HeaderPool(params, nodesRouting, nodeKeys, 5, 4);
+    }
+}
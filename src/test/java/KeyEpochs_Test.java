@@ -0,0 +1,146 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyEpochs_Test {
+    private SphinxParams params;
+    private SphinxNodeKey oldKey;
+    private SphinxNodeKey newKey;
+
+    @Before
+    public void setUp() {
+        params = new SphinxParams();
+        oldKey = new SphinxNodeKey(params.getGroup(), params.getGroup().genSecret());
+        newKey = new SphinxNodeKey(params.getGroup(), params.getGroup().genSecret());
+    }
+
+    private HeaderAndDelta createPacket(SphinxNodeKey key, String message) {
+        byte[][] nodesRouting = {SphinxClient.encodeNode(0)};
+        ECPoint[] nodeKeys = {key.getPublicKey()};
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage("bob".getBytes(), message.getBytes());
+
+        return SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage);
+    }
+
+    @Test
+    public void addAndExpire() throws Exception {
+        KeyEpochs epochs = new KeyEpochs();
+        assertNull(epochs.getCurrent());
+
+        epochs.add(1, oldKey, null);
+        epochs.add(2, newKey, null);
+
+        assertEquals(2, epochs.getCurrent().id);
+        assertEquals(2, epochs.getEpochs().size());
+        assertEquals(1, epochs.getEpochs().get(1).id);
+
+        assertTrue(epochs.expire(2));
+        assertFalse(epochs.expire(2));
+        assertEquals(1, epochs.getCurrent().id);
+        assertEquals(1, epochs.getEpochs().size());
+    }
+
+    @Test(expected = SphinxException.class)
+    public void addDuplicateEpoch() throws Exception {
+        KeyEpochs epochs = new KeyEpochs();
+        epochs.add(1, oldKey, null);
+        epochs.add(1, newKey, null);
+    }
+
+    @Test(expected = SphinxException.class)
+    public void addEpochWithRotatingFilter() throws Exception {
+        new KeyEpochs().add(1, oldKey, new ReplayFilter(1000, 0.001));
+    }
+
+    @Test
+    public void processWithOverlappingEpochs() throws Exception {
+        KeyEpochs epochs = new KeyEpochs();
+        ReplayFilter oldFilter = new ReplayFilter(1000, 0.001, false);
+        ReplayFilter newFilter = new ReplayFilter(1000, 0.001, false);
+        epochs.add(1, oldKey, oldFilter);
+        epochs.add(2, newKey, newFilter);
+
+        HeaderAndDelta oldPacket = createPacket(oldKey, "old");
+        HeaderAndDelta newPacket = createPacket(newKey, "new");
+
+        ProcessedPacket oldResult = SphinxNode.sphinxProcess(params, epochs, oldPacket);
+        ProcessedPacket newResult = SphinxNode.sphinxProcess(params, epochs, newPacket);
+
+        assertArrayEquals(SphinxNode.sphinxProcess(params, oldKey.getSecret(), oldPacket).tag, oldResult.tag);
+        assertArrayEquals(SphinxNode.sphinxProcess(params, newKey.getSecret(), newPacket).tag, newResult.tag);
+
+        // Each tag went to the filter of the epoch whose key matched
+        assertFalse(oldFilter.add(oldResult.tag));
+        assertTrue(oldFilter.add(newResult.tag));
+        assertFalse(newFilter.add(newResult.tag));
+    }
+
+    @Test
+    public void replayedPacketIsRejected() throws Exception {
+        KeyEpochs epochs = new KeyEpochs();
+        epochs.add(1, oldKey, new ReplayFilter(1000, 0.001, false));
+        epochs.add(2, newKey, new ReplayFilter(1000, 0.001, false));
+
+        HeaderAndDelta oldPacket = createPacket(oldKey, "old");
+        SphinxNode.sphinxProcess(params, epochs, oldPacket);
+
+        try {
+            SphinxNode.sphinxProcess(params, epochs, oldPacket);
+            fail("Replayed packet was processed");
+        } catch (SphinxException ex) {
+            assertTrue(ex.getMessage().startsWith("Replayed packet"));
+        }
+    }
+
+    @Test(expected = SphinxException.class)
+    public void processAfterEpochExpired() throws Exception {
+        KeyEpochs epochs = new KeyEpochs();
+        epochs.add(1, oldKey, null);
+        epochs.add(2, newKey, null);
+
+        HeaderAndDelta oldPacket = createPacket(oldKey, "old");
+        epochs.expire(1);
+
+        SphinxNode.sphinxProcess(params, epochs, oldPacket);
+    }
+
+    @Test(expected = SphinxException.class)
+    public void processWithoutEpochs() throws Exception {
+        SphinxNode.sphinxProcess(params, new KeyEpochs(), createPacket(oldKey, "old"));
+    }
+
+    @Test
+    public void batchProcessorWithOverlappingEpochs() throws Exception {
+        KeyEpochs epochs = new KeyEpochs();
+        epochs.add(1, oldKey, new ReplayFilter(1000, 0.001, false));
+        epochs.add(2, newKey, new ReplayFilter(1000, 0.001, false));
+
+        List<HeaderAndDelta> batch = new ArrayList<HeaderAndDelta>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(createPacket(i % 2 == 0 ? oldKey : newKey, "message " + i));
+        }
+
+        SphinxBatchProcessor processor = new SphinxBatchProcessor(params, epochs, 2, true);
+        try {
+            List<ProcessedPacket> results = processor.processBatch(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                BigInteger secret = (i % 2 == 0 ? oldKey : newKey).getSecret();
+                assertArrayEquals(SphinxNode.sphinxProcess(params, secret, batch.get(i)).getDelta(), results.get(i).getDelta());
+            }
+
+            // Every packet is now a replay in its own epoch
+            for (ProcessedPacket result : processor.processBatch(batch)) {
+                assertNull(result);
+            }
+        } finally {
+            processor.shutdown();
+        }
+    }
+}
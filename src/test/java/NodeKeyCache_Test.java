@@ -0,0 +1,113 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class NodeKeyCache_Test {
+    private ECCGroup eccGroup;
+
+    @Before
+    public void setUp() {
+        eccGroup = new ECCGroup();
+    }
+
+    @Test
+    public void expon() throws Exception {
+        NodeKeyCache nodeKeyCache = new NodeKeyCache(eccGroup, 10);
+        ECPoint key = eccGroup.exponGenerator(eccGroup.genSecret());
+
+        for (int i = 0; i < 10; i++) {
+            BigInteger exp = eccGroup.genSecret();
+            assertEquals(key.multiply(exp), nodeKeyCache.expon(key, exp));
+        }
+
+        assertEquals(1, nodeKeyCache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        NodeKeyCache nodeKeyCache = new NodeKeyCache(eccGroup, 3);
+        BigInteger exp = eccGroup.genSecret();
+
+        ECPoint[] keys = new ECPoint[5];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = eccGroup.exponGenerator(eccGroup.genSecret());
+            assertEquals(keys[i].multiply(exp), nodeKeyCache.expon(keys[i], exp));
+            assertTrue(nodeKeyCache.size() <= 3);
+        }
+
+        assertEquals(3, nodeKeyCache.size());
+    }
+
+    @Test
+    public void recentlyUsedKeyIsKept() throws Exception {
+        NodeKeyCache nodeKeyCache = new NodeKeyCache(eccGroup, 2);
+        BigInteger exp = eccGroup.genSecret();
+
+        ECPoint first = eccGroup.exponGenerator(eccGroup.genSecret());
+        ECPoint second = eccGroup.exponGenerator(eccGroup.genSecret());
+        ECPoint third = eccGroup.exponGenerator(eccGroup.genSecret());
+        nodeKeyCache.expon(first, exp);
+        nodeKeyCache.expon(second, exp);
+        nodeKeyCache.expon(first, exp);
+        nodeKeyCache.expon(third, exp);
+
+        // second was the least recently used, so it was evicted and comes back in place of first
+        assertEquals(2, nodeKeyCache.size());
+        nodeKeyCache.expon(first, exp);
+        assertEquals(2, nodeKeyCache.size());
+        nodeKeyCache.expon(second, exp);
+        assertEquals(2, nodeKeyCache.size());
+    }
+
+    @Test
+    public void concurrentInsertsStopAtMaxEntries() throws Exception {
+        final int maxEntries = 4;
+        final NodeKeyCache nodeKeyCache = new NodeKeyCache(eccGroup, maxEntries);
+        final BigInteger exp = eccGroup.genSecret();
+        final ECPoint[] keys = new ECPoint[16];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = eccGroup.exponGenerator(eccGroup.genSecret());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (int i = 0; i < 2 * keys.length; i++) {
+                        ECPoint key = keys[(i * 5 + offset) % keys.length];
+                        if (!key.multiply(exp).equals(nodeKeyCache.expon(key, exp))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        executor.shutdown();
+
+        assertEquals(maxEntries, nodeKeyCache.size());
+    }
+
+    @Test(expected = SphinxException.class)
+    public void badMaxEntries() throws Exception {
+        new NodeKeyCache(eccGroup, 0);
+    }
+}
@@ -0,0 +1,153 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RandomSource_Test {
+    private static final byte[] SEED = "test vector seed".getBytes();
+
+    private static SphinxParams deterministicParams() {
+        return new SphinxParams(16, 1024, 192, new ECCGroup(), new JcaCryptoBackend(), new DeterministicRandomSource(SEED));
+    }
+
+    // Packs a forward message and a SURB created over a fixed route
+    private static byte[] createPackets(SphinxParams params) {
+        BigInteger[] secrets = new BigInteger[3];
+        ECPoint[] keys = new ECPoint[3];
+        byte[][] nodelist = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            secrets[i] = params.getGroup().genSecret(params.getRandomSource());
+            keys[i] = params.getGroup().exponGenerator(secrets[i]);
+            nodelist[i] = SphinxClient.encodeNode(i);
+        }
+
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+        HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, nodelist, keys, destinationAndMessage);
+        byte[] forward = SphinxClient.packMessage(new SphinxPacket(new ParamLengths(params.getHeaderLength(), params.getBodyLength()), headerAndDelta));
+
+        Surb surb = SphinxClient.createSurb(params, nodelist, keys, "alice".getBytes());
+
+        byte[] packets = Arrays.copyOf(forward, forward.length + surb.xid.length + surb.keytuple[0].length);
+        System.arraycopy(surb.xid, 0, packets, forward.length, surb.xid.length);
+        System.arraycopy(surb.keytuple[0], 0, packets, forward.length + surb.xid.length, surb.keytuple[0].length);
+
+        return packets;
+    }
+
+    @Test
+    public void deterministicSourceReproducesPackets() throws Exception {
+        assertArrayEquals(createPackets(deterministicParams()), createPackets(deterministicParams()));
+    }
+
+    @Test
+    public void deterministicSourceDependsOnSeed() throws Exception {
+        byte[] first = new byte[64];
+        byte[] second = new byte[64];
+        new DeterministicRandomSource(SEED).nextBytes(first, 0, first.length);
+        new DeterministicRandomSource("another seed".getBytes()).nextBytes(second, 0, second.length);
+
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test
+    public void deterministicSourceDoesNotDependOnRequestSizes() throws Exception {
+        byte[] whole = new byte[1000];
+        new DeterministicRandomSource(SEED).nextBytes(whole, 0, whole.length);
+
+        byte[] pieces = new byte[1000];
+        DeterministicRandomSource random = new DeterministicRandomSource(SEED);
+        random.nextBytes(pieces, 0, 3);
+        random.nextBytes(pieces, 3, 500);
+        random.nextBytes(pieces, 503, 497);
+
+        assertArrayEquals(whole, pieces);
+    }
+
+    @Test
+    public void drbgSourceFillsRegionAcrossReseeds() throws Exception {
+        // Tiny buffer and reseed interval, so the request spans many refills and reseeds
+        DrbgRandomSource random = new DrbgRandomSource(16, 64, Long.MAX_VALUE);
+
+        byte[] bytes = new byte[1024];
+        Arrays.fill(bytes, (byte) 0x5a);
+        random.nextBytes(bytes, 1, bytes.length - 2);
+
+        assertEquals(0x5a, bytes[0]);
+        assertEquals(0x5a, bytes[bytes.length - 1]);
+
+        Set<String> blocks = new HashSet<String>();
+        for (int i = 1; i + 16 <= bytes.length - 1; i += 16) {
+            assertTrue(blocks.add(Arrays.toString(Arrays.copyOfRange(bytes, i, i + 16))));
+        }
+    }
+
+    @Test
+    public void drbgSourceGivesThreadsDistinctBytes() throws Exception {
+        final DrbgRandomSource random = new DrbgRandomSource();
+        final AtomicReference<byte[]> other = new AtomicReference<byte[]>();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] bytes = new byte[32];
+                random.nextBytes(bytes, 0, bytes.length);
+                other.set(bytes);
+            }
+        });
+        thread.start();
+
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes, 0, bytes.length);
+        thread.join();
+
+        assertFalse(Arrays.equals(bytes, other.get()));
+    }
+
+    @Test(expected = SphinxException.class)
+    public void drbgSourceRejectsEmptyBuffer() throws Exception {
+        new DrbgRandomSource(0, 64, 64);
+    }
+
+    @Test
+    public void secretsAreInRange() throws Exception {
+        RandomSource random = new DeterministicRandomSource(SEED);
+
+        ECCGroup group = new ECCGroup();
+        Curve25519Group curve25519 = new Curve25519Group();
+        for (int i = 0; i < 100; i++) {
+            BigInteger secret = group.genSecret(random);
+            assertTrue(secret.signum() >= 0 && secret.compareTo(group.getOrder()) < 0);
+
+            BigInteger cofactorSecret = curve25519.genSecret(random);
+            assertTrue(cofactorSecret.signum() > 0 && cofactorSecret.compareTo(curve25519.getOrder()) < 0);
+            assertEquals(0, cofactorSecret.mod(BigInteger.valueOf(8)).signum());
+        }
+    }
+
+    @Test
+    public void randSubsetIsReproducible() throws Exception {
+        int[] pool = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+
+        int[] first = SphinxClient.randSubset(new DeterministicRandomSource(SEED), pool, 5);
+        int[] second = SphinxClient.randSubset(new DeterministicRandomSource(SEED), pool, 5);
+
+        assertArrayEquals(first, second);
+        assertEquals(5, new HashSet<Integer>(Arrays.asList(toObjects(first))).size());
+    }
+
+    private static Integer[] toObjects(int[] values) {
+        Integer[] objects = new Integer[values.length];
+        for (int i = 0; i < values.length; i++) {
+            objects[i] = values[i];
+        }
+
+        return objects;
+    }
+}
@@ -0,0 +1,174 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ReplayFilter_Test {
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    private byte[] randomTag() {
+        byte[] tag = new byte[16];
+        secureRandom.nextBytes(tag);
+        return tag;
+    }
+
+    @Test
+    public void addThenReplay() throws Exception {
+        ReplayFilter replayFilter = new ReplayFilter(1000, 0.001);
+        byte[] tag = randomTag();
+
+        assertTrue(replayFilter.add(tag));
+        assertFalse(replayFilter.add(tag));
+        assertFalse(replayFilter.add(tag.clone()));
+    }
+
+    @Test
+    public void rotateForgetsAfterTwoEpochs() throws Exception {
+        ReplayFilter replayFilter = new ReplayFilter(1000, 0.001);
+        byte[] tag = randomTag();
+
+        assertTrue(replayFilter.add(tag));
+        replayFilter.rotate();
+        assertFalse(replayFilter.add(tag));
+        replayFilter.rotate();
+        replayFilter.rotate();
+        assertTrue(replayFilter.add(tag));
+    }
+
+    @Test
+    public void smallFilterRemembersFullEpoch() throws Exception {
+        int capacity = 16;
+        ReplayFilter replayFilter = new ReplayFilter(capacity, 0.001);
+        byte[] tag = randomTag();
+
+        assertTrue(replayFilter.add(tag));
+        for (int i = 0; i < capacity - 1; i++) {
+            replayFilter.add(randomTag());
+        }
+
+        assertFalse(replayFilter.add(tag));
+    }
+
+    @Test
+    public void nonRotatingFilterFailsClosedWhenFull() throws Exception {
+        int capacity = 16;
+        ReplayFilter replayFilter = new ReplayFilter(capacity, 0.001, false);
+        byte[] tag = randomTag();
+
+        assertTrue(replayFilter.add(tag));
+        for (int i = 0; i < capacity - 1; i++) {
+            replayFilter.add(randomTag());
+        }
+
+        // Neither fresh nor replayed tags are accepted once the filter is full
+        for (byte[] next : new byte[][] {randomTag(), tag}) {
+            try {
+                replayFilter.add(next);
+                fail("Full replay filter accepted a tag");
+            } catch (SphinxException ex) {
+                assertTrue(ex.getMessage().startsWith("Replay filter is full"));
+            }
+        }
+    }
+
+    @Test(expected = SphinxException.class)
+    public void rotateNonRotatingFilter() throws Exception {
+        new ReplayFilter(1000, 0.001, false).rotate();
+    }
+
+    @Test
+    public void falsePositiveRate() throws Exception {
+        int capacity = 20000;
+        ReplayFilter replayFilter = new ReplayFilter(capacity, 0.01);
+        long size = replayFilter.getSizeInBytes();
+
+        for (int i = 0; i < capacity - 1000; i++) {
+            replayFilter.add(randomTag());
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (!replayFilter.add(randomTag())) {
+                falsePositives++;
+            }
+        }
+
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 30);
+        assertEquals(size, replayFilter.getSizeInBytes());
+    }
+
+    @Test
+    public void smallFilterFalsePositiveRate() throws Exception {
+        // Few blocks, each loaded with many tags
+        int capacity = 1000;
+        ReplayFilter replayFilter = new ReplayFilter(capacity, 0.01, false);
+
+        int falsePositives = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (!replayFilter.add(randomTag())) {
+                falsePositives++;
+            }
+        }
+
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < 30);
+    }
+
+    @Test
+    public void concurrentDuplicatesDetected() throws Exception {
+        final ReplayFilter replayFilter = new ReplayFilter(100000, 0.001);
+        final byte[] tag = randomTag();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 64; i++) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return replayFilter.add(tag);
+                }
+            }));
+        }
+
+        int accepted = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get()) {
+                accepted++;
+            }
+        }
+        executor.shutdown();
+
+        assertEquals(1, accepted);
+    }
+
+    @Test(expected = SphinxException.class)
+    public void addShortTag() throws Exception {
+        ReplayFilter replayFilter = new ReplayFilter(1000, 0.001);
+        replayFilter.add(new byte[8]);
+    }
+
+    @Test(expected = SphinxException.class)
+    public void processReplayedPacket() throws Exception {
+        SphinxParams params = new SphinxParams();
+        BigInteger secret = params.getGroup().genSecret();
+        ECPoint publicKey = params.getGroup().expon(params.getGroup().getGenerator(), secret);
+
+        byte[][] nodesRouting = {SphinxClient.encodeNode(0)};
+        ECPoint[] nodeKeys = {publicKey};
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+        HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage);
+
+        ReplayFilter replayFilter = new ReplayFilter(1000, 0.001);
+        SphinxNode.sphinxProcess(params, secret, headerAndDelta, replayFilter);
+        SphinxNode.sphinxProcess(params, secret, headerAndDelta, replayFilter);
+    }
+}
@@ -0,0 +1,133 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SphinxBatchClient_Test {
+    private static final int NODES = 5;
+
+    private final SphinxParams params = new SphinxParams();
+    private final BigInteger[] secrets = new BigInteger[NODES];
+    private final ECPoint[] publicKeys = new ECPoint[NODES];
+
+    public SphinxBatchClient_Test() {
+        for (int i = 0; i < NODES; i++) {
+            secrets[i] = params.getGroup().genSecret();
+            publicKeys[i] = params.getGroup().exponGenerator(secrets[i]);
+        }
+    }
+
+    // Route of the given number of hops starting at the given node
+    private RouteAndMessage request(int first, int hops, DestinationAndMessage destinationAndMessage) {
+        byte[][] nodelist = new byte[hops][];
+        ECPoint[] keys = new ECPoint[hops];
+        for (int i = 0; i < hops; i++) {
+            int node = (first + i) % NODES;
+            nodelist[i] = SphinxClient.encodeNode(node);
+            keys[i] = publicKeys[node];
+        }
+
+        return new RouteAndMessage(nodelist, keys, destinationAndMessage);
+    }
+
+    private DestinationAndMessage deliver(int first, HeaderAndDelta headerAndDelta) {
+        int node = first;
+        for (int hop = 0; hop < NODES; hop++) {
+            ProcessedPacket processed = SphinxNode.sphinxProcess(params, secrets[node], headerAndDelta);
+            if (!processed.isRelay()) {
+                return SphinxClient.receiveForward(params, processed.macKey, processed.getDelta());
+            }
+
+            headerAndDelta = processed.getHeaderAndDelta();
+            node = processed.routing[4];
+        }
+
+        throw new AssertionError("Packet was not delivered");
+    }
+
+    @Test
+    public void batchMessagesAreDeliveredInOrder() throws Exception {
+        SphinxBatchClient client = new SphinxBatchClient(params, null, 3);
+        try {
+            List<RouteAndMessage> batch = new ArrayList<RouteAndMessage>();
+            for (int i = 0; i < 40; i++) {
+                DestinationAndMessage destinationAndMessage = new DestinationAndMessage(("user" + i).getBytes(), ("message " + i).getBytes());
+                batch.add(request(i % NODES, 1 + i % 4, destinationAndMessage));
+            }
+
+            List<HeaderAndDelta> results = client.createForwardMessages(batch);
+            assertEquals(batch.size(), results.size());
+
+            for (int i = 0; i < batch.size(); i++) {
+                DestinationAndMessage received = deliver(i % NODES, results.get(i));
+                assertArrayEquals(batch.get(i).destinationAndMessage.destination, received.destination);
+                assertArrayEquals(batch.get(i).destinationAndMessage.message, received.message);
+            }
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void batchSecretsComeFromTheGroup() throws Exception {
+        // Curve25519 secrets are multiples of the cofactor, and the batch must draw them the same way as single messages
+        byte[] seed = "batch secrets".getBytes();
+        Curve25519Group group = new Curve25519Group();
+        SphinxParams curve25519Params = new SphinxParams(16, 1024, 192, group, new JcaCryptoBackend(), new DeterministicRandomSource(seed));
+        BigInteger secret = group.genSecret();
+        ECPoint publicKey = group.exponGenerator(secret);
+
+        SphinxBatchClient client = new SphinxBatchClient(curve25519Params, null, 1);
+        try {
+            DestinationAndMessage sent = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+            List<RouteAndMessage> batch = new ArrayList<RouteAndMessage>();
+            batch.add(new RouteAndMessage(new byte[][] {SphinxClient.encodeNode(0)}, new ECPoint[] {publicKey}, sent));
+
+            HeaderAndDelta headerAndDelta = client.createForwardMessages(batch).get(0);
+
+            BigInteger expectedBlindFactor = group.genSecret(new DeterministicRandomSource(seed));
+            assertEquals(group.exponGenerator(expectedBlindFactor), headerAndDelta.header.getAlpha());
+
+            ProcessedPacket processed = SphinxNode.sphinxProcess(curve25519Params, secret, headerAndDelta);
+            assertArrayEquals(sent.message, SphinxClient.receiveForward(curve25519Params, processed.macKey, processed.getDelta()).message);
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void failedMessagesDoNotAffectTheBatch() throws Exception {
+        SphinxBatchClient client = new SphinxBatchClient(params, new NodeKeyCache(params.getGroup(), NODES), 2);
+        try {
+            DestinationAndMessage sent = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+            DestinationAndMessage tooLong = new DestinationAndMessage(new byte[SphinxClient.MAX_DEST_SIZE + 1], "this is a test".getBytes());
+
+            List<RouteAndMessage> batch = new ArrayList<RouteAndMessage>();
+            batch.add(request(0, 3, sent));
+            batch.add(request(1, 3, tooLong));
+            batch.add(new RouteAndMessage(new byte[2][], new ECPoint[3], sent));
+            batch.add(request(2, 3, sent));
+            batch.add(null);
+            batch.add(new RouteAndMessage(null, null, sent));
+            batch.add(new RouteAndMessage(new byte[3][], new ECPoint[3], sent));
+            batch.add(new RouteAndMessage(request(3, 3, sent).nodelist, request(3, 3, sent).keys, null));
+
+            List<HeaderAndDelta> results = client.createForwardMessages(batch);
+
+            assertNull(results.get(1));
+            assertNull(results.get(2));
+            for (int i = 4; i < batch.size(); i++) {
+                assertNull(results.get(i));
+            }
+            assertArrayEquals(sent.message, deliver(0, results.get(0)).message);
+            assertArrayEquals(sent.message, deliver(2, results.get(3)).message);
+        } finally {
+            client.shutdown();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SphinxBatchProcessor_Test {
+    private SphinxParams params;
+    private BigInteger firstNodeSecret;
+    private List<HeaderAndDelta> batch;
+    private SphinxBatchProcessor processor;
+
+    @Before
+    public void setUp() throws Exception {
+        params = new SphinxParams();
+
+        int r = 3;
+        byte[][] nodesRouting = new byte[r][];
+        ECPoint[] nodeKeys = new ECPoint[r];
+        for (int i = 0; i < r; i++) {
+            BigInteger x = params.getGroup().genSecret();
+            if (i == 0) {
+                firstNodeSecret = x;
+            }
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+            nodeKeys[i] = params.getGroup().expon(params.getGroup().getGenerator(), x);
+        }
+
+        batch = new ArrayList<HeaderAndDelta>();
+        for (int i = 0; i < 20; i++) {
+            byte[] dest = "bob".getBytes();
+            byte[] message = ("message " + i).getBytes();
+            DestinationAndMessage destinationAndMessage = new DestinationAndMessage(dest, message);
+            batch.add(SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage));
+        }
+
+        processor = new SphinxBatchProcessor(params, firstNodeSecret, 4, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        processor.shutdown();
+    }
+
+    @Test
+    public void processBatchMatchesSequentialProcessing() throws Exception {
+        List<ProcessedPacket> results = processor.processBatch(batch);
+
+        assertEquals(batch.size(), results.size());
+
+        for (int i = 0; i < batch.size(); i++) {
+            ProcessedPacket expected = SphinxNode.sphinxProcess(params, firstNodeSecret, batch.get(i));
+            ProcessedPacket actual = results.get(i);
+
+            assertArrayEquals(expected.tag, actual.tag);
+            assertArrayEquals(expected.routing, actual.routing);
+            assertEquals(expected.getHeader().getAlpha(), actual.getHeader().getAlpha());
+            assertTrue(actual.getHeader().getAlpha().isNormalized());
+            assertArrayEquals(expected.getHeader().beta, actual.getHeader().beta);
+            assertArrayEquals(expected.getHeader().gamma, actual.getHeader().gamma);
+            assertArrayEquals(expected.getDelta(), actual.getDelta());
+        }
+    }
+
+    @Test
+    public void processBatchBadPacket() throws Exception {
+        HeaderAndDelta good = batch.get(0);
+        Header badHeader = new Header(good.header.getAlpha(), good.header.beta, new byte[params.getKeyLength()]);
+        batch.set(1, new HeaderAndDelta(badHeader, good.delta));
+
+        List<ProcessedPacket> results = processor.processBatch(batch);
+
+        assertEquals(batch.size(), results.size());
+        assertNotNull(results.get(0));
+        assertNull(results.get(1));
+
+        // Batches are returned in input order even by a processor that does not order its streams
+        SphinxBatchProcessor unordered = new SphinxBatchProcessor(params, firstNodeSecret, 4, false);
+        SphinxException[] errors = new SphinxException[batch.size()];
+        List<ProcessedPacket> unorderedResults = unordered.processBatch(batch, errors);
+        unordered.shutdown();
+
+        assertEquals(batch.size(), unorderedResults.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(i == 1, unorderedResults.get(i) == null);
+            assertEquals(i == 1, errors[i] != null);
+            if (i != 1) {
+                assertArrayEquals(results.get(i).tag, unorderedResults.get(i).tag);
+            }
+        }
+    }
+
+    @Test
+    public void processBatchMalformedPacket() throws Exception {
+        HeaderAndDelta good = batch.get(0);
+        Header badHeader = new Header(good.header.getAlpha(), good.header.beta, new byte[params.getKeyLength()]);
+        batch.set(1, new HeaderAndDelta(badHeader, good.delta));
+        batch.set(2, new HeaderAndDelta(null, good.delta));
+        batch.set(3, new HeaderAndDelta(good.header, null));
+
+        SphinxException[] errors = new SphinxException[batch.size()];
+        List<ProcessedPacket> results = processor.processBatch(batch, errors);
+
+        assertEquals(batch.size(), results.size());
+        for (int i = 1; i <= 3; i++) {
+            assertNull(results.get(i));
+            assertNotNull(errors[i]);
+        }
+
+        for (int i = 4; i < batch.size(); i++) {
+            assertNotNull(results.get(i));
+            assertNull(errors[i]);
+        }
+    }
+
+    @Test
+    public void processStream() throws Exception {
+        final List<HeaderAndDelta> processed = new ArrayList<HeaderAndDelta>();
+        final List<HeaderAndDelta> failed = new ArrayList<HeaderAndDelta>();
+
+        HeaderAndDelta good = batch.get(0);
+        Header badHeader = new Header(good.header.getAlpha(), good.header.beta, new byte[params.getKeyLength()]);
+        batch.add(new HeaderAndDelta(badHeader, good.delta));
+
+        processor.processStream(batch.iterator(), new ProcessedPacketHandler() {
+            @Override
+            public void onProcessed(HeaderAndDelta input, ProcessedPacket output) {
+                processed.add(input);
+            }
+
+            @Override
+            public void onError(HeaderAndDelta input, SphinxException ex) {
+                failed.add(input);
+            }
+        });
+
+        assertEquals(batch.subList(0, batch.size() - 1), processed);
+        assertEquals(1, failed.size());
+        assertSame(batch.get(batch.size() - 1), failed.get(0));
+    }
+}
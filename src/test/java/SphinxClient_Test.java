@@ -87,7 +87,7 @@ public class SphinxClient_Test {
         assertEquals(params.getHeaderLength(), unpackedParamLengths.headerLength);
         assertEquals(params.getBodyLength(), unpackedParamLengths.bodyLength);
 
-        assertEquals(headerAndDelta.header.alpha, unpackedHeaderAndDelta.header.alpha);
+        assertEquals(headerAndDelta.header.getAlpha(), unpackedHeaderAndDelta.header.getAlpha());
         assertArrayEquals(headerAndDelta.header.beta, unpackedHeaderAndDelta.header.beta);
         assertArrayEquals(headerAndDelta.header.gamma, unpackedHeaderAndDelta.header.gamma);
         assertArrayEquals(headerAndDelta.delta, unpackedHeaderAndDelta.delta);
@@ -115,7 +115,7 @@ public class SphinxClient_Test {
         assertEquals(params.getHeaderLength(), unpackedParamLengths.headerLength);
         assertEquals(params.getBodyLength(), unpackedParamLengths.bodyLength);
 
-        assertEquals(headerAndDelta.header.alpha, unpackedHeaderAndDelta.header.alpha);
+        assertEquals(headerAndDelta.header.getAlpha(), unpackedHeaderAndDelta.header.getAlpha());
         assertArrayEquals(headerAndDelta.header.beta, unpackedHeaderAndDelta.header.beta);
         assertArrayEquals(headerAndDelta.header.gamma, unpackedHeaderAndDelta.header.gamma);
         assertArrayEquals(headerAndDelta.delta, unpackedHeaderAndDelta.delta);
@@ -150,6 +150,24 @@ public class SphinxClient_Test {
         testRouting(params, headerAndDelta, firstNodeKey, dest, message);
     }
 
+    @Test
+    public void routeSphinxMessageNodeKeyCache() throws Exception {
+        byte[] dest = "bob".getBytes();
+        byte[] message = "this is a test".getBytes();
+
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage(dest, message);
+        NodeKeyCache nodeKeyCache = new NodeKeyCache(params.getGroup(), 100);
+
+        BigInteger firstNodeKey = pkiPriv.get(useNodes[0]).x;
+
+        for (int i = 0; i < 3; i++) {
+            HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage, nodeKeyCache);
+            testRouting(params, headerAndDelta, firstNodeKey, dest, message);
+        }
+
+        assertEquals(nodeKeys.length, nodeKeyCache.size());
+    }
+
     @Test
     public void routeSphinxMessageNonDefaultBodySize() throws Exception {
         SphinxParams params = new SphinxParams(16, 4096, 192, new ECCGroup());
@@ -167,13 +185,51 @@ public class SphinxClient_Test {
         testRouting(params, headerAndDelta, firstNodeKey, dest, message);
     }
 
+    @Test
+    public void routeSphinxMessageCurve25519() throws Exception {
+        SphinxParams params = new SphinxParams(16, 1024, 192, new Curve25519Group());
+
+        for (int i = 0; i < 10; i++) {
+            BigInteger x = params.getGroup().genSecret();
+            pkiPriv.put(i, new PkiEntry(x, params.getGroup().exponGenerator(x)));
+        }
+
+        ECPoint[] nodeKeys = new ECPoint[useNodes.length];
+        for (int i = 0; i < useNodes.length; i++) {
+            nodeKeys[i] = pkiPriv.get(useNodes[i]).y;
+        }
+
+        byte[] dest = "bob".getBytes();
+        byte[] message = "this is a test".getBytes();
+
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage(dest, message);
+        HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage);
+
+        ParamLengths paramLengths = new ParamLengths(params.getHeaderLength(), params.getBodyLength());
+        byte[] packed = SphinxClient.packMessage(new SphinxPacket(paramLengths, headerAndDelta));
+        HeaderAndDelta unpacked = SphinxClient.unpackMessage(packed).headerAndDelta;
+
+        assertEquals(headerAndDelta.header.getAlpha(), unpacked.header.getAlpha());
+
+        BigInteger firstNodeKey = pkiPriv.get(useNodes[0]).x;
+
+        testRouting(params, unpacked, firstNodeKey, dest, message);
+
+        try {
+            SphinxNode.sphinxProcess(this.params, firstNodeKey, unpacked);
+            fail("Expected SphinxException for a packet of another curve");
+        } catch (SphinxException ex) {
+            assertTrue(ex.getMessage().startsWith("Curve of alpha"));
+        }
+    }
+
     private void testRouting(SphinxParams params, HeaderAndDelta headerAndDelta, BigInteger firstNodeKey, byte[] dest, byte[] message) throws Exception {
         BigInteger currentNodeKey = firstNodeKey;
         MessageUnpacker unpacker;
 
         while (true) {
             ProcessedPacket ret = SphinxNode.sphinxProcess(params, currentNodeKey, headerAndDelta);
-            headerAndDelta = ret.headerAndDelta;
+            headerAndDelta = ret.getHeaderAndDelta();
 
             byte[] encodedRouting = ret.routing;
 
@@ -182,6 +238,7 @@ public class SphinxClient_Test {
             String flag = unpacker.unpackString();
 
             assertTrue(flag.equals(SphinxClient.RELAY_FLAG) || flag.equals(SphinxClient.DEST_FLAG));
+            assertEquals(flag.equals(SphinxClient.RELAY_FLAG), ret.isRelay());
 
             if (flag.equals(SphinxClient.RELAY_FLAG)) {
                 int addr = unpacker.unpackInt();
@@ -193,7 +250,7 @@ public class SphinxClient_Test {
 
                 assertEquals(1, routingLen);
 
-                DestinationAndMessage destAndMsg = SphinxClient.receiveForward(params, ret.macKey, ret.headerAndDelta.delta);
+                DestinationAndMessage destAndMsg = SphinxClient.receiveForward(params, ret.macKey, ret.getDelta());
 
                 assertArrayEquals(dest, destAndMsg.destination);
                 assertArrayEquals(message, destAndMsg.message);
@@ -216,7 +273,7 @@ public class SphinxClient_Test {
 
         while (true) {
             ProcessedPacket ret = SphinxNode.sphinxProcess(params, x, headerAndDelta);
-            headerAndDelta = ret.headerAndDelta;
+            headerAndDelta = ret.getHeaderAndDelta();
 
             byte[] encodedRouting = ret.routing;
 
@@ -270,7 +327,7 @@ public class SphinxClient_Test {
 
         while (true) {
             ProcessedPacket ret = SphinxNode.sphinxProcess(params, x, headerAndDelta);
-            headerAndDelta = ret.headerAndDelta;
+            headerAndDelta = ret.getHeaderAndDelta();
 
             byte[] encodedRouting = ret.routing;
 
@@ -294,9 +351,9 @@ public class SphinxClient_Test {
                 java.util.Arrays.fill(zeroes, (byte) 0x00);
 
                 // Corrupt payload
-                ret.headerAndDelta.delta[20]++;
+                ret.getDelta()[20]++;
 
-                DestinationAndMessage destAndMsg = SphinxClient.receiveForward(params, ret.macKey, ret.headerAndDelta.delta);
+                DestinationAndMessage destAndMsg = SphinxClient.receiveForward(params, ret.macKey, ret.getDelta());
 
                 assertArrayEquals(dest, destAndMsg.destination);
                 assertArrayEquals(message, destAndMsg.message);
@@ -317,6 +374,59 @@ public class SphinxClient_Test {
         SphinxClient.receiveSurb(params, surb.keytuple, headerAndDelta.delta);
     }
 
+    @Test
+    public void routeSeededSurb() throws Exception {
+        byte[] masterKey = "0123456789abcdef".getBytes();
+        byte[] surbDest = "myself".getBytes();
+        byte[] message = "This is a reply".getBytes();
+
+        Surb surb = SphinxClient.createSeededSurb(params, masterKey, nodesRouting, nodeKeys, surbDest, null);
+        HeaderAndDelta headerAndDelta = SphinxClient.packageSurb(params, surb.nymTuple, message);
+
+        BigInteger x = pkiPriv.get(useNodes[0]).x;
+
+        while (true) {
+            ProcessedPacket ret = SphinxNode.sphinxProcess(params, x, headerAndDelta);
+            headerAndDelta = ret.getHeaderAndDelta();
+
+            if (!ret.isRelay()) {
+                break;
+            }
+
+            MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(ret.routing);
+            unpacker.unpackArrayHeader();
+            unpacker.unpackString();
+            x = pkiPriv.get(unpacker.unpackInt()).x;
+            unpacker.close();
+        }
+
+        // Only the seed and the route are kept by the recipient
+        byte[] received = SphinxClient.receiveSurb(params, masterKey, surb.seed, nodeKeys, headerAndDelta.delta);
+        assertArrayEquals(message, received);
+    }
+
+    @Test
+    public void seededSurbKeytupleIsRecomputed() throws Exception {
+        byte[] masterKey = "0123456789abcdef".getBytes();
+
+        Surb surb = SphinxClient.createSeededSurb(params, masterKey, nodesRouting, nodeKeys, "myself".getBytes(), null);
+        byte[][] keytuple = SphinxClient.deriveSurbKeytuple(params, masterKey, surb.seed, nodeKeys, null);
+
+        assertEquals(surb.keytuple.length, keytuple.length);
+        for (int i = 0; i < keytuple.length; i++) {
+            assertArrayEquals(surb.keytuple[i], keytuple[i]);
+        }
+
+        byte[][] otherKeytuple = SphinxClient.deriveSurbKeytuple(params, "fedcba9876543210".getBytes(), surb.seed, nodeKeys, null);
+        assertFalse(Arrays.areEqual(keytuple[0], otherKeytuple[0]));
+        assertFalse(Arrays.areEqual(keytuple[1], otherKeytuple[1]));
+    }
+
+    @Test(expected = SphinxException.class)
+    public void createSeededSurbShortMasterKey() throws Exception {
+        SphinxClient.createSeededSurb(params, new byte[SphinxClient.MIN_MASTER_KEY_LENGTH - 1], nodesRouting, nodeKeys, "myself".getBytes(), null);
+    }
+
     @Test(expected = SphinxException.class)
     public void createForwardDestTooLong() throws Exception {
         byte[] dest = new byte[SphinxClient.MAX_DEST_SIZE + 1];
@@ -42,16 +42,28 @@ public class SphinxNode_Test {
         ProcessedPacket output = SphinxNode.sphinxProcess(params, secret, inputHeaderAndDelta);
         byte[] outputTag = output.tag;
         byte[] outputRouting = output.routing;
-        HeaderAndDelta outputHeaderAndDelta = output.headerAndDelta;
+        HeaderAndDelta outputHeaderAndDelta = output.getHeaderAndDelta();
         Header outputHeader = outputHeaderAndDelta.header;
         byte[] outputDelta = outputHeaderAndDelta.delta;
 
         assertArrayEquals(expectedTag, outputTag);
         assertArrayEquals(expectedRouting, outputRouting);
-        assertEquals(expectedAlpha, outputHeader.alpha);
+        assertEquals(expectedAlpha, outputHeader.getAlpha());
         assertArrayEquals(expectedBeta, outputHeader.beta);
         assertArrayEquals(expectedGamma, outputHeader.gamma);
         assertArrayEquals(expectedDelta, outputDelta);
+
+        SphinxNodeKey key = new SphinxNodeKey(params.getGroup(), secret);
+        ProcessedPacket keyedOutput = SphinxNode.sphinxProcess(params, key, inputHeaderAndDelta, null);
+
+        // The payload and the next header are computed on request, in either order
+        assertArrayEquals(expectedTag, keyedOutput.tag);
+        assertArrayEquals(expectedRouting, keyedOutput.routing);
+        assertArrayEquals(expectedDelta, keyedOutput.getDelta());
+        assertEquals(expectedAlpha, keyedOutput.getHeader().getAlpha());
+        assertArrayEquals(expectedBeta, keyedOutput.getHeader().beta);
+        assertArrayEquals(expectedGamma, keyedOutput.getHeader().gamma);
+        assertSame(keyedOutput.getDelta(), keyedOutput.getHeaderAndDelta().delta);
     }
 
     @Test(expected = SphinxException.class)
@@ -104,4 +116,30 @@ public class SphinxNode_Test {
 
         SphinxNode.sphinxProcess(badParams, secret, inputHeaderAndDelta);
     }
+
+    @Test
+    public void alphaIsDecodedAfterLengthChecks() throws Exception {
+        SphinxParams params = new SphinxParams();
+        BigInteger secret = params.getGroup().genSecret();
+
+        // Not a valid point encoding: decoding it would fail
+        byte[] badAlpha = new byte[29];
+        badAlpha[0] = 0x05;
+
+        Header badLengths = new Header(ECCGroup.DEFAULT_CURVE_NID, badAlpha, new byte[params.getHeaderLength()], new byte[params.getKeyLength()]);
+        try {
+            SphinxNode.sphinxProcess(params, secret, new HeaderAndDelta(badLengths, new byte[params.getBodyLength()]));
+            fail("Packet with a bad beta length was processed");
+        } catch (SphinxException ex) {
+            assertTrue(ex.getMessage().startsWith("Length of beta"));
+        }
+
+        Header goodLengths = new Header(ECCGroup.DEFAULT_CURVE_NID, badAlpha, new byte[params.getHeaderLength() - 32], new byte[params.getKeyLength()]);
+        try {
+            SphinxNode.sphinxProcess(params, secret, new HeaderAndDelta(goodLengths, new byte[params.getBodyLength()]));
+            fail("Packet with an invalid alpha was processed");
+        } catch (SphinxException ex) {
+            assertTrue(ex.getMessage().startsWith("Invalid encoding of alpha"));
+        }
+    }
 }
@@ -0,0 +1,122 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SphinxPacketCodec_Test {
+    private SphinxPacket createPacket(SphinxParams params) {
+        int r = 5;
+        byte[][] nodesRouting = new byte[r][];
+        ECPoint[] nodeKeys = new ECPoint[r];
+        for (int i = 0; i < r; i++) {
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+            nodeKeys[i] = params.getGroup().expon(params.getGroup().getGenerator(), params.getGroup().genSecret());
+        }
+
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+        HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage);
+
+        return new SphinxPacket(new ParamLengths(params.getHeaderLength(), params.getBodyLength()), headerAndDelta);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+
+        return array;
+    }
+
+    private void encodeMatchesPackMessage(SphinxParams params, boolean direct) {
+        SphinxPacket packet = createPacket(params);
+        byte[] packed = SphinxClient.packMessage(packet);
+
+        int length = SphinxPacketCodec.getEncodedLength(packet);
+        assertEquals(packed.length, length);
+
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(length + 3) : ByteBuffer.allocate(length + 3);
+        buffer.position(3);
+        SphinxPacketCodec.encode(packet, buffer);
+        assertEquals(length + 3, buffer.position());
+
+        buffer.position(3);
+        assertArrayEquals(packed, toArray(buffer));
+    }
+
+    @Test
+    public void encodeMatchesPackMessage() throws Exception {
+        encodeMatchesPackMessage(new SphinxParams(), false);
+        encodeMatchesPackMessage(new SphinxParams(), true);
+    }
+
+    @Test
+    public void encodeMatchesPackMessageCurve25519() throws Exception {
+        encodeMatchesPackMessage(new SphinxParams(16, 1024, 192, new Curve25519Group()), false);
+    }
+
+    @Test
+    public void encodeMatchesPackMessageWideLengths() throws Exception {
+        // Body length needs a 32 bit integer and a bin 32 header, header length a 16 bit integer and a bin 16 header
+        encodeMatchesPackMessage(new SphinxParams(16, 70000, 300, new ECCGroup()), false);
+    }
+
+    private void decodeMatchesUnpackMessage(boolean direct) {
+        SphinxParams params = new SphinxParams();
+        SphinxPacket packet = createPacket(params);
+        byte[] packed = SphinxClient.packMessage(packet);
+        SphinxPacket expected = SphinxClient.unpackMessage(packed);
+
+        // The packet is followed by other data, as when several packets are read from a stream
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(packed.length + 4) : ByteBuffer.allocate(packed.length + 4);
+        buffer.put(packed);
+        buffer.putInt(42);
+        buffer.flip();
+
+        PacketView view = SphinxPacketCodec.decode(buffer);
+        assertEquals(packed.length, buffer.position());
+        assertEquals(42, buffer.getInt());
+
+        assertEquals(expected.paramLengths.headerLength, view.getHeaderLength());
+        assertEquals(expected.paramLengths.bodyLength, view.getBodyLength());
+        assertEquals(params.getGroup().getCurveNid(), view.getCurveNid());
+        assertEquals(expected.headerAndDelta.header.getAlpha(), view.getAlpha());
+        assertArrayEquals(expected.headerAndDelta.header.getAlpha().getEncoded(true), toArray(view.getEncodedAlpha()));
+        assertArrayEquals(expected.headerAndDelta.header.beta, toArray(view.getBeta()));
+        assertArrayEquals(expected.headerAndDelta.header.gamma, toArray(view.getGamma()));
+        assertArrayEquals(expected.headerAndDelta.delta, toArray(view.getDelta()));
+
+        // The fields are views of the buffer rather than copies
+        buffer.put(buffer.limit() - 5, (byte) (buffer.get(buffer.limit() - 5) ^ 1));
+        ByteBuffer delta = view.getDelta();
+        assertEquals((byte) (expected.headerAndDelta.delta[delta.limit() - 1] ^ 1), delta.get(delta.limit() - 1));
+    }
+
+    @Test
+    public void decodeMatchesUnpackMessage() throws Exception {
+        decodeMatchesUnpackMessage(false);
+        decodeMatchesUnpackMessage(true);
+    }
+
+    @Test
+    public void decodedViewCopiesIntoSphinxPacket() throws Exception {
+        SphinxParams params = new SphinxParams();
+        byte[] packed = SphinxClient.packMessage(createPacket(params));
+
+        SphinxPacket copy = SphinxPacketCodec.decode(ByteBuffer.wrap(packed)).toSphinxPacket();
+        assertArrayEquals(packed, SphinxClient.packMessage(copy));
+    }
+
+    @Test(expected = SphinxException.class)
+    public void encodeRejectsSmallBuffer() throws Exception {
+        SphinxPacket packet = createPacket(new SphinxParams());
+        SphinxPacketCodec.encode(packet, ByteBuffer.allocate(SphinxPacketCodec.getEncodedLength(packet) - 1));
+    }
+
+    @Test(expected = SphinxException.class)
+    public void decodeRejectsTruncatedPacket() throws Exception {
+        byte[] packed = SphinxClient.packMessage(createPacket(new SphinxParams()));
+        SphinxPacketCodec.decode(ByteBuffer.wrap(packed, 0, packed.length - 1));
+    }
+}
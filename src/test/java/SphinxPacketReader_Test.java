@@ -0,0 +1,186 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.Assert.*;
+
+public class SphinxPacketReader_Test {
+    // Channel handing out data in chunks of at most chunkLength bytes, returning 0 once after every chunk as a
+    // non-blocking channel would
+    private static class ChunkedChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+        private final int chunkLength;
+        private final boolean nonBlocking;
+        private boolean starved;
+
+        ChunkedChannel(byte[] data, int chunkLength, boolean nonBlocking) {
+            this.data = ByteBuffer.wrap(data);
+            this.chunkLength = chunkLength;
+            this.nonBlocking = nonBlocking;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+
+            if (nonBlocking && starved) {
+                starved = false;
+                return 0;
+            }
+
+            int length = Math.min(Math.min(chunkLength, data.remaining()), dst.remaining());
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + length);
+            dst.put(chunk);
+            data.position(data.position() + length);
+            starved = true;
+
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private SphinxPacket createPacket(SphinxParams params, String message) {
+        int r = 3;
+        byte[][] nodesRouting = new byte[r][];
+        ECPoint[] nodeKeys = new ECPoint[r];
+        for (int i = 0; i < r; i++) {
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+            nodeKeys[i] = params.getGroup().exponGenerator(params.getGroup().genSecret());
+        }
+
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage("bob".getBytes(), message.getBytes());
+        HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage);
+
+        return new SphinxPacket(new ParamLengths(params.getHeaderLength(), params.getBodyLength()), headerAndDelta);
+    }
+
+    private byte[][] createStream(SphinxParams params, CompactPacketFormat format, int count, ByteArrayOutputStream stream) throws Exception {
+        byte[][] packets = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            SphinxPacket packet = createPacket(params, "message " + i);
+            packets[i] = i % 2 == 0 ? SphinxClient.packMessage(packet) : format.packMessage(packet);
+            stream.write(packets[i]);
+        }
+
+        return packets;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+
+        return array;
+    }
+
+    @Test
+    public void packetsAreReadFromPartialReads() throws Exception {
+        SphinxParams params = new SphinxParams();
+        CompactPacketFormat format = new CompactPacketFormat(1, params);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] packets = createStream(params, format, 5, stream);
+
+        SphinxPacketReader reader = new SphinxPacketReader(new ChunkedChannel(stream.toByteArray(), 100, false),
+                ByteBuffer.allocateDirect(2000), new CompactPacketFormat[] {format});
+        for (byte[] packet : packets) {
+            PacketView view = reader.read();
+            assertNotNull(view);
+            assertArrayEquals(packet, toArray(view.getPacket()));
+        }
+
+        assertNull(reader.read());
+        assertTrue(reader.isEndOfStream());
+    }
+
+    @Test
+    public void nonBlockingReadReturnsNullUntilPacketArrives() throws Exception {
+        SphinxParams params = new SphinxParams();
+        CompactPacketFormat format = new CompactPacketFormat(1, params);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] packets = createStream(params, format, 3, stream);
+
+        SphinxPacketReader reader = new SphinxPacketReader(new ChunkedChannel(stream.toByteArray(), 700, true),
+                ByteBuffer.allocate(4000), new CompactPacketFormat[] {format});
+        int received = 0;
+        int emptyReads = 0;
+        while (!reader.isEndOfStream() || reader.getBufferedLength() > 0) {
+            PacketView view = reader.read();
+            if (view == null) {
+                emptyReads++;
+                continue;
+            }
+
+            assertArrayEquals(packets[received], toArray(view.getPacket()));
+            received++;
+        }
+
+        assertEquals(packets.length, received);
+        assertTrue(emptyReads > 0);
+    }
+
+    @Test
+    public void manyPacketsAreReadFromOneRead() throws Exception {
+        SphinxParams params = new SphinxParams();
+        CompactPacketFormat format = new CompactPacketFormat(1, params);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[][] packets = createStream(params, format, 4, stream);
+
+        SphinxPacketReader reader = new SphinxPacketReader(new ChunkedChannel(stream.toByteArray(), Integer.MAX_VALUE, false),
+                ByteBuffer.allocate(stream.size()), new CompactPacketFormat[] {format});
+        assertArrayEquals(packets[0], toArray(reader.read().getPacket()));
+        assertEquals(stream.size() - packets[0].length, reader.getBufferedLength());
+    }
+
+    @Test
+    public void readerFailsAfterMalformedPacket() throws Exception {
+        byte[] packed = SphinxClient.packMessage(createPacket(new SphinxParams(), "message"));
+        byte[] stream = new byte[2 * packed.length];
+        System.arraycopy(packed, 0, stream, packed.length, packed.length);
+        // Not the start of a msgpack array nor a compact profile
+        stream[0] = (byte) 0xc1;
+
+        SphinxPacketReader reader = new SphinxPacketReader(new ChunkedChannel(stream, 100, false));
+        for (int i = 0; i < 2; i++) {
+            try {
+                reader.read();
+                fail("Malformed packet was read");
+            } catch (SphinxException ex) {
+                assertTrue(reader.isFailed());
+                assertEquals(i == 1, ex.getMessage().startsWith("Reader failed"));
+            }
+        }
+    }
+
+    @Test(expected = SphinxException.class)
+    public void streamEndingInsidePacketIsRejected() throws Exception {
+        byte[] packed = SphinxClient.packMessage(createPacket(new SphinxParams(), "message"));
+        byte[] truncated = new byte[packed.length - 1];
+        System.arraycopy(packed, 0, truncated, 0, truncated.length);
+
+        SphinxPacketReader reader = new SphinxPacketReader(new ChunkedChannel(truncated, 100, false));
+        reader.read();
+    }
+
+    @Test(expected = SphinxException.class)
+    public void packetLargerThanBufferIsRejected() throws Exception {
+        byte[] packed = SphinxClient.packMessage(createPacket(new SphinxParams(), "message"));
+
+        SphinxPacketReader reader = new SphinxPacketReader(new ChunkedChannel(packed, 100, false),
+                ByteBuffer.allocate(packed.length - 1), new CompactPacketFormat[0]);
+        reader.read();
+    }
+}
@@ -0,0 +1,144 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+
+import static org.junit.Assert.*;
+
+public class SphinxPacketWriter_Test {
+    // Gathering channel that records the number of calls and takes at most limit bytes before the limit is raised
+    private static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int writeCalls;
+        long limit = Long.MAX_VALUE;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writeCalls++;
+            long total = 0;
+            for (int i = offset; i < offset + length && limit > 0; i++) {
+                while (srcs[i].hasRemaining() && limit > 0) {
+                    written.write(srcs[i].get());
+                    total++;
+                    limit--;
+                }
+            }
+
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] {src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private SphinxPacket createPacket(SphinxParams params) {
+        int r = 3;
+        byte[][] nodesRouting = new byte[r][];
+        ECPoint[] nodeKeys = new ECPoint[r];
+        for (int i = 0; i < r; i++) {
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+            nodeKeys[i] = params.getGroup().exponGenerator(params.getGroup().genSecret());
+        }
+
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+        HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage);
+
+        return new SphinxPacket(new ParamLengths(params.getHeaderLength(), params.getBodyLength()), headerAndDelta);
+    }
+
+    @Test
+    public void packetsAreBatchedIntoOneWrite() throws Exception {
+        SphinxParams params = new SphinxParams();
+        CompactPacketFormat format = new CompactPacketFormat(1, params);
+        SphinxPacket first = createPacket(params);
+        SphinxPacket second = createPacket(params);
+        byte[] third = SphinxClient.packMessage(createPacket(params));
+
+        RecordingChannel channel = new RecordingChannel();
+        SphinxPacketWriter writer = new SphinxPacketWriter(channel);
+        assertTrue(writer.write(first));
+        assertTrue(writer.write(ByteBuffer.wrap(third)));
+        assertTrue(writer.write(second, format));
+        assertEquals(0, channel.writeCalls);
+
+        assertTrue(writer.flush());
+        assertEquals(1, channel.writeCalls);
+        assertEquals(0, writer.getQueuedLength());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(SphinxClient.packMessage(first));
+        expected.write(third);
+        expected.write(format.packMessage(second));
+        assertArrayEquals(expected.toByteArray(), channel.written.toByteArray());
+    }
+
+    @Test
+    public void fullBufferIsFlushed() throws Exception {
+        SphinxParams params = new SphinxParams();
+        SphinxPacket packet = createPacket(params);
+        byte[] packed = SphinxClient.packMessage(packet);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SphinxPacketWriter writer = new SphinxPacketWriter(Channels.newChannel(output), ByteBuffer.allocate(2 * packed.length + 1));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(writer.write(packet));
+        }
+
+        assertEquals(4 * packed.length, output.size());
+        assertTrue(writer.flush());
+        assertEquals(5 * packed.length, output.size());
+    }
+
+    @Test
+    public void partialWritesAreResumed() throws Exception {
+        SphinxParams params = new SphinxParams();
+        SphinxPacket packet = createPacket(params);
+        byte[] packed = SphinxClient.packMessage(packet);
+
+        RecordingChannel channel = new RecordingChannel();
+        channel.limit = packed.length / 2;
+        SphinxPacketWriter writer = new SphinxPacketWriter(channel, ByteBuffer.allocate(packed.length));
+        assertTrue(writer.write(packet));
+
+        assertFalse(writer.flush());
+        assertFalse(writer.write(packet));
+        assertEquals(packed.length - packed.length / 2, writer.getQueuedLength());
+
+        channel.limit = Long.MAX_VALUE;
+        assertTrue(writer.flush());
+        assertTrue(writer.write(packet));
+        assertTrue(writer.flush());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(packed);
+        expected.write(packed);
+        assertArrayEquals(expected.toByteArray(), channel.written.toByteArray());
+    }
+
+    @Test(expected = SphinxException.class)
+    public void packetLargerThanBufferIsRejected() throws Exception {
+        SphinxPacket packet = createPacket(new SphinxParams());
+        new SphinxPacketWriter(new RecordingChannel(), ByteBuffer.allocate(100)).write(packet);
+    }
+}
@@ -1,3 +1,4 @@
+import com.robertsoultanaev.javasphinx.HopKeys;
 import com.robertsoultanaev.javasphinx.SphinxException;
 import com.robertsoultanaev.javasphinx.SphinxParams;
 import com.robertsoultanaev.javasphinx.Util;
@@ -62,6 +63,25 @@ public class SphinxParams_Test {
         assertArrayEquals(expectedOutput, output);
     }
 
+    @Test
+    public void lionessEncryptInPlace() throws Exception {
+        byte[] expectedOutput = Hex.decode("937e52902f5300c07b0dbd39d4e10b9d0de98278ed16d2ef2f4652d5318041da6d16188c11f4dbfba12b36f7e23a1a8daebff5942703463241d7ed2c909116e913bb9f74d645fb8d99971f299d21ac51");
+
+        byte[] buffer = new byte[plaintext.length + 10];
+        Arrays.fill(buffer, (byte) 0xee);
+        System.arraycopy(plaintext, 0, buffer, 5, plaintext.length);
+
+        params.lionessEnc(key, buffer, 5, plaintext.length);
+
+        assertArrayEquals(expectedOutput, Arrays.copyOfRange(buffer, 5, 5 + plaintext.length));
+        assertEquals((byte) 0xee, buffer[4]);
+        assertEquals((byte) 0xee, buffer[5 + plaintext.length]);
+
+        params.lionessDec(key, buffer, 5, plaintext.length);
+
+        assertArrayEquals(plaintext, Arrays.copyOfRange(buffer, 5, 5 + plaintext.length));
+    }
+
     @Test
     public void lionessEncryptThenDecrypt() throws Exception {
         byte[] ciphertext = params.lionessEnc(key, plaintext);
@@ -106,6 +126,25 @@ public class SphinxParams_Test {
         assertArrayEquals(expectedOutput, output);
     }
 
+    @Test
+    public void xorRhoAtPosition() throws Exception {
+        byte[] expectedOutput = Hex.decode("0e000098e34558b1c728b1580787f881012f2a1eaf3ac383fd596b13d87a95cce1376225b739b15e630f89fe64dbc54752a22ed567f1b368cae6aa1c374fdb008602fbbe5b1cfe3c7c256669e080903d");
+
+        for (int position : new int[]{0, 1, 15, 16, 17, 40}) {
+            byte[] buffer = Arrays.copyOfRange(plaintext, position, plaintext.length);
+            params.xorRho(key, position, buffer, 0, buffer.length);
+
+            assertArrayEquals(Arrays.copyOfRange(expectedOutput, position, expectedOutput.length), buffer);
+        }
+    }
+
+    @Test
+    public void rhoKeystream() throws Exception {
+        byte[] fullKeystream = params.xorRho(key, new byte[100]);
+
+        assertArrayEquals(Arrays.copyOfRange(fullKeystream, 33, 100), params.rhoKeystream(key, 33, 67));
+    }
+
     @Test(expected = SphinxException.class)
     public void xorRhoBadKeyLength() throws Exception {
         byte[] badKey = Arrays.copyOf(key, key.length - 1);
@@ -132,6 +171,22 @@ public class SphinxParams_Test {
         assertArrayEquals(plaintext, decryptedCiphertext);
     }
 
+    @Test
+    public void piInPlaceMatchesPi() throws Exception {
+        SecureRandom random = new SecureRandom();
+        byte[] plaintext = new byte[params.getBodyLength()];
+        random.nextBytes(plaintext);
+
+        byte[] buffer = new byte[params.getBodyLength() + 3];
+        System.arraycopy(plaintext, 0, buffer, 3, plaintext.length);
+
+        params.pi(key, buffer, 3);
+        assertArrayEquals(params.pi(key, plaintext), Arrays.copyOfRange(buffer, 3, buffer.length));
+
+        params.pii(key, buffer, 3);
+        assertArrayEquals(plaintext, Arrays.copyOfRange(buffer, 3, buffer.length));
+    }
+
     @Test(expected = SphinxException.class)
     public void piEncryptBadKeyLength() throws Exception {
         SecureRandom random = new SecureRandom();
@@ -247,4 +302,15 @@ public class SphinxParams_Test {
         assertArrayEquals(expectedOutput, output);
     }
 
+    @Test
+    public void deriveHopKeys() throws Exception {
+        HopKeys hopKeys = params.deriveHopKeys(key);
+
+        assertArrayEquals(params.hrho(key), hopKeys.rho);
+        assertArrayEquals(params.hmu(key), hopKeys.mu);
+        assertArrayEquals(params.hpi(key), hopKeys.pi);
+        assertArrayEquals(params.htau(key), hopKeys.tau);
+        assertEquals(params.hb(null, key), hopKeys.b);
+    }
+
 }
@@ -0,0 +1,154 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SphinxRelay_Test {
+    private static final int HOPS = 3;
+
+    private SphinxNodeKey[] createNodeKeys(SphinxParams params) {
+        SphinxNodeKey[] keys = new SphinxNodeKey[HOPS];
+        for (int i = 0; i < HOPS; i++) {
+            keys[i] = new SphinxNodeKey(params.getGroup(), params.getGroup().genSecret());
+        }
+
+        return keys;
+    }
+
+    private byte[] createPackedMessage(SphinxParams params, SphinxNodeKey[] keys, DestinationAndMessage destinationAndMessage) {
+        byte[][] nodesRouting = new byte[HOPS][];
+        ECPoint[] nodeKeys = new ECPoint[HOPS];
+        for (int i = 0; i < HOPS; i++) {
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+            nodeKeys[i] = keys[i].getPublicKey();
+        }
+
+        HeaderAndDelta headerAndDelta = SphinxClient.createForwardMessage(params, nodesRouting, nodeKeys, destinationAndMessage);
+        ParamLengths paramLengths = new ParamLengths(params.getHeaderLength(), params.getBodyLength());
+
+        return SphinxClient.packMessage(new SphinxPacket(paramLengths, headerAndDelta));
+    }
+
+    private void relayMatchesSphinxProcess(SphinxParams params) {
+        SphinxNodeKey[] keys = createNodeKeys(params);
+        DestinationAndMessage destinationAndMessage = new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes());
+        byte[] packed = createPackedMessage(params, keys, destinationAndMessage);
+
+        // The packet sits in the middle of a larger buffer, as when read from the network
+        int offset = 7;
+        byte[] buffer = new byte[offset + packed.length + 5];
+        System.arraycopy(packed, 0, buffer, offset, packed.length);
+
+        RelayResult result = new RelayResult(params);
+        int node = 0;
+        for (int hop = 0; hop < HOPS; hop++) {
+            SphinxRelay relay = new SphinxRelay(params, keys[node], new ReplayFilter(1000, 0.001));
+            ProcessedPacket expected = SphinxNode.sphinxProcess(params, keys[node].getSecret(), SphinxClient.unpackMessage(packed).headerAndDelta);
+
+            relay.process(buffer, offset, packed.length, result);
+
+            assertArrayEquals(expected.tag, result.getTag());
+            assertArrayEquals(expected.macKey, result.getMacKey());
+            assertArrayEquals(expected.routing, Arrays.copyOf(result.getRouting(), result.getRoutingLength()));
+            assertEquals(expected.isRelay(), result.isRelay());
+
+            byte[] packetRegion = Arrays.copyOfRange(buffer, offset, offset + packed.length);
+            HeaderAndDelta rewritten = SphinxClient.unpackMessage(packetRegion).headerAndDelta;
+            assertArrayEquals(expected.getDelta(), rewritten.delta);
+
+            if (!result.isRelay()) {
+                assertEquals(HOPS - 1, hop);
+                DestinationAndMessage received = SphinxClient.receiveForward(params, result.getMacKey(), rewritten.delta);
+                assertArrayEquals(destinationAndMessage.destination, received.destination);
+                assertArrayEquals(destinationAndMessage.message, received.message);
+                return;
+            }
+
+            // The rewritten packet is byte for byte the packed packet for the next hop
+            ParamLengths paramLengths = new ParamLengths(params.getHeaderLength(), params.getBodyLength());
+            assertArrayEquals(SphinxClient.packMessage(new SphinxPacket(paramLengths, expected.getHeaderAndDelta())), packetRegion);
+
+            packed = packetRegion;
+            node = result.getRouting()[4];
+        }
+
+        fail("Packet was not delivered");
+    }
+
+    @Test
+    public void relayMatchesSphinxProcess() throws Exception {
+        relayMatchesSphinxProcess(new SphinxParams());
+    }
+
+    @Test
+    public void relayMatchesSphinxProcessCurve25519() throws Exception {
+        relayMatchesSphinxProcess(new SphinxParams(16, 1024, 192, new Curve25519Group()));
+    }
+
+    @Test
+    public void replayedPacketIsRejected() throws Exception {
+        SphinxParams params = new SphinxParams();
+        SphinxNodeKey[] keys = createNodeKeys(params);
+        byte[] packed = createPackedMessage(params, keys, new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes()));
+
+        SphinxRelay relay = new SphinxRelay(params, keys[0], new ReplayFilter(1000, 0.001));
+        RelayResult result = new RelayResult(params);
+        relay.process(packed.clone(), 0, packed.length, result);
+
+        try {
+            relay.process(packed.clone(), 0, packed.length, result);
+            fail("Replayed packet was processed");
+        } catch (SphinxException ex) {
+            assertTrue(ex.getMessage().startsWith("Replayed packet"));
+        }
+    }
+
+    @Test(expected = SphinxException.class)
+    public void tamperedPacketIsRejected() throws Exception {
+        SphinxParams params = new SphinxParams();
+        SphinxNodeKey[] keys = createNodeKeys(params);
+        byte[] packed = createPackedMessage(params, keys, new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes()));
+
+        // Flip a bit of beta, which ends right before the header of gamma and delta
+        packed[packed.length - params.getBodyLength() - 3 - params.getKeyLength() - 2 - 1] ^= 1;
+
+        new SphinxRelay(params, keys[0], null).process(packed, 0, packed.length, new RelayResult(params));
+    }
+
+    @Test(expected = SphinxException.class)
+    public void malformedAlphaIsRejected() throws Exception {
+        SphinxParams params = new SphinxParams();
+        SphinxNodeKey[] keys = createNodeKeys(params);
+        byte[] packed = createPackedMessage(params, keys, new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes()));
+
+        // Replace the prefix of the compressed point with one that no point encoding uses
+        byte[] encodedAlpha = SphinxClient.unpackMessage(packed).headerAndDelta.header.getEncodedAlpha();
+        int alphaOffset = indexOf(packed, encodedAlpha);
+        assertTrue(alphaOffset >= 0);
+        packed[alphaOffset] = 0x05;
+
+        new SphinxRelay(params, keys[0], null).process(packed, 0, packed.length, new RelayResult(params));
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Test(expected = SphinxException.class)
+    public void truncatedPacketIsRejected() throws Exception {
+        SphinxParams params = new SphinxParams();
+        SphinxNodeKey[] keys = createNodeKeys(params);
+        byte[] packed = createPackedMessage(params, keys, new DestinationAndMessage("bob".getBytes(), "this is a test".getBytes()));
+
+        new SphinxRelay(params, keys[0], null).process(packed, 0, packed.length - 1, new RelayResult(params));
+    }
+}
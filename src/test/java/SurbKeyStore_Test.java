@@ -0,0 +1,188 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SurbKeyStore_Test {
+    private static final int HOPS = 3;
+    private static final long TTL = 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SphinxParams params = new SphinxParams();
+    private final SecureRandom random = new SecureRandom();
+    private final BigInteger[] secrets = new BigInteger[HOPS];
+    private final byte[][] nodesRouting = new byte[HOPS][];
+    private final ECPoint[] nodeKeys = new ECPoint[HOPS];
+
+    public SurbKeyStore_Test() {
+        for (int i = 0; i < HOPS; i++) {
+            secrets[i] = params.getGroup().genSecret();
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+            nodeKeys[i] = params.getGroup().exponGenerator(secrets[i]);
+        }
+    }
+
+    private Surb createSurb() {
+        return SphinxClient.createSurb(params, nodesRouting, nodeKeys, "myself".getBytes());
+    }
+
+    // Key tuples are only compared, so they do not need to belong to real SURBs
+    private byte[][] randomKeytuple() {
+        byte[][] keytuple = new byte[HOPS + 1][];
+        for (int i = 0; i < keytuple.length; i++) {
+            keytuple[i] = randomBytes();
+        }
+        return keytuple;
+    }
+
+    private byte[] randomBytes() {
+        byte[] bytes = new byte[params.getKeyLength()];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void storedKeysReceiveReply() throws Exception {
+        SurbKeyStore store = new SurbKeyStore(folder.newFile(), params, HOPS, 16);
+        try {
+            Surb surb = createSurb();
+            store.put(surb, TTL);
+
+            byte[] message = "This is a reply".getBytes();
+            HeaderAndDelta headerAndDelta = SphinxClient.packageSurb(params, surb.nymTuple, message);
+            byte[] delta = null;
+            int node = 0;
+            for (int hop = 0; hop < HOPS && delta == null; hop++) {
+                ProcessedPacket processed = SphinxNode.sphinxProcess(params, secrets[node], headerAndDelta);
+                if (!processed.isRelay()) {
+                    delta = processed.getDelta();
+                } else {
+                    headerAndDelta = processed.getHeaderAndDelta();
+                    node = processed.routing[4];
+                }
+            }
+
+            // Reusable arrays with room for longer routes
+            byte[][] keytuple = new byte[HOPS + 3][params.getKeyLength()];
+            int keyCount = store.take(surb.xid, keytuple);
+
+            assertEquals(HOPS + 1, keyCount);
+            assertArrayEquals(message, SphinxClient.receiveSurb(params, keytuple, keyCount, delta));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void keysAreTakenOnce() throws Exception {
+        SurbKeyStore store = new SurbKeyStore(folder.newFile(), params, HOPS, 16);
+        try {
+            Surb surb = createSurb();
+            store.put(surb, TTL);
+            assertEquals(1, store.size());
+
+            byte[][] keytuple = store.take(surb.xid);
+            assertEquals(surb.keytuple.length, keytuple.length);
+            for (int i = 0; i < keytuple.length; i++) {
+                assertArrayEquals(surb.keytuple[i], keytuple[i]);
+            }
+
+            assertNull(store.take(surb.xid));
+            assertEquals(0, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void expiredKeysAreNotReturned() throws Exception {
+        SurbKeyStore store = new SurbKeyStore(folder.newFile(), params, HOPS, 16);
+        try {
+            byte[] expiring = randomBytes();
+            byte[] expiringToo = randomBytes();
+            store.put(expiring, randomKeytuple(), 1);
+            store.put(expiringToo, randomKeytuple(), 1);
+            Thread.sleep(20);
+
+            assertNull(store.take(expiring));
+            assertEquals(1, store.purgeExpired());
+            assertEquals(0, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void keysSurviveChurnAndReopening() throws Exception {
+        File file = folder.newFile();
+        int capacity = 200;
+        List<byte[]> xids = new ArrayList<byte[]>();
+        List<byte[][]> keytuples = new ArrayList<byte[][]>();
+
+        SurbKeyStore store = new SurbKeyStore(file, params, HOPS, capacity);
+        try {
+            for (int round = 0; round < 10; round++) {
+                while (xids.size() < capacity) {
+                    byte[] xid = randomBytes();
+                    byte[][] keytuple = randomKeytuple();
+                    store.put(xid, keytuple, TTL);
+                    xids.add(xid);
+                    keytuples.add(keytuple);
+                }
+
+                // Deleting every other record moves the following records of each probe sequence back
+                for (int i = xids.size() - 1; i >= 0; i -= 2) {
+                    assertNotNull(store.take(xids.remove(i)));
+                    keytuples.remove(i);
+                }
+            }
+        } finally {
+            store.close();
+        }
+
+        store = new SurbKeyStore(file, params, HOPS, capacity);
+        try {
+            assertEquals(xids.size(), store.size());
+            for (int i = 0; i < xids.size(); i++) {
+                byte[][] keytuple = store.take(xids.get(i));
+                assertNotNull(keytuple);
+                for (int j = 0; j < keytuple.length; j++) {
+                    assertArrayEquals(keytuples.get(i)[j], keytuple[j]);
+                }
+            }
+            assertEquals(0, store.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = SphinxException.class)
+    public void fullStoreRejectsKeys() throws Exception {
+        SurbKeyStore store = new SurbKeyStore(folder.newFile(), params, HOPS, 2);
+        try {
+            for (int i = 0; i < 3; i++) {
+                store.put(createSurb(), TTL);
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = SphinxException.class)
+    public void reopeningWithOtherParametersIsRejected() throws Exception {
+        File file = folder.newFile();
+        new SurbKeyStore(file, params, HOPS, 16).close();
+        new SurbKeyStore(file, params, HOPS + 1, 16).close();
+    }
+}
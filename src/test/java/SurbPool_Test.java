@@ -0,0 +1,144 @@
+import com.robertsoultanaev.javasphinx.*;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SurbPool_Test {
+    private static final int HOPS = 3;
+
+    private final SphinxParams params = new SphinxParams();
+    private final byte[][] nodesRouting = new byte[HOPS][];
+    private final byte[] surbDest = "myself".getBytes();
+
+    public SurbPool_Test() {
+        for (int i = 0; i < HOPS; i++) {
+            nodesRouting[i] = SphinxClient.encodeNode(i);
+        }
+    }
+
+    private BigInteger[] genSecrets() {
+        BigInteger[] secrets = new BigInteger[HOPS];
+        for (int i = 0; i < HOPS; i++) {
+            secrets[i] = params.getGroup().genSecret();
+        }
+        return secrets;
+    }
+
+    private ECPoint[] publicKeys(BigInteger[] secrets) {
+        ECPoint[] keys = new ECPoint[HOPS];
+        for (int i = 0; i < HOPS; i++) {
+            keys[i] = params.getGroup().exponGenerator(secrets[i]);
+        }
+        return keys;
+    }
+
+    private static void awaitReady(SurbPool pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (pool.getReadyCount() < count) {
+            assertTrue("Pool was not refilled in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private byte[] reply(BigInteger[] secrets, Surb surb, byte[] message) {
+        HeaderAndDelta headerAndDelta = SphinxClient.packageSurb(params, surb.nymTuple, message);
+        int node = 0;
+        for (int hop = 0; hop < HOPS; hop++) {
+            ProcessedPacket processed = SphinxNode.sphinxProcess(params, secrets[node], headerAndDelta);
+            if (!processed.isRelay()) {
+                return SphinxClient.receiveSurb(params, surb.keytuple, processed.getDelta());
+            }
+
+            headerAndDelta = processed.getHeaderAndDelta();
+            node = processed.routing[4];
+        }
+
+        throw new AssertionError("Reply was not delivered");
+    }
+
+    @Test
+    public void pooledSurbsReceiveReplies() throws Exception {
+        BigInteger[] secrets = genSecrets();
+        SurbPool pool = new SurbPool(params, nodesRouting, publicKeys(secrets), surbDest, 1, 2, 4);
+        try {
+            awaitReady(pool, 4);
+
+            byte[] message = "This is a reply".getBytes();
+            assertArrayEquals(message, reply(secrets, pool.take(), message));
+            assertEquals(0, pool.getMissCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void poolIsRefilledBelowLowWatermark() throws Exception {
+        SurbPool pool = new SurbPool(params, nodesRouting, publicKeys(genSecrets()), surbDest, 1, 2, 4);
+        try {
+            awaitReady(pool, 4);
+
+            // Each SURB is handed out once
+            Set<String> xids = new HashSet<String>();
+            for (int i = 0; i < 3; i++) {
+                xids.add(new String(pool.take().xid, "ISO-8859-1"));
+            }
+            assertEquals(3, xids.size());
+
+            awaitReady(pool, 4);
+            assertEquals(0, pool.getMissCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void rotationDropsSurbsOfPreviousEpoch() throws Exception {
+        SurbPool pool = new SurbPool(params, nodesRouting, publicKeys(genSecrets()), surbDest, 1, 2, 4);
+        try {
+            awaitReady(pool, 4);
+
+            BigInteger[] secrets = genSecrets();
+            pool.rotate(2, publicKeys(secrets));
+            assertEquals(2, pool.getEpochId());
+
+            // Whether taken from the refilled pool or created on the spot, every SURB uses the keys of the new epoch
+            byte[] message = "This is a reply".getBytes();
+            for (int i = 0; i < 5; i++) {
+                assertArrayEquals(message, reply(secrets, pool.take(), message));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void emptyPoolCreatesSurbOnCallingThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        BigInteger[] secrets = genSecrets();
+        SurbPool pool = new SurbPool(params, nodesRouting, publicKeys(secrets), surbDest, 1, null, 1, 2, executor);
+        assertEquals(0, pool.getReadyCount());
+
+        byte[] message = "This is a reply".getBytes();
+        assertArrayEquals(message, reply(secrets, pool.take(), message));
+        assertEquals(1, pool.getMissCount());
+    }
+
+    @Test(expected = SphinxException.class)
+    public void rotationToMismatchedKeysIsRejected() throws Exception {
+        SurbPool pool = new SurbPool(params, nodesRouting, publicKeys(genSecrets()), surbDest, 1, 0, 1);
+        try {
+            pool.rotate(2, new ECPoint[HOPS - 1]);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}